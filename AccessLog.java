@@ -0,0 +1,421 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+//the access log, one record per request, written by a thread of its own so a worker never waits on the disk.
+//a worker copies its record into a ring of slots made up front (log()), and the writer thread takes them out in batches,
+//formats them and writes each batch to the file in one go. putting a record in is a compare-and-set and a few array stores,
+//no lock, no allocation and no system call.
+//the slots are columns, one array per field, with room for the first TARGET bytes of the request target, so a record is a fixed size.
+//when the ring is full, server.accessLog.whenFull says what happens: "drop" the record (counted in dropped),
+//or "block" the worker until the writer makes room.
+//the file is rotated when it gets to server.accessLog.maxBytes, or is server.accessLog.rotateEvery seconds old, whichever comes first.
+//the old one is renamed with the time on the end (access.log.20261017-120000) and only the newest server.accessLog.keep are kept.
+//"text" is the common log format with the latency in microseconds on the end:
+//	127.0.0.1 - - [17/Oct/2026:12:00:00 +0000] "GET /index.html HTTP/1.1" 200 1043 412
+//"binary" is the same fields in big endian, after an 8 byte MAGIC at the start of each file:
+//	time (8, millis) latency (4, micros) bytes (8) status (2) method (1, index into HttpRequest.METHODS, 255 if none)
+//	version (1, times ten) address length (1) address target length (2) target
+//"java AccessLog file" prints a binary one as text.
+class AccessLog{
+
+	static final int TARGET = 256; //the most of a request target a record keeps, longer ones are cut off
+	static final byte [] MAGIC = "ACCLOG1\n".getBytes(StandardCharsets.ISO_8859_1);
+	static final long IDLE_NANOS = 10000000; //how long the writer sleeps when there is nothing to write
+
+	//the one the HandlerThreads log to, null when server.accessLog is "". set up by start().
+	static AccessLog shared = null;
+
+	Path path;
+	boolean binary;
+	boolean block;
+	long maxBytes;
+	long rotateMillis;
+	int keep;
+
+	//the ring. record number n goes in slot n & mask, and published[slot] is set to n once it is all there.
+	int mask;
+	long [] time, bytes;
+	int [] latency;
+	short [] status;
+	byte [] method, version;
+	byte [] address, addressLength; //16 bytes a slot, room for an ipv6 address
+	byte [] target;
+	short [] targetLength;
+	AtomicLongArray published;
+	final AtomicLong head = new AtomicLong(); //the next record number to hand out
+	volatile long tail; //the next record the writer takes out. slots for numbers below it are free again
+
+	final AtomicLong written = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong rotations = new AtomicLong();
+
+	//only touched by the writer thread.
+	Thread writer;
+	volatile boolean closing = false;
+	FileChannel file;
+	long fileBytes;
+	long openedAt;
+	ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+	long second = -1; //the second date was made for
+	String lastStamp = ""; //the time the last rotated file got, and how many others got it too
+	int sameStamp;
+	byte [] date;
+	static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("'['dd/MMM/yyyy:HH:mm:ss Z']'", Locale.US).withZone(ZoneOffset.UTC);
+
+	//opens server.accessLog and starts the writer, if there is one to write.
+	static void start() throws IOException{
+		if(ServerConfig.accessLog.isEmpty()) return;
+		shared = new AccessLog(Paths.get(ServerConfig.accessLog), ServerConfig.accessLogFormat, ServerConfig.accessLogBuffer, ServerConfig.accessLogWhenFull,
+			ServerConfig.accessLogMaxBytes, ServerConfig.accessLogRotateEvery, ServerConfig.accessLogKeep);
+		Lifecycle.atExit(shared::close); //after the last requests have been answered, and logged
+	}
+
+	public AccessLog(Path path, String format, int records, String whenFull, long maxBytes, long rotateEvery, int keep) throws IOException{
+		if(!format.equals("text") && !format.equals("binary")) throw new IllegalArgumentException("server.accessLog.format is text or binary, not " + format);
+		if(!whenFull.equals("drop") && !whenFull.equals("block")) throw new IllegalArgumentException("server.accessLog.whenFull is drop or block, not " + whenFull);
+		this.path = path.toAbsolutePath();
+		this.binary = format.equals("binary");
+		this.block = whenFull.equals("block");
+		this.maxBytes = maxBytes;
+		this.rotateMillis = rotateEvery * 1000;
+		this.keep = keep;
+
+		int size = Integer.highestOneBit(Math.max(2, records - 1)) << 1; //a power of two, so a slot is a mask away
+		mask = size - 1;
+		time = new long[size];
+		bytes = new long[size];
+		latency = new int[size];
+		status = new short[size];
+		method = new byte[size];
+		version = new byte[size];
+		address = new byte[16 * size];
+		addressLength = new byte[size];
+		target = new byte[TARGET * size];
+		targetLength = new short[size];
+		published = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) published.set(i, -1);
+
+		open();
+		writer = new Thread(this::run, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//records a request. address is the client's, from InetAddress.getAddress(), worked out once per connection.
+	//request can be null when there was no request to speak of (a timeout before one came in).
+	public void log(byte [] clientAddress, HttpRequest request, int code, long sent, long nanos){
+		long n;
+		while(true){
+			n = head.get();
+			if(n - tail > mask){
+				if(!block){
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(50000);
+				continue;
+			}
+			if(head.compareAndSet(n, n + 1)) break;
+		}
+
+		int i = (int) n & mask;
+		time[i] = System.currentTimeMillis();
+		latency[i] = (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+		bytes[i] = sent;
+		status[i] = (short) code;
+		int a = clientAddress == null ? 0 : clientAddress.length;
+		if(a > 0) System.arraycopy(clientAddress, 0, address, 16 * i, a);
+		addressLength[i] = (byte) a;
+		if(request != null && request.valid){
+			method[i] = (byte) Router.methodIndex(request.method);
+			version[i] = (byte) Math.round(request.version * 10);
+			int t = Math.min(TARGET, request.targetEnd - request.targetStart);
+			System.arraycopy(request.buf, request.targetStart, target, TARGET * i, t);
+			targetLength[i] = (short) t;
+		}
+		else{
+			method[i] = -1;
+			version[i] = 0;
+			targetLength[i] = 0;
+		}
+		published.lazySet(i, n);
+	}
+
+	//how many records are waiting for the writer.
+	public long buffered(){
+		return Math.max(0, head.get() - tail);
+	}
+
+	//the writer thread. takes out whatever is there, writes it, and sleeps a little when there is nothing.
+	void run(){
+		while(true){
+			boolean idle = drain() == 0;
+			try{
+				flush();
+				if(rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis && fileBytes > headerBytes()) rotate();
+			}
+			catch(IOException ioe){
+				System.out.println("Could not write the access log " + path + ": " + ioe);
+			}
+			if(closing && idle){
+				try{
+					file.close();
+				}
+				catch(IOException ioe){
+					return;
+				}
+				return;
+			}
+			if(idle) LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	//formats every published record into batch, writing it out whenever it fills up. returns how many there were.
+	int drain(){
+		int count = 0;
+		long n = tail;
+		while(published.get((int) n & mask) == n){
+			int i = (int) n & mask;
+			if(batch.remaining() < 2048){
+				try{
+					flush();
+				}
+				catch(IOException ioe){
+					System.out.println("Could not write the access log " + path + ": " + ioe);
+					batch.clear();
+				}
+			}
+			if(binary) appendBinary(i);
+			else appendText(batch, i);
+			n++;
+			tail = n;
+			count++;
+		}
+		written.addAndGet(count);
+		return count;
+	}
+
+	void appendBinary(int i){
+		batch.putLong(time[i]).putInt(latency[i]).putLong(bytes[i]).putShort(status[i]).put(method[i]).put(version[i]);
+		batch.put(addressLength[i]).put(address, 16 * i, addressLength[i]);
+		batch.putShort(targetLength[i]).put(target, TARGET * i, targetLength[i]);
+	}
+
+	void appendText(ByteBuffer b, int i){
+		int a = addressLength[i];
+		if(a == 4){
+			for(int k = 0; k < 4; k++){
+				if(k > 0) b.put((byte) '.');
+				putNumber(b, address[16 * i + k] & 0xff);
+			}
+		}
+		else if(a == 16){
+			try{
+				byte [] raw = new byte[16];
+				System.arraycopy(address, 16 * i, raw, 0, 16);
+				putAscii(b, InetAddress.getByAddress(raw).getHostAddress());
+			}
+			catch(IOException ioe){
+				b.put((byte) '-');
+			}
+		}
+		else b.put((byte) '-');
+
+		putAscii(b, " - - ");
+		long s = time[i] / 1000;
+		if(s != second){
+			second = s;
+			date = DATE.format(Instant.ofEpochSecond(s)).getBytes(StandardCharsets.ISO_8859_1);
+		}
+		b.put(date);
+
+		int m = method[i];
+		if(m < 0){
+			putAscii(b, " \"-\" ");
+		}
+		else{
+			putAscii(b, " \"");
+			putAscii(b, HttpRequest.METHODS[m]);
+			b.put((byte) ' ');
+			for(int k = 0; k < targetLength[i]; k++){
+				int c = target[TARGET * i + k] & 0xff;
+				if(c < 0x20 || c >= 0x7f || c == '"' || c == '\\'){
+					b.put((byte) '\\').put((byte) 'x').put((byte) Character.forDigit(c >> 4, 16)).put((byte) Character.forDigit(c & 15, 16));
+				}
+				else b.put((byte) c);
+			}
+			putAscii(b, " HTTP/");
+			putNumber(b, version[i] / 10);
+			b.put((byte) '.');
+			putNumber(b, version[i] % 10);
+			putAscii(b, "\" ");
+		}
+		putNumber(b, status[i]);
+		b.put((byte) ' ');
+		putNumber(b, bytes[i]);
+		b.put((byte) ' ');
+		putNumber(b, latency[i]);
+		b.put((byte) '\n');
+	}
+
+	static void putAscii(ByteBuffer b, String s){
+		for(int k = 0; k < s.length(); k++) b.put((byte) s.charAt(k));
+	}
+
+	static void putNumber(ByteBuffer b, long v){
+		if(v < 0){
+			b.put((byte) '-');
+			v = -v;
+		}
+		if(v >= 10) putNumber(b, v / 10);
+		b.put((byte) ('0' + v % 10));
+	}
+
+	void flush() throws IOException{
+		batch.flip();
+		try{
+			while(batch.hasRemaining()) fileBytes += file.write(batch);
+		}
+		finally{
+			batch.clear();
+		}
+		if(maxBytes > 0 && fileBytes >= maxBytes) rotate();
+	}
+
+	int headerBytes(){
+		return binary ? MAGIC.length : 0;
+	}
+
+	void open() throws IOException{
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		fileBytes = file.size();
+		openedAt = System.currentTimeMillis();
+		if(binary && fileBytes == 0) fileBytes += file.write(ByteBuffer.wrap(MAGIC));
+	}
+
+	//renames the file out of the way, opens a new one, and deletes the oldest ones past keep.
+	void rotate() throws IOException{
+		file.close();
+		String stamp = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC).format(Instant.now());
+		//a second rotation in the same second gets -1 on the end, the next -2 and so on. the numbers keep going up
+		//even when older ones have been deleted, so the newest never sorts before one that is left.
+		sameStamp = stamp.equals(lastStamp) ? sameStamp + 1 : 0;
+		lastStamp = stamp;
+		Path old = path.resolveSibling(path.getFileName() + "." + stamp + (sameStamp == 0 ? "" : "-" + sameStamp));
+		while(Files.exists(old)) old = path.resolveSibling(path.getFileName() + "." + stamp + "-" + ++sameStamp);
+		try{
+			Files.move(path, old);
+		}
+		finally{
+			open();
+		}
+		rotations.incrementAndGet();
+
+		if(keep <= 0) return;
+		List<Path> rotated = new ArrayList<>();
+		String prefix = path.getFileName() + ".";
+		try(DirectoryStream<Path> dir = Files.newDirectoryStream(path.getParent(), path.getFileName() + ".2*")){
+			for(Path p : dir) if(p.getFileName().toString().startsWith(prefix)) rotated.add(p);
+		}
+		rotated.sort(AccessLog::older);
+		for(int k = 0; k < rotated.size() - keep; k++) Files.deleteIfExists(rotated.get(k));
+	}
+
+	//orders rotated files by the time on the end, then by the -N added when two got the same second.
+	static int older(Path a, Path b){
+		String x = a.getFileName().toString(), y = b.getFileName().toString();
+		int stamp = x.indexOf('-', x.lastIndexOf('.')) + 7; //yyyyMMdd-HHmmss
+		int c = x.substring(0, Math.min(stamp, x.length())).compareTo(y.substring(0, Math.min(stamp, y.length())));
+		if(c != 0) return c;
+		return Integer.compare(collision(x, stamp), collision(y, stamp));
+	}
+
+	static int collision(String name, int stamp){
+		try{
+			return name.length() > stamp + 1 ? Integer.parseInt(name.substring(stamp + 1)) : 0;
+		}
+		catch(NumberFormatException nfe){
+			return 0;
+		}
+	}
+
+	//writes out what is left and closes the file. the server calls this on the way out.
+	public void close(){
+		closing = true;
+		LockSupport.unpark(writer);
+		try{
+			writer.join(2000);
+		}
+		catch(InterruptedException ie){
+			return;
+		}
+	}
+
+	//prints a binary log as text.
+	public static void main(String[] args) throws IOException{
+		if(args.length != 1){
+			System.out.println("usage: java AccessLog file");
+			return;
+		}
+		AccessLog reader = new AccessLog();
+		ByteBuffer line = ByteBuffer.allocate(4096);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))){
+			byte [] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if(!java.util.Arrays.equals(magic, MAGIC)) throw new IOException(args[0] + " isnt a binary access log");
+			OutputStream stdout = new BufferedOutputStream(System.out);
+			while(true){
+				try{
+					reader.time[0] = in.readLong();
+				}
+				catch(EOFException eof){
+					break;
+				}
+				reader.latency[0] = in.readInt();
+				reader.bytes[0] = in.readLong();
+				reader.status[0] = in.readShort();
+				reader.method[0] = in.readByte();
+				reader.version[0] = in.readByte();
+				reader.addressLength[0] = in.readByte();
+				in.readFully(reader.address, 0, reader.addressLength[0]);
+				reader.targetLength[0] = in.readShort();
+				in.readFully(reader.target, 0, reader.targetLength[0]);
+				line.clear();
+				reader.appendText(line, 0);
+				stdout.write(line.array(), 0, line.position());
+			}
+			stdout.flush();
+		}
+	}
+
+	//one slot and no file or thread, for main().
+	AccessLog(){
+		mask = 0;
+		time = new long[1];
+		bytes = new long[1];
+		latency = new int[1];
+		status = new short[1];
+		method = new byte[1];
+		version = new byte[1];
+		address = new byte[16];
+		addressLength = new byte[1];
+		target = new byte[TARGET];
+		targetLength = new short[1];
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//decides which requests get served and which get a 503 with a Retry-After, instead of the old hard cutoff at 50 busy threads.
+//there are two stages:
+//	connections wait for a worker in a bounded queue (server.queueDepth). when that is full, the new connection is turned away right there.
+//	once a worker has the request and knows what kind it is, it has to get past the Limiter for that kind.
+//	static files (GET, HEAD) and cgi (POST) have separate limits, so a pile of slow scripts cant starve the file traffic.
+//each limit adapts (AIMD): it creeps up while requests finish within their target latency, and drops by 10% whenever one doesnt.
+//a request that already sat in the queue longer than server.admission.maxQueueWait is turned away too, the client has likely given up on it.
+//queue wait and service time are counted separately, see stats().
+class AdmissionControl{
+
+	static final Limiter staticFiles = new Limiter("static", ServerConfig.staticLimit, ServerConfig.staticTarget);
+	static final Limiter cgi = new Limiter("cgi", ServerConfig.cgiLimit, ServerConfig.cgiTarget);
+
+	//connections turned away because the queue was full.
+	static final AtomicLong rejected = new AtomicLong();
+
+	//what a connection that is turned away before its request is even read gets.
+	static final byte [] SHED_RESPONSE = ("HTTP/1.0 503 Service Unavailable" + '\r' + '\n' + "Retry-After: " + ServerConfig.retryAfter + '\r' + '\n' + '\r' + '\n').getBytes(StandardCharsets.ISO_8859_1);
+
+	//the classic and nio worker pools (one per Shard), for their queue lengths.
+	static final List<ThreadPoolExecutor> executors = new CopyOnWriteArrayList<ThreadPoolExecutor>();
+
+	//the worker pool for the classic and nio modes. server.workers threads, and a queue of server.queueDepth in front of them.
+	//a full queue makes execute() throw RejectedExecutionException, which the caller answers with shed().
+	static ThreadPoolExecutor newExecutor(){
+		return newExecutor(ServerConfig.workerThreads, ServerConfig.queueDepth);
+	}
+
+	static ThreadPoolExecutor newExecutor(int workers, int queueDepth){
+		BlockingQueue<Runnable> queue;
+		if(queueDepth > 0) queue = new ArrayBlockingQueue<Runnable>(queueDepth);
+		else queue = new SynchronousQueue<Runnable>();
+		ThreadPoolExecutor ex = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue);
+		ex.allowCoreThreadTimeOut(true);
+		executors.add(ex);
+		return ex;
+	}
+
+	static int queueLength(){
+		int n = 0;
+		for(ThreadPoolExecutor ex : executors) n += ex.getQueue().size();
+		return n;
+	}
+
+	static int busyWorkers(){
+		int n = 0;
+		for(ThreadPoolExecutor ex : executors) n += ex.getActiveCount();
+		return n;
+	}
+
+	//turns a connection away with a 503, before any of its request has been read.
+	static void shed(Socket client){
+		rejected.incrementAndGet();
+		Metrics.status(503);
+		try{
+			client.getOutputStream().write(SHED_RESPONSE);
+		}
+		catch(IOException ioe){
+			//it was going to be closed either way
+		}
+		Linger.close(client);
+	}
+
+	//the limiter for requests with this method, or null if there isnt one (those get a 501 or a 400 anyway).
+	static Limiter forMethod(String method){
+		if(method.equals("GET") || method.equals("HEAD")) return staticFiles;
+		if(method.equals("POST")) return cgi;
+		return null;
+	}
+
+	static String stats(){
+		String s = "";
+		if(!executors.isEmpty()) s += "queue: " + queueLength() + "/" + ServerConfig.queueDepth + " waiting, " + busyWorkers() + "/" + ServerConfig.workerThreads + " workers busy, ";
+		s += rejected.get() + " connections rejected" + '\n';
+		return s + staticFiles.stats() + cgi.stats();
+	}
+}
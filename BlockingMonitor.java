@@ -0,0 +1,117 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jdk.jfr.consumer.RecordingStream;
+
+
+
+//keeps track of the blocking calls a handler makes (reading files, starting and waiting on cgi processes).
+//for each kind of call this counts how many there were, how long they took, how many were on virtual threads,
+//and how often there were more calls in progress than carriers. all of it is plain atomic counters, nothing here locks.
+//none of that is pinning. file reads and Process.waitFor on a virtual thread do hold its carrier, but the jdk makes up for it
+//with an extra carrier while they do, so the other virtual threads keep running. a carrier is pinned when a virtual thread
+//blocks inside synchronized, or under a native frame, and nothing makes up for that.
+//so the pinning itself is counted from the jvm's own jdk.VirtualThreadPinned events, see watchPinning().
+class BlockingMonitor{
+
+	static final int FILE_READ = 0;
+	static final int CGI_START = 1;
+	static final int CGI_WAIT = 2;
+	static final int CGI_READ = 3;
+	static final String [] NAMES = {"file read", "cgi start", "cgi wait", "cgi read"};
+
+	//the virtual thread scheduler uses one carrier per core unless told otherwise.
+	static final int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+
+	static final AtomicLongArray calls = new AtomicLongArray(NAMES.length);
+	static final AtomicLongArray onVirtual = new AtomicLongArray(NAMES.length);
+	static final AtomicLongArray nanos = new AtomicLongArray(NAMES.length);
+	static final AtomicLongArray maxNanos = new AtomicLongArray(NAMES.length);
+	static final AtomicInteger inProgress = new AtomicInteger();
+	static final AtomicInteger peak = new AtomicInteger();
+	static final AtomicLong overCarriers = new AtomicLong();
+
+	//jdk.VirtualThreadPinned events: how many, and how long the carriers were held.
+	static final AtomicLong pinned = new AtomicLong();
+	static final AtomicLong pinnedNanos = new AtomicLong();
+	static volatile boolean watchingPins = false;
+
+	//Thread.isVirtual, if this jvm has it.
+	static final MethodHandle isVirtual = findIsVirtual();
+
+	static MethodHandle findIsVirtual(){
+		try{
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		}
+		catch(ReflectiveOperationException roe){
+			return null;
+		}
+	}
+
+	static boolean onVirtualThread(){
+		if(isVirtual == null) return false;
+		try{
+			return (boolean) isVirtual.invoke(Thread.currentThread());
+		}
+		catch(Throwable t){
+			return false;
+		}
+	}
+
+	//call right before a blocking call. the return value goes to exit() afterwards.
+	static long enter(){
+		int now = inProgress.incrementAndGet();
+		int p;
+		while(now > (p = peak.get()) && !peak.compareAndSet(p, now));
+		if(now > carriers) overCarriers.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	//call right after the blocking call returns (or throws), with what enter() gave back.
+	static void exit(int kind, long start){
+		long took = System.nanoTime() - start;
+		inProgress.decrementAndGet();
+		calls.incrementAndGet(kind);
+		nanos.addAndGet(kind, took);
+		if(onVirtualThread()) onVirtual.incrementAndGet(kind);
+		long m;
+		while(took > (m = maxNanos.get(kind)) && !maxNanos.compareAndSet(kind, m, took));
+	}
+
+	//counts the jvm's jdk.VirtualThreadPinned events, on a thread of the recording's own. it records a pin that held its carrier
+	//for longer than 20ms (the jdk's own default), shorter ones arent worth the event. a jvm without virtual threads doesnt have the event,
+	//and a jvm without jfr cant record it, and then there is nothing to count.
+	static void watchPinning(){
+		if(isVirtual == null) return;
+		try{
+			RecordingStream rs = new RecordingStream();
+			rs.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(20));
+			rs.onEvent("jdk.VirtualThreadPinned", e -> {
+				pinned.incrementAndGet();
+				pinnedNanos.addAndGet(e.getDuration().toNanos());
+			});
+			rs.startAsync();
+			watchingPins = true;
+		}
+		catch(RuntimeException | LinkageError e){
+			System.out.println("Pinned virtual threads arent counted, the JVM wont record them: " + e);
+		}
+	}
+
+	//one line per kind of call, plus the carrier numbers.
+	static String report(){
+		String s = "";
+		for(int i = 0; i < NAMES.length; i++){
+			long n = calls.get(i);
+			long avg = n == 0 ? 0 : nanos.get(i) / n / 1000;
+			s += NAMES[i] + ": " + n + " calls, " + onVirtual.get(i) + " on virtual threads, avg " + avg + "us, max " + (maxNanos.get(i) / 1000) + "us" + '\n';
+		}
+		s += "blocking calls at once: peak " + peak.get() + " with " + carriers + " carriers, " + overCarriers.get() + " calls went over" + '\n';
+		if(watchingPins) s += "pinned carriers: " + pinned.get() + " times, " + (pinnedNanos.get() / 1000000) + "ms in all" + '\n';
+		return s;
+	}
+}
@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//direct buffers for responses on their way out, taken and given back instead of allocated for every response.
+//there are a few sizes. each one is a single slab of direct memory (server.bufferPool.bytes split between them),
+//cut into slices up front, so nothing is allocated after that. acquire() takes the smallest size that fits, release() gives it back.
+//when every size that fits is out, or more is asked for than the biggest, acquire() makes a plain heap buffer instead
+//and counts it as exhausted. those arent the pool's, and releasing them does nothing, so whoever has a mix can just release all of them.
+//a buffer that stays out longer than server.bufferPool.leakSeconds is reported once as a likely leak.
+//that is checked whenever a size runs out, and whenever Metrics are served.
+class BufferPool{
+
+	static final int CHUNK = 8192; //headers and small writes
+	static final int LARGE = 64 * 1024; //bodies written in one go
+	static final int [] SIZES = {CHUNK, LARGE};
+
+	static final Size [] sizes = new Size[SIZES.length];
+
+	//every slice in the pool, to which size and slot it is (size << 24 | slot). only read after this class is set up.
+	static final IdentityHashMap<ByteBuffer, Integer> slots = new IdentityHashMap<>();
+
+	static final AtomicLong unpooled = new AtomicLong(); //asked for more than LARGE
+	static final AtomicLong leaks = new AtomicLong();
+	static final AtomicLong doubleReleases = new AtomicLong();
+	static volatile long lastCheck = System.nanoTime() - 1000000000L;
+
+	static{
+		long each = ServerConfig.bufferPoolBytes / SIZES.length;
+		for(int s = 0; s < SIZES.length; s++){
+			int count = (int) Math.min(each / SIZES[s], Integer.MAX_VALUE / SIZES[s]);
+			sizes[s] = new Size(SIZES[s], count);
+			for(int i = 0; i < count; i++) slots.put(sizes[s].slices[i], s << 24 | i);
+		}
+	}
+
+	//one size of buffer, and which of its slots are out.
+	static class Size{
+		int size;
+		ByteBuffer [] slices;
+		int [] free; //a stack of the slots in the pool, free[0..top)
+		int top;
+		long [] since; //when each slot was taken (System.nanoTime), 0 while it is in the pool
+		boolean [] reported; //already reported as leaked
+		Throwable [] sites; //where each slot was taken, with server.bufferPool.trackLeaks
+
+		AtomicLong acquired = new AtomicLong();
+		AtomicLong exhausted = new AtomicLong();
+
+		public Size(int s, int count){
+			size = s;
+			slices = new ByteBuffer[count];
+			free = new int[count];
+			since = new long[count];
+			reported = new boolean[count];
+			if(ServerConfig.bufferTrackLeaks) sites = new Throwable[count];
+			ByteBuffer slab = count == 0 ? null : ByteBuffer.allocateDirect(count * s);
+			for(int i = 0; i < count; i++){
+				slab.limit((i + 1) * s).position(i * s);
+				slices[i] = slab.slice();
+				free[i] = count - 1 - i;
+			}
+			top = count;
+		}
+
+		synchronized ByteBuffer take(){
+			if(top == 0) return null;
+			int i = free[--top];
+			since[i] = System.nanoTime();
+			if(sites != null) sites[i] = new Throwable("taken by " + Thread.currentThread().getName());
+			acquired.incrementAndGet();
+			return slices[i];
+		}
+
+		synchronized boolean give(int i){
+			if(since[i] == 0) return false;
+			since[i] = 0;
+			reported[i] = false;
+			if(sites != null) sites[i] = null;
+			slices[i].clear();
+			free[top++] = i;
+			return true;
+		}
+
+		synchronized int inUse(){
+			return slices.length - top;
+		}
+
+		//reports the slots out for longer than limit nanos, the first time they are seen.
+		synchronized void checkLeaks(long now, long limit){
+			for(int i = 0; i < since.length; i++){
+				if(since[i] == 0 || reported[i] || now - since[i] < limit) continue;
+				reported[i] = true;
+				leaks.incrementAndGet();
+				System.out.println("A " + size + " byte pool buffer has been out for " + (now - since[i]) / 1000000000L + " s, it was probably never released."
+					+ (sites == null ? " Run with -Dserver.bufferPool.trackLeaks=true to see where it was taken." : ""));
+				if(sites != null) sites[i].printStackTrace(System.out);
+			}
+		}
+	}
+
+	//a buffer with at least n bytes of room, cleared. it has to be given back with release() once whatever was put in it is written.
+	static ByteBuffer acquire(int n){
+		Size first = null;
+		for(Size s : sizes){
+			if(n > s.size) continue;
+			if(first == null) first = s;
+			ByteBuffer b = s.take();
+			if(b != null) return b;
+		}
+		if(first == null){
+			unpooled.incrementAndGet();
+			return ByteBuffer.allocate(n);
+		}
+		first.exhausted.incrementAndGet();
+		checkLeaks();
+		return ByteBuffer.allocate(first.size);
+	}
+
+	//gives a buffer from acquire() back. anything else is left alone.
+	static void release(ByteBuffer b){
+		Integer slot = slots.get(b);
+		if(slot == null) return;
+		if(!sizes[slot >>> 24].give(slot & 0xffffff) && doubleReleases.incrementAndGet() == 1){
+			System.out.println("A pool buffer was released twice. It could have been handed out again in between, and written over.");
+		}
+	}
+
+	//looks for leaks, at most once a second.
+	static void checkLeaks(){
+		long now = System.nanoTime();
+		if(now - lastCheck < 1000000000L) return;
+		lastCheck = now;
+		for(Size s : sizes) s.checkLeaks(now, ServerConfig.bufferLeakSeconds * 1000000000L);
+	}
+}
@@ -0,0 +1,285 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+
+//keeps cgi scripts running between requests, FastCGI style, so a POST doesnt have to pay for a fork and exec every time.
+//only scripts listed in server.cgi.pool (by SCRIPT_NAME, or "*" for all of them) get a pool, and they have to speak the protocol below.
+//they are started with CGI_POOLED=1 in their environment, so one script can tell which way it is being run.
+//
+//the protocol, over the script's stdin and stdout. one request at a time per process:
+//	server -> script:   "CGI/1 <number of variables> <body length>\n"
+//	                    then one "NAME=value\n" line per variable (CONTENT_LENGTH, SCRIPT_NAME, ...)
+//	                    then the body, exactly that many bytes
+//	script -> server:   "<output length>\n" and then exactly that many bytes of output
+//stderr goes to the server's stderr.
+//
+//each pool starts server.cgi.pool.min processes and grows up to server.cgi.pool.max.
+//processes that sit idle longer than server.cgi.pool.idle get stopped (down to min again), and dead ones are thrown out and replaced.
+//a process that breaks the protocol, or takes longer than server.cgi.timeout to answer, is killed.
+//if no process frees up in time, HandlerThread falls back to running the script once, the old way.
+class CgiPool{
+
+	//a response frame claiming to be bigger than this is taken as garbage.
+	static final int MAX_OUTPUT = 64 << 20;
+
+	static final ConcurrentHashMap<String, CgiPool> pools = new ConcurrentHashMap<String, CgiPool>();
+
+	static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cgi-pool-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static{
+		reaper.scheduleWithFixedDelay(CgiPool::reapAll, 1, 1, TimeUnit.SECONDS);
+	}
+
+	//what call() throws when the script took longer than server.cgi.timeout, so the client can get a 504 instead of a 500.
+	static class Timeout extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		public Timeout(String message){
+			super(message);
+		}
+	}
+
+	//one running script.
+	static class Worker{
+		Process process;
+		OutputStream in; //the script's stdin
+		InputStream out; //the script's stdout
+		DecodingOutputStream body; //request bodies are decoded through this on their way to in
+		long lastUsed = System.currentTimeMillis();
+	}
+
+	String scriptName;
+	File script;
+	int min;
+	int max;
+	long idleMillis;
+
+	ArrayDeque<Worker> idle = new ArrayDeque<Worker>();
+	int total = 0; //idle and busy
+
+	public CgiPool(String name, File f, int minimum, int maximum, long idleTimeout){
+		scriptName = name;
+		script = f;
+		min = minimum;
+		max = maximum;
+		idleMillis = idleTimeout;
+	}
+
+	//the pool for this script, started up the first time it is asked for. null if the script isnt configured to be pooled.
+	static CgiPool forScript(String scriptName, File script){
+		if(!pooled(scriptName)) return null;
+		return pools.computeIfAbsent(scriptName, name -> {
+			CgiPool pool = new CgiPool(name, script.getAbsoluteFile(), ServerConfig.cgiPoolMin, ServerConfig.cgiPoolMax, ServerConfig.cgiPoolIdle);
+			pool.fill();
+			return pool;
+		});
+	}
+
+	static boolean pooled(String scriptName){
+		String list = ServerConfig.cgiPool;
+		if(list.isEmpty()) return false;
+		if(list.equals("*")) return true;
+		for(String s : list.split(",")){
+			if(s.trim().equals(scriptName)) return true;
+		}
+		return false;
+	}
+
+	//runs one request on a pooled process and returns what it wrote back.
+	//the body is form data in buf[from..to), length bytes long once it is decoded. it is decoded as it is written to the script.
+	//returns null if every process stayed busy for server.cgi.pool.wait millis, or a new one couldnt be started, so the caller can run the script once instead.
+	//throws if the process broke the protocol, or didnt answer within server.cgi.timeout (it gets killed either way).
+	public byte [] call(Map<String, String> env, byte [] buf, int from, int to, int length) throws IOException{
+		Worker w = checkout();
+		if(w == null) return null;
+
+		//same as streamCgi. killing it ends the reads and writes below, whichever one it is stuck in.
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> killer = HandlerThread.cgiTimer.schedule(() -> {
+			timedOut.set(true);
+			w.process.descendants().forEach(ProcessHandle::destroyForcibly);
+			w.process.destroyForcibly();
+		}, ServerConfig.cgiTimeout, TimeUnit.MILLISECONDS);
+
+		boolean healthy = false;
+		try{
+			byte [] output = exchange(w, env, buf, from, to, length);
+			healthy = true;
+			return output;
+		}
+		catch(IOException ioe){
+			if(timedOut.get()) throw new Timeout("pooled cgi took longer than " + ServerConfig.cgiTimeout + " ms");
+			throw ioe;
+		}
+		finally{
+			killer.cancel(false);
+			checkin(w, healthy && !timedOut.get());
+		}
+	}
+
+	//writes one request frame and reads one response frame.
+	static byte [] exchange(Worker w, Map<String, String> env, byte [] buf, int from, int to, int bodyLength) throws IOException{
+		StringBuilder frame = new StringBuilder();
+		frame.append("CGI/1 ").append(env.size()).append(' ').append(bodyLength).append('\n');
+		for(Map.Entry<String, String> e : env.entrySet()){
+			frame.append(e.getKey()).append('=').append(e.getValue().replace('\n', ' ')).append('\n');
+		}
+		w.in.write(frame.toString().getBytes(StandardCharsets.ISO_8859_1));
+		w.body.write(buf, from, to - from);
+		w.body.finish(); //flushes w.in
+
+		long length = readLength(w.out);
+		if(length < 0 || length > MAX_OUTPUT) throw new IOException("bad response frame from pooled cgi");
+		byte [] output = new byte[(int) length];
+		int n = 0;
+		while(n < output.length){
+			int r = w.out.read(output, n, output.length - n);
+			if(r == -1) throw new IOException("pooled cgi quit partway through a response");
+			n += r;
+		}
+		return output;
+	}
+
+	//the "<length>\n" line. -1 if it isnt a number.
+	static long readLength(InputStream is) throws IOException{
+		long length = 0;
+		int digits = 0;
+		while(true){
+			int c = is.read();
+			if(c == -1) throw new IOException("pooled cgi quit before answering");
+			if(c == '\n') break;
+			if(c == '\r') continue;
+			if(c < '0' || c > '9' || digits > 18) return -1;
+			length = length * 10 + (c - '0');
+			digits++;
+		}
+		return digits == 0 ? -1 : length;
+	}
+
+	//an idle, living process, or a new one if there is room. waits up to server.cgi.pool.wait for one to free up otherwise.
+	Worker checkout(){
+		long deadline = System.currentTimeMillis() + ServerConfig.cgiPoolWait;
+		synchronized(this){
+			while(true){
+				while(!idle.isEmpty()){
+					Worker w = idle.pollLast(); //most recently used, so the others can go idle long enough to be reaped
+					if(w.process.isAlive()) return w;
+					retire(w);
+				}
+				if(total < max){
+					total++;
+					break;
+				}
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0) return null;
+				try{
+					wait(left);
+				}
+				catch(InterruptedException ie){
+					return null;
+				}
+			}
+		}
+
+		//room for one more. started outside the lock, since starting a process is slow.
+		Worker w = start();
+		if(w == null){
+			synchronized(this){
+				total--;
+				notifyAll();
+			}
+		}
+		return w;
+	}
+
+	synchronized void checkin(Worker w, boolean healthy){
+		if(healthy && w.process.isAlive()){
+			w.lastUsed = System.currentTimeMillis();
+			idle.addLast(w);
+		}
+		else retire(w);
+		notifyAll();
+	}
+
+	//kills a process and forgets about it. must hold the lock.
+	void retire(Worker w){
+		w.process.destroyForcibly();
+		total--;
+	}
+
+	Worker start(){
+		ProcessBuilder pb = new ProcessBuilder(script.toString());
+		pb.environment().put("CGI_POOLED", "1");
+		pb.environment().put("SCRIPT_NAME", scriptName);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+		long blockStart = BlockingMonitor.enter();
+		try{
+			Worker w = new Worker();
+			w.process = pb.start();
+			w.in = new BufferedOutputStream(w.process.getOutputStream());
+			w.out = new BufferedInputStream(w.process.getInputStream());
+			w.body = new DecodingOutputStream(w.in, true);
+			return w;
+		}
+		catch(IOException ioe){
+			return null;
+		}
+		finally{
+			BlockingMonitor.exit(BlockingMonitor.CGI_START, blockStart);
+		}
+	}
+
+	//starts processes until there are at least min of them.
+	void fill(){
+		while(true){
+			synchronized(this){
+				if(total >= min) return;
+				total++;
+			}
+			Worker w = start();
+			synchronized(this){
+				if(w == null){
+					total--;
+					return;
+				}
+				idle.addLast(w);
+				notifyAll();
+			}
+		}
+	}
+
+	//health check and idle timeout, once a second. dead processes go, and so do ones that have been idle too long, as long as more than min are left.
+	void reap(){
+		long now = System.currentTimeMillis();
+		synchronized(this){
+			Iterator<Worker> it = idle.iterator(); //oldest first
+			while(it.hasNext()){
+				Worker w = it.next();
+				if(!w.process.isAlive() || (now - w.lastUsed > idleMillis && total > min)){
+					it.remove();
+					retire(w);
+				}
+			}
+		}
+		fill();
+	}
+
+	static void reapAll(){
+		for(CgiPool pool : pools.values()) pool.reap();
+	}
+
+	public synchronized String stats(){
+		return "cgi pool " + scriptName + ": " + total + " processes, " + idle.size() + " idle";
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+
+
+
+//a chunked body, decoded as it is read. for one too big to read in with the headers, see RequestReader.
+//it starts with the part of the body that was read in along with the headers, then goes on to the connection.
+//it never reads past the end of the body: the size lines and trailers are read a byte at a time, and the data in a chunk
+//no further than the chunk goes. so whatever the client sent after the body is still there for the next request.
+//the decoded body is held to server.limits.body, the same as a Content-Length is. a body that goes over, or isnt chunked properly,
+//throws a Refused with the status to answer with. a client that stops partway through gets an EOFException.
+class ChunkedInputStream extends InputStream{
+
+	//what a bad body gets: 400 if it isnt chunked properly, 413 if it is too big.
+	static class Refused extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		String status;
+
+		public Refused(String status, String message){
+			super(message);
+			this.status = status;
+		}
+	}
+
+	byte [] buf; //what was already read in, from pos to end
+	int pos;
+	int end;
+	InputStream in; //then the rest
+	long chunkLeft = 0; //data still to come in the current chunk
+	boolean first = true; //no chunk yet, so there is no CRLF after one to read
+	boolean done = false;
+	long total = 0;
+	byte [] line = new byte[256]; //a size line, or a trailer. they are thrown away once read
+
+	public ChunkedInputStream(byte [] b, int from, int to, InputStream is){
+		buf = b;
+		pos = from;
+		end = to;
+		in = is;
+	}
+
+	public int read() throws IOException{
+		byte [] one = new byte[1];
+		int n = read(one, 0, 1);
+		return n == -1 ? -1 : one[0] & 0xff;
+	}
+
+	public int read(byte [] b, int off, int len) throws IOException{
+		if(len == 0) return 0;
+		if(done) return -1;
+		if(chunkLeft == 0){
+			if(!first && readLine() != 0) throw new Refused(RequestReader.BAD_FRAMING, "a chunk longer than its size");
+			first = false;
+			int n = readLine();
+			long size = RequestReader.chunkSize(line, 0, Math.min(n, line.length));
+			if(size < 0) throw new Refused(size == -2 ? RequestReader.PAYLOAD_TOO_LARGE : RequestReader.BAD_FRAMING, "a bad chunk size");
+			if(size == 0){
+				//trailers, until a blank line. nothing is done with them
+				long trailers = 0;
+				while((n = readLine()) != 0){
+					trailers += n + 2;
+					if(trailers > ServerConfig.maxHeaderBytes) throw new Refused(RequestReader.HEADERS_TOO_LARGE, "too many trailers");
+				}
+				done = true;
+				return -1;
+			}
+			if(total + size > ServerConfig.maxBody) throw new Refused(RequestReader.PAYLOAD_TOO_LARGE, "a chunked body over server.limits.body");
+			chunkLeft = size;
+		}
+		int n = readData(b, off, (int) Math.min(len, chunkLeft));
+		if(n == -1) throw new EOFException("the client stopped partway through a chunk, with " + chunkLeft + " bytes to go");
+		chunkLeft -= n;
+		total += n;
+		return n;
+	}
+
+	//reads a line into line, and returns how long it is, less the CRLF. only as much of a line as fits is kept, the rest just counts.
+	int readLine() throws IOException{
+		int n = 0;
+		while(true){
+			int c = readByte();
+			if(c == -1) throw new EOFException("the client stopped partway through a chunked body");
+			if(c == '\r'){
+				if(readByte() != '\n') throw new Refused(RequestReader.BAD_FRAMING, "a chunk line without its CRLF");
+				return n;
+			}
+			if(n < line.length) line[n] = (byte) c;
+			n++;
+			if(n > ServerConfig.maxRequestLine) throw new Refused(RequestReader.BAD_FRAMING, "a chunk line that doesnt end");
+		}
+	}
+
+	int readByte() throws IOException{
+		if(pos < end) return buf[pos++] & 0xff;
+		return in.read();
+	}
+
+	int readData(byte [] b, int off, int len) throws IOException{
+		if(pos < end){
+			int n = Math.min(len, end - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		return in.read(b, off, len);
+	}
+
+	public int available() throws IOException{
+		if(done) return 0;
+		return (int) Math.min(chunkLeft, pos < end ? end - pos : in.available());
+	}
+}
@@ -0,0 +1,48 @@
+import java.io.*;
+
+
+
+//writes everything it is given as HTTP/1.1 chunks, for responses whose length isnt known when the headers go out.
+//close() writes the last (empty) chunk but leaves the stream underneath open, since the connection may be kept.
+class ChunkedOutputStream extends FilterOutputStream{
+
+	static final byte [] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+	//each chunk is put together in here (size line, data, CRLF) so it goes out in one write, not three small ones.
+	byte [] frame = new byte[0];
+	boolean closed = false;
+
+	public ChunkedOutputStream(OutputStream os){
+		super(os);
+	}
+
+	public void write(int b) throws IOException{
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		if(len == 0) return; //an empty chunk would mean the end
+		if(frame.length < len + 12) frame = new byte[len + 12]; //8 hex digits at most, and two CRLFs
+
+		int digits = 0;
+		for(int v = len; v != 0; v >>>= 4) digits++;
+		int n = 0;
+		for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4){
+			frame[n++] = (byte) Character.forDigit((len >>> shift) & 0xf, 16);
+		}
+		frame[n++] = '\r';
+		frame[n++] = '\n';
+		System.arraycopy(b, off, frame, n, len);
+		n += len;
+		frame[n++] = '\r';
+		frame[n++] = '\n';
+		out.write(frame, 0, n);
+	}
+
+	public void close() throws IOException{
+		if(closed) return;
+		closed = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+
+//compresses what is written through it as gzip or deflate (zlib), and writes that to the stream underneath.
+//flush() pushes out everything written so far (a zlib sync flush), so it can stream, at some cost in how well it compresses.
+//finish() ends the compressed data without closing the stream underneath. close() does both.
+//either one gives the Deflater back. a stream that is given up on partway has to call release() instead.
+class CompressingOutputStream extends FilterOutputStream{
+
+	String encoding;
+	Deflater deflater;
+	CRC32 crc = null; //gzip only
+	byte [] buf = new byte[8192];
+	byte [] one = new byte[1];
+	boolean finished = false;
+
+	public CompressingOutputStream(OutputStream os, String encoding) throws IOException{
+		super(os);
+		this.encoding = encoding;
+		deflater = Compression.deflater(encoding);
+		if(encoding == Compression.GZIP){
+			crc = new CRC32();
+			out.write(Compression.GZIP_HEADER);
+		}
+	}
+
+	public void write(int b) throws IOException{
+		one[0] = (byte) b;
+		write(one, 0, 1);
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		if(len == 0) return;
+		if(crc != null) crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput()) drain(Deflater.NO_FLUSH);
+	}
+
+	public void write(ByteBuffer b) throws IOException{
+		if(crc != null) crc.update(b.duplicate());
+		deflater.setInput(b);
+		while(!deflater.needsInput()) drain(Deflater.NO_FLUSH);
+	}
+
+	public void flush() throws IOException{
+		while(drain(Deflater.SYNC_FLUSH) == buf.length);
+		out.flush();
+	}
+
+	public void finish() throws IOException{
+		if(finished) return;
+		finished = true;
+		deflater.finish();
+		while(!deflater.finished()) drain(Deflater.NO_FLUSH);
+		if(crc != null){
+			writeIntLE((int) crc.getValue());
+			writeIntLE((int) deflater.getBytesRead()); //the length mod 2^32, as gzip wants
+		}
+		release();
+		out.flush();
+	}
+
+	//gives the Deflater back, once. nothing can be written after this.
+	public void release(){
+		finished = true;
+		if(deflater == null) return;
+		Compression.release(deflater, encoding);
+		deflater = null;
+	}
+
+	public void close() throws IOException{
+		try{
+			finish();
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	int drain(int mode) throws IOException{
+		int n = deflater.deflate(buf, 0, buf.length, mode);
+		if(n > 0) out.write(buf, 0, n);
+		return n;
+	}
+
+	void writeIntLE(int v) throws IOException{
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+		out.write((v >>> 16) & 0xff);
+		out.write((v >>> 24) & 0xff);
+	}
+}
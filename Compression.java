@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+
+
+
+//gzip and deflate for responses.
+//which one a client gets comes from its Accept-Encoding (negotiate). only text is compressed, going by contentType(),
+//since png, gif, jpeg, zip and the rest are compressed already and would just cost cpu for nothing.
+//for a static file, a precompressed sibling (file.html.gz) is sent as it is if it is at least as new as the file.
+//otherwise the file is compressed once, and the result kept in a bounded LRU cache keyed by path and encoding,
+//and checked against the file's mtime and size on every hit.
+//cgi output is compressed as it streams, see CompressingOutputStream.
+//Deflaters are borrowed from a small pool per encoding and given back, since making one sets up a good chunk of native memory.
+//(not one per thread, virtual mode and HTTP/2 streams start a new thread all the time, and each would leave its Deflater to the gc.)
+class Compression{
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	//the fixed gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown os.
+	static final byte [] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	//one compressed form of a file. either body (from the cache) or file (a precompressed sibling) is set.
+	static class Variant{
+		String key;
+		long lastModified; //of the plain file it was made from
+		long size; //same
+		ByteBuffer body; //read only, use duplicate() to send it
+		File file;
+		long length;
+		String etag;
+	}
+
+	static final LinkedHashMap<String, Variant> cache = new LinkedHashMap<String, Variant>(64, 0.75f, true);
+	static long cacheBytes = 0;
+
+	//the most idle Deflaters kept for each encoding. one given back when there are already this many is ended instead.
+	static final int POOLED_DEFLATERS = 16;
+
+	static final ArrayDeque<Deflater> gzipDeflaters = new ArrayDeque<Deflater>();
+	static final ArrayDeque<Deflater> zlibDeflaters = new ArrayDeque<Deflater>();
+
+	//is a response of this type and length worth compressing? a negative length means it isnt known yet (cgi).
+	static boolean applies(String type, long length){
+		if(!ServerConfig.compression) return false;
+		if(length >= 0 && length < ServerConfig.compressionMinSize) return false;
+		return type.startsWith("text/");
+	}
+
+	//gzip, deflate, or null for neither, going by the request's Accept-Encoding and the q values in it.
+	//gzip wins a tie. "*" counts for whichever one isnt named. q=0 means not that one.
+	static String negotiate(HttpRequest request){
+		int h = request.findHeader("Accept-Encoding");
+		if(h == -1) return null;
+		byte [] buf = request.buf;
+		int end = request.valueEnd[h];
+		int gzip = -1;
+		int deflate = -1;
+		int any = -1;
+
+		int i = request.valueStart[h];
+		while(i < end){
+			while(i < end && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == ',')) i++;
+			int nameStart = i;
+			while(i < end && buf[i] != ',' && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t') i++;
+			int nameEnd = i;
+			int q = 1000;
+			while(i < end && buf[i] != ','){
+				if((buf[i] == 'q' || buf[i] == 'Q') && i + 1 < end && buf[i + 1] == '=') q = quality(buf, i + 2, end);
+				i++;
+			}
+			if(named(buf, nameStart, nameEnd, GZIP) || named(buf, nameStart, nameEnd, "x-gzip")) gzip = q;
+			else if(named(buf, nameStart, nameEnd, DEFLATE)) deflate = q;
+			else if(nameEnd - nameStart == 1 && buf[nameStart] == '*') any = q;
+		}
+		if(gzip == -1) gzip = any;
+		if(deflate == -1) deflate = any;
+		if(gzip > 0 && gzip >= deflate) return GZIP;
+		if(deflate > 0) return DEFLATE;
+		return null;
+	}
+
+	static boolean named(byte [] buf, int from, int to, String name){
+		return to - from == name.length() && Conditional.regionEqualsIgnoreCase(buf, from, name);
+	}
+
+	//a q value, in thousandths. "1", "0.5", "0.25" and so on.
+	static int quality(byte [] buf, int i, int end){
+		if(i >= end) return 1000;
+		if(buf[i] == '1') return 1000;
+		if(buf[i] != '0') return 0;
+		i++;
+		if(i >= end || buf[i] != '.') return 0;
+		i++;
+		int q = 0;
+		int scale = 100;
+		for(; i < end && buf[i] >= '0' && buf[i] <= '9' && scale > 0; i++, scale /= 10) q += (buf[i] - '0') * scale;
+		return q;
+	}
+
+	//the compressed form of the file, or null if there isnt going to be one (too big, or unreadable, in which case it goes out plain).
+	//identity is the file's bytes if FileCache has them, or null to read them from disk. key is FileCache's key for the file.
+	static Variant variant(String key, File file, String encoding, long size, long lastModified, String etag, ByteBuffer identity){
+		if(key == null) return null;
+
+		//one that was compressed ahead of time beats anything made here
+		if(encoding == GZIP){
+			File sibling = new File(file.getPath() + ".gz");
+			long siblingModified = sibling.lastModified();
+			if(siblingModified >= lastModified && sibling.isFile()){
+				Variant v = new Variant();
+				v.file = sibling;
+				v.length = sibling.length();
+				v.lastModified = lastModified;
+				v.size = size;
+				v.etag = Conditional.etag(v.length, siblingModified);
+				return v;
+			}
+		}
+
+		String cacheKey = key + '\0' + encoding;
+		synchronized(Compression.class){
+			Variant v = cache.get(cacheKey);
+			if(v != null && v.lastModified == lastModified && v.size == size) return v;
+		}
+
+		if(size > ServerConfig.compressionMaxFile) return null;
+		byte [] compressed;
+		try{
+			if(identity == null) identity = read(file, size);
+			compressed = compress(identity.duplicate(), encoding);
+		}
+		catch(IOException ioe){
+			return null;
+		}
+
+		Variant v = new Variant();
+		v.key = cacheKey;
+		v.lastModified = lastModified;
+		v.size = size;
+		v.body = ByteBuffer.wrap(compressed).asReadOnlyBuffer();
+		v.length = compressed.length;
+		v.etag = etag.substring(0, etag.length() - 1) + '-' + encoding + '"'; //its own tag, since it isnt the same bytes as the plain file
+		if(v.length > ServerConfig.compressionCacheBytes || Conditional.weak(etag)) return v; //a weak tag would be cached along with it
+
+		synchronized(Compression.class){
+			Variant old = cache.put(cacheKey, v);
+			if(old != null) cacheBytes -= old.length;
+			cacheBytes += v.length;
+			Iterator<Variant> it = cache.values().iterator();
+			while(cacheBytes > ServerConfig.compressionCacheBytes && it.hasNext()){
+				Variant victim = it.next();
+				if(victim == v) continue;
+				it.remove();
+				cacheBytes -= victim.length;
+			}
+		}
+		return v;
+	}
+
+	static ByteBuffer read(File file, long size) throws IOException{
+		ByteBuffer bytes = ByteBuffer.allocate((int) size);
+		long blockStart = BlockingMonitor.enter();
+		try(FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			while(bytes.hasRemaining() && fc.read(bytes) != -1);
+		}
+		finally{
+			BlockingMonitor.exit(BlockingMonitor.FILE_READ, blockStart);
+		}
+		if(bytes.hasRemaining()) throw new IOException("the file got shorter while it was being read");
+		bytes.flip();
+		return bytes;
+	}
+
+	//all of in, compressed in one go.
+	static byte [] compress(ByteBuffer in, String encoding){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.remaining() / 3 + 64);
+		try(CompressingOutputStream out = new CompressingOutputStream(bytes, encoding)){
+			out.write(in);
+		}
+		catch(IOException ioe){
+			throw new UncheckedIOException(ioe); //a ByteArrayOutputStream doesnt throw
+		}
+		return bytes.toByteArray();
+	}
+
+	//a Deflater for the encoding, ready to go. it has to be given back with release().
+	static Deflater deflater(String encoding){
+		ArrayDeque<Deflater> pool = encoding == GZIP ? gzipDeflaters : zlibDeflaters;
+		Deflater d;
+		synchronized(pool){
+			d = pool.pollLast();
+		}
+		return d != null ? d : new Deflater(ServerConfig.compressionLevel, encoding == GZIP);
+	}
+
+	//a Deflater back from deflater(), whatever state it was left in.
+	static void release(Deflater d, String encoding){
+		ArrayDeque<Deflater> pool = encoding == GZIP ? gzipDeflaters : zlibDeflaters;
+		d.reset();
+		synchronized(pool){
+			if(pool.size() < POOLED_DEFLATERS){
+				pool.addLast(d);
+				return;
+			}
+		}
+		d.end();
+	}
+}
@@ -0,0 +1,158 @@
+//the parts of a GET that depend on what the client already has: validators (ETag and Last-Modified),
+//the conditional headers that check them (If-None-Match, If-Modified-Since, If-Range), and byte ranges.
+//everything here reads straight from the request's bytes, and nothing allocates except etag() making its String.
+class Conditional{
+
+	//a Range with more parts than this is answered with the whole file instead. so is one whose parts add up to more than the file.
+	static final int MAX_RANGES = 16;
+
+	//the ETag for a file of this size and modification time, e.g. "1f4-18b3a5c7e10".
+	//a file changed less than a second ago could change again within the same second without its time moving, so that one is weak.
+	//which means a tag depends on when it was made. a weak one mustnt be kept around (see weak()), or the file would keep it
+	//long after it settled, and If-Range, which needs a strong one, would never match it.
+	static String etag(long size, long lastModified){
+		String tag = '"' + Long.toHexString(size) + '-' + Long.toHexString(lastModified) + '"';
+		if(System.currentTimeMillis() - lastModified < 1000) return "W/" + tag;
+		return tag;
+	}
+
+	static boolean weak(String etag){
+		return etag.startsWith("W/");
+	}
+
+	//true if the client's copy is still good, so a 304 can go instead of the file.
+	//If-None-Match decides if it is there (weak comparison, "*" matches anything), otherwise If-Modified-Since does.
+	//HTTP dates only go down to the second, so lastModified is cut down to whole seconds before comparing.
+	static boolean fresh(HttpRequest request, long lastModified, String etag){
+		int h = request.findHeader("If-None-Match");
+		if(h != -1) return listMatches(request, h, etag);
+
+		h = request.findHeader("If-Modified-Since");
+		if(h == -1) return false;
+		long since = HttpDate.parse(request.header("If-Modified-Since"));
+		if(since == -1 || since > System.currentTimeMillis()) return false; //a date from the future isnt a real one
+		return lastModified / 1000 * 1000 <= since;
+	}
+
+	//does the comma separated list of entity tags in header h have one that matches etag, ignoring W/ on either side?
+	static boolean listMatches(HttpRequest request, int h, String etag){
+		byte [] buf = request.buf;
+		int end = request.valueEnd[h];
+		int tagStart = etag.startsWith("W/") ? 2 : 0;
+		int i = request.valueStart[h];
+		while(i < end){
+			while(i < end && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == ',')) i++;
+			int itemEnd = i;
+			while(itemEnd < end && buf[itemEnd] != ',') itemEnd++;
+			int j = itemEnd;
+			while(j > i && (buf[j - 1] == ' ' || buf[j - 1] == '\t')) j--;
+			if(j - i == 1 && buf[i] == '*') return true;
+			int from = i;
+			if(j - from > 2 && buf[from] == 'W' && buf[from + 1] == '/') from += 2;
+			if(regionEquals(buf, from, j, etag, tagStart)) return true;
+			i = itemEnd;
+		}
+		return false;
+	}
+
+	static boolean regionEquals(byte [] buf, int from, int to, String s, int sFrom){
+		if(to - from != s.length() - sFrom) return false;
+		for(int k = 0; k < to - from; k++){
+			if(buf[from + k] != s.charAt(sFrom + k)) return false;
+		}
+		return true;
+	}
+
+	//works out which bytes a GET with a Range header wants, into ranges as first,last pairs (both inclusive). returns:
+	//	0 if the whole file should go: no Range, one that isnt "bytes=" or doesnt parse (those are ignored, as the spec says),
+	//	  too many parts, or an If-Range that doesnt match what the file is now
+	//	-1 if none of the parts are inside the file, which is a 416
+	//	otherwise how many pairs are in ranges. parts that start past the end are dropped, ones that go past it are cut short.
+	static int ranges(HttpRequest request, long size, long lastModified, String etag, long [] ranges){
+		int h = request.findHeader("Range");
+		if(h == -1) return 0;
+		if(!ifRangeMatches(request, lastModified, etag)) return 0;
+
+		byte [] buf = request.buf;
+		int i = request.valueStart[h];
+		int end = request.valueEnd[h];
+		if(end - i < 6 || !regionEqualsIgnoreCase(buf, i, "bytes=")) return 0;
+		i += 6;
+
+		int n = 0;
+		int parts = 0;
+		long total = 0;
+		while(i < end){
+			while(i < end && (buf[i] == ' ' || buf[i] == '\t')) i++;
+			if(i < end && buf[i] == ','){
+				i++;
+				continue;
+			}
+			if(i == end) break;
+			if(++parts > MAX_RANGES) return 0;
+
+			long first = -1;
+			long last = -1;
+			int digits = 0;
+			long v = 0;
+			for(; i < end && buf[i] >= '0' && buf[i] <= '9'; i++, digits++){
+				if(digits > 17) return 0;
+				v = v * 10 + (buf[i] - '0');
+			}
+			if(digits > 0) first = v;
+			if(i == end || buf[i] != '-') return 0;
+			i++;
+			digits = 0;
+			v = 0;
+			for(; i < end && buf[i] >= '0' && buf[i] <= '9'; i++, digits++){
+				if(digits > 17) return 0;
+				v = v * 10 + (buf[i] - '0');
+			}
+			if(digits > 0) last = v;
+			while(i < end && (buf[i] == ' ' || buf[i] == '\t')) i++;
+			if(i < end && buf[i] != ',') return 0;
+
+			if(first == -1){
+				//"-n" is the last n bytes
+				if(last == -1) return 0;
+				if(last == 0 || size == 0) continue;
+				first = Math.max(0, size - last);
+				last = size - 1;
+			}
+			else{
+				if(last != -1 && last < first) return 0;
+				if(first >= size) continue;
+				if(last == -1 || last >= size) last = size - 1;
+			}
+
+			total += last - first + 1;
+			if(total > size) return 0;
+			ranges[2 * n] = first;
+			ranges[2 * n + 1] = last;
+			n++;
+		}
+		if(parts == 0) return 0;
+		return n == 0 ? -1 : n;
+	}
+
+	//If-Range holds either an ETag, which has to match exactly (and cant be weak), or a date, which has to be the file's Last-Modified.
+	//if it doesnt match, the file changed since the client got its part, so it gets all of it.
+	static boolean ifRangeMatches(HttpRequest request, long lastModified, String etag){
+		int h = request.findHeader("If-Range");
+		if(h == -1) return true;
+		byte [] buf = request.buf;
+		int from = request.valueStart[h];
+		int to = request.valueEnd[h];
+		if(to > from && (buf[from] == '"' || buf[from] == 'W')){
+			return !etag.startsWith("W/") && regionEquals(buf, from, to, etag, 0);
+		}
+		return HttpDate.parse(request.header("If-Range")) == lastModified / 1000 * 1000;
+	}
+
+	static boolean regionEqualsIgnoreCase(byte [] buf, int from, String s){
+		for(int k = 0; k < s.length(); k++){
+			if(Character.toLowerCase(buf[from + k]) != s.charAt(k)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,28 @@
+import java.io.*;
+
+
+
+//counts what goes through it, for the bytes an access log record says were sent.
+class CountingOutputStream extends FilterOutputStream{
+
+	long count = 0;
+
+	public CountingOutputStream(OutputStream out){
+		super(out);
+	}
+
+	public void write(int b) throws IOException{
+		out.write(b);
+		count++;
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		out.write(b, off, len);
+		count += len;
+	}
+
+	//what is being counted, for writing to without counting it.
+	OutputStream inner(){
+		return out;
+	}
+}
@@ -0,0 +1,55 @@
+import java.io.*;
+
+
+
+//decodes form data as it is written through it, and writes the decoded bytes to the stream underneath.
+//an escape can be split between two writes, so the %, and the first hex digit after it, are held on to until the rest comes.
+//the stream underneath should be buffered, since the decoded bytes go to it one at a time.
+class DecodingOutputStream extends FilterOutputStream{
+
+	boolean form;
+	int held = 0; //0 normally, 1 after a %, 2 after a % and one hex digit
+	int high;
+
+	public DecodingOutputStream(OutputStream os, boolean formData){
+		super(os);
+		form = formData;
+	}
+
+	public void write(int b) throws IOException{
+		b &= 0xff;
+		if(held == 0){
+			if(b == '%') held = 1;
+			else out.write(form && b == '+' ? ' ' : b);
+			return;
+		}
+		int digit = PercentDecoder.HEX[b];
+		if(digit < 0) throw new CharConversionException("bad percent-encoding");
+		if(held == 1){
+			high = digit;
+			held = 2;
+			return;
+		}
+		out.write(high << 4 | digit);
+		held = 0;
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		for(int i = off; i < off + len; i++) write(b[i]);
+	}
+
+	//checks that the input didnt stop in the middle of an escape, and flushes. the stream underneath stays open.
+	public void finish() throws IOException{
+		if(held != 0) throw new CharConversionException("percent-encoding cut off at the end");
+		out.flush();
+	}
+
+	public void close() throws IOException{
+		try{
+			finish();
+		}
+		finally{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//everything under the server's directory, with what a response needs to know about each file worked out ahead of time:
+//size, modified time, mime type, etag, and whether it is a directory, readable and executable.
+//serving a file that is in here doesnt stat it at all, where it used to take three or four (exists, isDirectory, length, lastModified).
+//it is built by walking the tree at startup, and kept up to date by a WatchService on every directory in it.
+//with server.index.file it is also saved when the server stops, and the next start maps that file in and serves from it right away,
+//walking the tree again in the background to pick up whatever changed in between.
+//readers never lock. the entries are in a table (Snapshot) that never changes once it is made, and changes since then sit in
+//a ConcurrentHashMap in front of it. the one thread that makes changes folds them into a new snapshot now and then.
+//the index is only ever a shortcut: a path it hasnt heard of yet is looked up on the disk, and a file that changed size
+//since it was indexed is noticed when it is opened. see HandlerThread.serveFile.
+class DocIndex{
+
+	static final int DIRECTORY = 1;
+	static final int READABLE = 2;
+	static final int EXECUTABLE = 4;
+
+	static final byte [] MAGIC = "DOCIDX1\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	//the directory the server serves, which is the one it was started in.
+	static final Path ROOT = Paths.get("").toAbsolutePath();
+
+	//the one serveFile and serveCgi use, null when server.index is off. set up by start().
+	static DocIndex shared = null;
+
+	//one file or directory. the path is relative to the root and starts with "/", like a request's.
+	static final class Entry{
+		final String path;
+		final long size;
+		final long lastModified;
+		final int flags;
+		final String type; //null for directories
+		String etag; //made the first time it is asked for, and kept once it is strong. two threads making it at once get the same string
+
+		Entry(String path, long size, long lastModified, int flags){
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.flags = flags;
+			this.type = (flags & DIRECTORY) != 0 ? null : HandlerThread.contentType(path.substring(path.lastIndexOf('/') + 1));
+		}
+
+		String etag(){
+			String e = etag;
+			if(e != null) return e;
+			e = Conditional.etag(size, lastModified);
+			if(!Conditional.weak(e)) etag = e;
+			return e;
+		}
+
+		boolean directory(){
+			return (flags & DIRECTORY) != 0;
+		}
+
+		boolean readable(){
+			return (flags & READABLE) != 0;
+		}
+
+		boolean executable(){
+			return (flags & EXECUTABLE) != 0;
+		}
+	}
+
+	//in changes, a path that was deleted since the snapshot was made.
+	static final Entry REMOVED = new Entry("/", 0, 0, DIRECTORY);
+
+	//an open addressing table, made once and only read after that.
+	static final class Snapshot{
+		final Entry [] table;
+		final int mask;
+		final int count;
+
+		Snapshot(Collection<Entry> entries){
+			int size = Integer.highestOneBit(Math.max(4, entries.size() * 2 - 1)) << 1; //at most half full
+			table = new Entry[size];
+			mask = size - 1;
+			for(Entry e : entries){
+				int i = spread(e.path.hashCode()) & mask;
+				while(table[i] != null) i = (i + 1) & mask;
+				table[i] = e;
+			}
+			count = entries.size();
+		}
+
+		Entry get(String path){
+			int i = spread(path.hashCode()) & mask;
+			while(true){
+				Entry e = table[i];
+				if(e == null || e.path.equals(path)) return e;
+				i = (i + 1) & mask;
+			}
+		}
+
+		static int spread(int h){
+			return h ^ (h >>> 16);
+		}
+	}
+
+	final Path root;
+	volatile Snapshot snapshot = new Snapshot(Collections.<Entry>emptyList());
+	final ConcurrentHashMap<String, Entry> changes = new ConcurrentHashMap<String, Entry>(); //newer than snapshot, REMOVED for deletions
+	WatchService watcher = null;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong rebuilds = new AtomicLong();
+
+	public DocIndex(Path root){
+		this.root = root.toAbsolutePath();
+	}
+
+	//builds the shared index, if server.index is on. a saved one in server.index.file is used if it is there and for this directory.
+	static void start() throws IOException{
+		if(!ServerConfig.index) return;
+		Path saved = ServerConfig.indexFile.isEmpty() ? null : Paths.get(ServerConfig.indexFile);
+		DocIndex index = new DocIndex(ROOT);
+		index.open(saved);
+		shared = index;
+		if(saved != null){
+			Lifecycle.atExit(() -> {
+				try{
+					index.save(saved);
+				}
+				catch(IOException ioe){
+					System.out.println("Could not save the document root index to " + saved + ": " + ioe);
+				}
+			});
+		}
+	}
+
+	//loads saved (or walks the tree if it cant), then starts watching for changes.
+	public void open(Path saved) throws IOException{
+		watcher = FileSystems.getDefault().newWatchService();
+		boolean loaded = saved != null && load(saved);
+		if(!loaded){
+			Map<String, Entry> found = new HashMap<String, Entry>();
+			walk(root, found);
+			snapshot = new Snapshot(found.values());
+			if(saved != null) save(saved);
+		}
+		Thread t = new Thread(() -> {
+			try{
+				if(loaded) rescan(root); //whatever changed while the server was down. this also starts the directories being watched
+			}
+			catch(ClosedWatchServiceException cwse){
+				return;
+			}
+			watchLoop();
+		}, "doc-index");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	//the entry for path, which has already been through normalize(), or null if there is nothing there. counts as a hit or a miss.
+	public Entry get(String path){
+		Entry e = find(path);
+		if(e == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return e;
+	}
+
+	Entry find(String path){
+		Entry e = changes.isEmpty() ? null : changes.get(path);
+		if(e == null) return snapshot.get(path);
+		return e == REMOVED ? null : e;
+	}
+
+	//about how many entries there are. until they are folded into the snapshot, changed ones count twice and deleted ones still count.
+	public int size(){
+		return snapshot.count + changes.size();
+	}
+
+	//the entry for a request's path: from the shared index when there is one and it has it, otherwise straight from the disk.
+	//null if nothing is there.
+	static Entry lookup(String path){
+		DocIndex index = shared;
+		Entry e = index == null ? null : index.get(path);
+		return e != null ? e : stat(ROOT, path);
+	}
+
+	//one path, looked up on the disk. null if there is nothing there.
+	static Entry stat(Path root, String path){
+		try{
+			Path p = root.resolve(path.substring(1));
+			return entry(path, p, Files.readAttributes(p, BasicFileAttributes.class));
+		}
+		catch(IOException | InvalidPathException e){
+			return null;
+		}
+	}
+
+	static Entry entry(String path, Path p, BasicFileAttributes a){
+		int flags = 0;
+		if(a.isDirectory()) flags |= DIRECTORY;
+		if(Files.isReadable(p)) flags |= READABLE;
+		if(Files.isExecutable(p)) flags |= EXECUTABLE;
+		return new Entry(path, a.size(), a.lastModifiedTime().toMillis(), flags);
+	}
+
+	//what p is called in the index.
+	String key(Path p){
+		String relative = root.relativize(p).toString();
+		return relative.isEmpty() ? "/" : "/" + relative;
+	}
+
+	//resource with its "." and ".." segments worked out and runs of slashes made one, or null if a ".." would climb out of the root.
+	//most paths have none of that, and come back as they are without anything being made.
+	static String normalize(String resource){
+		if(resource.isEmpty() || resource.charAt(0) != '/') return null;
+		if(clean(resource)) return resource;
+
+		StringBuilder sb = new StringBuilder(resource.length());
+		int i = 0;
+		int n = resource.length();
+		while(i < n){
+			int end = resource.indexOf('/', i + 1);
+			if(end == -1) end = n;
+			int length = end - i - 1;
+			if(length == 0 || (length == 1 && resource.charAt(i + 1) == '.')){
+				//nothing, or "."
+			}
+			else if(length == 2 && resource.charAt(i + 1) == '.' && resource.charAt(i + 2) == '.'){
+				if(sb.length() == 0) return null;
+				sb.setLength(sb.lastIndexOf("/"));
+			}
+			else{
+				sb.append(resource, i, end);
+			}
+			i = end;
+		}
+		if(sb.length() == 0 || resource.charAt(n - 1) == '/' || resource.endsWith("/.") || resource.endsWith("/..")) sb.append('/');
+		return sb.toString();
+	}
+
+	//true if no segment is "", "." or "..", apart from a "/" on the end.
+	static boolean clean(String resource){
+		int n = resource.length();
+		for(int i = 0; i < n; i++){
+			if(resource.charAt(i) != '/') continue;
+			int next = i + 1 < n ? resource.charAt(i + 1) : -1;
+			if(next == '/') return false;
+			if(next != '.') continue;
+			int after = i + 2 < n ? resource.charAt(i + 2) : '/';
+			if(after == '/') return false;
+			if(after == '.' && (i + 3 == n || resource.charAt(i + 3) == '/')) return false;
+		}
+		return true;
+	}
+
+	//puts dir and everything under it into found, watching each directory on the way.
+	void walk(Path dir, Map<String, Entry> found) throws IOException{
+		Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>(){
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes a) throws IOException{
+				if(watcher != null) d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				String k = key(d);
+				found.put(k, entry(k, d, a));
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(Path f, BasicFileAttributes a){
+				String k = key(f);
+				found.put(k, entry(k, f, a));
+				return FileVisitResult.CONTINUE;
+			}
+
+			//an unreadable directory, a broken link. it just isnt in the index, and gets looked up on the disk like anything else that isnt.
+			public FileVisitResult visitFileFailed(Path f, IOException ioe){
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	//applies what the watcher says changed. only this thread changes the index, so the snapshot can be swapped without a lock.
+	void watchLoop(){
+		while(true){
+			WatchKey key;
+			try{
+				key = watcher.take();
+			}
+			catch(InterruptedException | ClosedWatchServiceException e){
+				return;
+			}
+			Path dir = (Path) key.watchable();
+			for(WatchEvent<?> event : key.pollEvents()){
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW) rescan(dir);
+				else changed(dir.resolve((Path) event.context()));
+			}
+			key.reset(); //a directory that is gone stops being watched. its parent gets told it was deleted
+			if(changes.size() > Math.max(1024, snapshot.count / 16)) rebuild();
+		}
+	}
+
+	//brings one path up to date. a new directory gets walked, and a deleted one takes everything under it along.
+	void changed(Path p){
+		String k = key(p);
+		Entry old = find(k);
+		BasicFileAttributes a;
+		try{
+			a = Files.readAttributes(p, BasicFileAttributes.class);
+		}
+		catch(IOException ioe){
+			changes.put(k, REMOVED);
+			if(old != null && old.directory()) removeUnder(k, Collections.<String, Entry>emptyMap());
+			return;
+		}
+		if(a.isDirectory() && (old == null || !old.directory())){
+			rescan(p);
+			return;
+		}
+		changes.put(k, entry(k, p, a));
+	}
+
+	//walks dir again and makes the index under it match what is there. for when the watcher lost track (OVERFLOW), and after a load.
+	void rescan(Path dir){
+		Map<String, Entry> found = new HashMap<String, Entry>();
+		try{
+			walk(dir, found);
+		}
+		catch(IOException ioe){
+			System.out.println("Could not walk " + dir + " for the document root index: " + ioe);
+		}
+		String k = key(dir);
+		removeUnder(k, found);
+		if(!found.containsKey(k)) changes.put(k, REMOVED);
+		for(Entry e : found.values()){
+			Entry old = find(e.path);
+			if(old == null || old.size != e.size || old.lastModified != e.lastModified || old.flags != e.flags) changes.put(e.path, e);
+		}
+	}
+
+	//marks everything under dir that isnt in keep as deleted. goes through the whole index, so it is only for directories.
+	void removeUnder(String dir, Map<String, Entry> keep){
+		String prefix = dir.equals("/") ? "/" : dir + "/";
+		for(Entry e : snapshot.table){
+			if(e != null && e.path.startsWith(prefix) && !keep.containsKey(e.path) && !changes.containsKey(e.path)) changes.put(e.path, REMOVED);
+		}
+		for(Map.Entry<String, Entry> c : changes.entrySet()){
+			if(c.getKey().startsWith(prefix) && !keep.containsKey(c.getKey())) c.setValue(REMOVED);
+		}
+	}
+
+	//folds changes into a new snapshot. readers see the old one with changes in front of it, or the new one, and both say the same thing.
+	void rebuild(){
+		Map<String, Entry> applied = new HashMap<String, Entry>(changes);
+		Map<String, Entry> merged = new HashMap<String, Entry>(snapshot.count + applied.size());
+		for(Entry e : snapshot.table) if(e != null) merged.put(e.path, e);
+		for(Map.Entry<String, Entry> c : applied.entrySet()){
+			if(c.getValue() == REMOVED) merged.remove(c.getKey());
+			else merged.put(c.getKey(), c.getValue());
+		}
+		snapshot = new Snapshot(merged.values());
+		for(Map.Entry<String, Entry> c : applied.entrySet()) changes.remove(c.getKey(), c.getValue());
+		rebuilds.incrementAndGet();
+	}
+
+	//writes every entry to file: MAGIC, the root, how many entries, then for each its path (a short length and UTF-8),
+	//size, modified time and flags. mime types and etags are worked out again from those.
+	//it goes to a temp file first and is moved over the old one, so a crash partway through leaves the old one.
+	public void save(Path file) throws IOException{
+		Map<String, Entry> all = new HashMap<String, Entry>(snapshot.count + changes.size());
+		for(Entry e : snapshot.table) if(e != null) all.put(e.path, e);
+		for(Map.Entry<String, Entry> c : changes.entrySet()){
+			if(c.getValue() == REMOVED) all.remove(c.getKey());
+			else all.put(c.getKey(), c.getValue());
+		}
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))){
+			out.write(MAGIC);
+			writeString(out, root.toString());
+			out.writeInt(all.size());
+			for(Entry e : all.values()){
+				writeString(out, e.path);
+				out.writeLong(e.size);
+				out.writeLong(e.lastModified);
+				out.writeByte(e.flags);
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException{
+		byte [] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(b.length);
+		out.write(b);
+	}
+
+	//maps in a file save() wrote and makes the snapshot from it. false if it isnt there, isnt one, or is for some other directory.
+	boolean load(Path file){
+		if(!Files.isRegularFile(file)) return false;
+		try(FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)){
+			MappedByteBuffer in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			byte [] magic = new byte[MAGIC.length];
+			in.get(magic);
+			if(!Arrays.equals(magic, MAGIC)) return false;
+			if(!readString(in).equals(root.toString())) return false;
+			int count = in.getInt();
+			List<Entry> entries = new ArrayList<Entry>(count);
+			for(int i = 0; i < count; i++){
+				String path = readString(in);
+				long size = in.getLong();
+				long lastModified = in.getLong();
+				int flags = in.get();
+				entries.add(new Entry(path, size, lastModified, flags));
+			}
+			snapshot = new Snapshot(entries);
+			return true;
+		}
+		catch(IOException | BufferUnderflowException | IllegalArgumentException e){
+			System.out.println("Could not load the document root index from " + file + ", walking the tree instead: " + e);
+			return false;
+		}
+	}
+
+	static String readString(MappedByteBuffer in){
+		byte [] b = new byte[in.getShort() & 0xffff];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//keeps the contents of small, popular files in memory so a GET for them doesnt go to the disk at all.
+//each entry has the file's bytes (in a direct buffer, off the heap) and its headers already rendered,
+//so a hit is just a map lookup and a write.
+//the total size is capped at server.cache.maxBytes. when it goes over, the least recently used files get thrown out.
+//entries are kept fresh by watching their directories for changes (the default), so a hit never touches the file system.
+//with server.cache.revalidate=mtime it checks the file's modified time on every hit instead.
+class FileCache{
+
+	static final FileCache shared = new FileCache(ServerConfig.cacheMaxBytes, ServerConfig.cacheMaxEntry, ServerConfig.cacheRevalidate.equals("mtime"));
+
+	//one cached file.
+	static class Entry{
+		String path; //same as its key
+		File file;
+		ByteBuffer body; //read only, use duplicate() to send it
+		byte [] headers; //everything addHeaders gives, minus Date and Expires, which change every second
+		String etag; //the one in headers
+		long lastModified;
+		long size;
+	}
+
+	long maxBytes;
+	long maxEntry;
+	boolean checkMtime;
+	long totalBytes = 0;
+
+	//access ordered, so iterating starts at the least recently used entry.
+	LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong evictions = new AtomicLong();
+	AtomicLong invalidations = new AtomicLong();
+
+	WatchService watcher = null;
+	HashSet<Path> watchedDirs = new HashSet<Path>();
+
+	public FileCache(long max, long maxPerEntry, boolean mtime){
+		maxBytes = max;
+		maxEntry = maxPerEntry;
+		checkMtime = mtime;
+	}
+
+	//the key a resource is cached under, its absolute, normalized path.
+	//this is all string work, it doesnt look at the disk.
+	//null if it isnt something that could be a path at all, which just means it never gets cached.
+	static String key(String resource){
+		try{
+			return Paths.get("." + resource).toAbsolutePath().normalize().toString();
+		}
+		catch(InvalidPathException ipe){
+			return null;
+		}
+	}
+
+	public boolean enabled(){
+		return maxBytes > 0;
+	}
+
+	//the entry for path, or null if it isnt cached (or went stale). counts as a hit or a miss.
+	public Entry get(String path){
+		if(!enabled() || path == null) return null;
+		Entry e;
+		synchronized(this){
+			e = entries.get(path);
+		}
+		if(e != null && checkMtime && e.file.lastModified() != e.lastModified){
+			invalidate(path);
+			e = null;
+		}
+		if(e == null) misses.incrementAndGet();
+		else hits.incrementAndGet();
+		return e;
+	}
+
+	//tries to cache the given file, which has already been checked to exist and be readable.
+	//headers is what should go out with it (minus Date and Expires), already rendered for a file of this size and lastModified,
+	//with etag as its ETag. those can come from a DocIndex that is behind, so if the file isnt that size and time any more
+	//it isnt cached: the body wouldnt match its own Content-Length.
+	//returns the new entry, or null if the file is too big to bother with, couldnt be read, or isnt what the headers say.
+	//a file changed in the last second (its etag is weak) isnt cached yet, or the weak tag would be cached with it.
+	public Entry load(String path, File file, long size, long lastModified, String etag, byte [] headers){
+		if(!enabled() || path == null || Conditional.weak(etag)) return null;
+		if(size > maxEntry || size > maxBytes) return null;
+		if(file.length() != size || file.lastModified() != lastModified) return null;
+
+		Entry e = new Entry();
+		e.path = path;
+		e.file = file;
+		e.lastModified = lastModified;
+		e.headers = headers;
+		e.etag = etag;
+
+		try{
+			//watch first, so a change that happens while we are reading still throws the entry out
+			if(!checkMtime) watch(Paths.get(path).getParent());
+
+			ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+			try(FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+				while(body.hasRemaining() && fc.read(body) != -1);
+			}
+			if(body.hasRemaining()) return null; //the file changed size under us, dont cache it
+			body.flip();
+			e.body = body.asReadOnlyBuffer();
+			e.size = size;
+		}
+		catch(IOException ioe){
+			return null;
+		}
+
+		//one last check, in case it changed while we were reading
+		if(file.lastModified() != e.lastModified) return null;
+
+		synchronized(this){
+			Entry old = entries.put(path, e);
+			if(old != null) totalBytes -= old.size;
+			totalBytes += e.size;
+
+			Iterator<Entry> it = entries.values().iterator();
+			while(totalBytes > maxBytes && it.hasNext()){
+				Entry victim = it.next();
+				if(victim == e) continue;
+				it.remove();
+				totalBytes -= victim.size;
+				evictions.incrementAndGet();
+			}
+		}
+		return e;
+	}
+
+	public void invalidate(String path){
+		synchronized(this){
+			Entry e = entries.remove(path);
+			if(e == null) return;
+			totalBytes -= e.size;
+		}
+		invalidations.incrementAndGet();
+	}
+
+	//starts watching dir, if nothing else is watching it yet.
+	synchronized void watch(Path dir) throws IOException{
+		if(watchedDirs.contains(dir)) return;
+		if(watcher == null){
+			watcher = FileSystems.getDefault().newWatchService();
+			Thread t = new Thread(this::watchLoop, "file-cache-watcher");
+			t.setDaemon(true);
+			t.start();
+		}
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		watchedDirs.add(dir);
+	}
+
+	//throws out whatever changed. if the watcher lost track of events (OVERFLOW), everything in that directory goes.
+	void watchLoop(){
+		while(true){
+			WatchKey key;
+			try{
+				key = watcher.take();
+			}
+			catch(InterruptedException ie){
+				return;
+			}
+			Path dir = (Path) key.watchable();
+			for(WatchEvent<?> event : key.pollEvents()){
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+					invalidateDir(dir);
+					continue;
+				}
+				invalidateFile(dir.resolve((Path) event.context()));
+			}
+			if(!key.reset()){
+				synchronized(this){
+					watchedDirs.remove(dir);
+				}
+				invalidateDir(dir);
+			}
+		}
+	}
+
+	void invalidateFile(Path changed){
+		invalidate(changed.toString());
+	}
+
+	void invalidateDir(Path dir){
+		synchronized(this){
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while(it.hasNext()){
+				Entry e = it.next().getValue();
+				if(Paths.get(e.path).getParent().equals(dir)){
+					it.remove();
+					totalBytes -= e.size;
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public synchronized String stats(){
+		return "file cache: " + entries.size() + " files, " + totalBytes + "/" + maxBytes + " bytes, "
+			+ hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions, " + invalidations.get() + " invalidations";
+	}
+}
@@ -0,0 +1,42 @@
+import java.io.*;
+import java.nio.channels.*;
+
+
+
+//part of a file waiting to be sent by an NioOutputStream.
+class FileRegion{
+
+	FileChannel fc;
+	long position;
+	long end;
+
+	public FileRegion(FileChannel f, long pos, long count){
+		fc = f;
+		position = pos;
+		end = pos + count;
+	}
+
+	//sends as much as the socket takes right now. returns true (and closes the file) once all of it is gone.
+	//over HTTPS this cant be zero copy, the JDK reads the file through a buffer to hand it to the TlsChannel.
+	boolean transferTo(WritableByteChannel channel) throws IOException{
+		while(position < end){
+			long n = fc.transferTo(position, end - position, channel);
+			if(n <= 0){
+				if(position >= fc.size()) break; //the file got shorter since we looked
+				return false; //socket is full, try again when its writable
+			}
+			position += n;
+		}
+		close();
+		return true;
+	}
+
+	void close(){
+		try{
+			fc.close();
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+}
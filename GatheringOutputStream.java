@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+
+
+//a connection's output in the classic and virtual modes. writes are copied into BufferPool buffers, and segment() adds
+//a buffer that is already bytes (a cached file, say) without copying it. nothing goes out until flush(), and then all of it,
+//status line, headers and body, goes out in one gathering write, which is one writev for the socket.
+//after each flush the pool buffers are given back, so a kept-alive connection waiting for its next request holds none.
+//a write that would go over MAX_SEGMENTS sends what is there first.
+class GatheringOutputStream extends OutputStream{
+
+	static final int MAX_SEGMENTS = 16;
+
+	GatheringByteChannel channel;
+	ByteBuffer [] segments = new ByteBuffer[MAX_SEGMENTS];
+	int count = 0;
+	ByteBuffer [] held = new ByteBuffer[MAX_SEGMENTS]; //the pool buffers among the segments, given back after they are written
+	int heldCount = 0;
+	ByteBuffer current = null; //the pool buffer writes are being copied into. it becomes a segment once it is full, or something comes after it
+
+	public GatheringOutputStream(GatheringByteChannel c){
+		channel = c;
+	}
+
+	public void write(int b) throws IOException{
+		if(current == null) take(1);
+		current.put((byte) b);
+		if(!current.hasRemaining()) seal();
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		while(len > 0){
+			if(current == null) take(len);
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			if(!current.hasRemaining()) seal();
+		}
+	}
+
+	//adds what is left in the buffer, as it is. it must not change until the next flush().
+	public void segment(ByteBuffer buffer) throws IOException{
+		if(current != null) seal();
+		add(buffer);
+	}
+
+	public void flush() throws IOException{
+		if(current != null) seal();
+		send();
+	}
+
+	//a pool buffer big enough for len bytes, or for the biggest size if len is more than that.
+	void take(int len) throws IOException{
+		if(heldCount == MAX_SEGMENTS) send();
+		current = BufferPool.acquire(Math.min(Math.max(len, BufferPool.CHUNK), BufferPool.LARGE));
+		held[heldCount++] = current;
+	}
+
+	//the bytes in current become the next segment.
+	void seal() throws IOException{
+		current.flip();
+		ByteBuffer b = current;
+		current = null;
+		add(b);
+	}
+
+	void add(ByteBuffer b) throws IOException{
+		if(count == MAX_SEGMENTS) send();
+		segments[count++] = b;
+	}
+
+	//writes every segment, however many writes that takes, and gives back the pool buffers. they are given back if it fails too.
+	//current (if it isnt sealed) is the one held buffer that isnt written, so it is kept.
+	void send() throws IOException{
+		try{
+			long left = 0;
+			for(int i = 0; i < count; i++) left += segments[i].remaining();
+			int first = 0;
+			while(left > 0){
+				left -= channel.write(segments, first, count - first);
+				while(first < count && !segments[first].hasRemaining()) first++;
+			}
+		}
+		finally{
+			for(int i = 0; i < count; i++) segments[i] = null;
+			count = 0;
+			for(int i = 0; i < heldCount; i++){
+				if(held[i] != current) BufferPool.release(held[i]);
+				held[i] = null;
+			}
+			heldCount = 0;
+			if(current != null) held[heldCount++] = current;
+		}
+	}
+
+	//the channel stays open, the connection decides when that closes.
+	public void close() throws IOException{
+		flush();
+	}
+}
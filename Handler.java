@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+
+
+//answers the requests the Router sends its way.
+//static files and cgi scripts are two of these (Router.FILES and Router.CGI), and anything else can be one too,
+//right in the server's process, so a small dynamic page doesnt need a cgi script started for every request.
+//the answer goes out through the HandlerThread: t.send() for a whole body at once, or t.startResponse(), t.sendHeaders() and t.out
+//for anything more involved. the connection is flushed or closed afterwards, the handler doesnt do that.
+//a handler is shared by every worker, so it shouldnt keep anything about one request in its fields.
+interface Handler{
+
+	//path is the request target with its %XX escapes decoded, from HttpRequest.path(). a query, if any, is still on the end.
+	void handle(HandlerThread t, HttpRequest request, String path) throws IOException;
+}
@@ -0,0 +1,1213 @@
+import java.net.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.HashMap;
+import java.util.Map;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+
+
+//The class that handles clients.
+//When the server finds a new client, it sends them here to be handled.
+//The client's request is parsed, and a response is sent back depending on the contents of the request.
+//This response will contain:
+	//either an error message if the client made a mistake, or if the server was unable to handle the request
+	//or, a success message and the requested content.
+class HandlerThread extends Thread{
+
+	//cgi scripts that run too long get killed off by this. one thread for the whole server, it just does the killing.
+	static final ScheduledExecutorService cgiTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "cgi-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//writes request payloads to cgi scripts, so the handler can read their output at the same time.
+	static final ExecutorService cgiFeeders = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "cgi-feeder");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//all client handling threads will have these variables. 
+	//their values are based on the client and are initialized in the constructor.
+	Socket client = null;
+	RequestReader reader = null;
+	OutputStream out = null; //where the response goes, status line and all
+	GatheringOutputStream gather = null; //what out is (under counted) in the classic and virtual modes, for adding buffers to without copying them
+	ResponseHeaders headers = new ResponseHeaders(); //reused for every response on this connection
+	byte [] cgiBuffer = null; //cgi output goes through here on its way to the client. made the first time, in nio mode there is a HandlerThread per request
+	InetAddress clientAddress = null;
+	int clientPort;
+
+	//for the AccessLog, when there is one. the client's address as bytes, what was sent on the connection so far,
+	//and the status of the response to the current request.
+	byte [] addressBytes = null;
+	CountingOutputStream counted = null;
+	int statusCode;
+
+	//only set in nio mode. the request has already been read by the selector thread,
+	//and the response goes back through the connection's output stream instead of the socket.
+	NioConnection connection = null;
+	HttpRequest pendingRequest = null;
+
+	//only set for a request that came in on an HTTP/2 stream. the response goes back through the stream, see Http2Connection.
+	Http2Stream stream = null;
+
+	//for persistent connections. keepAlive is decided for each request in respond(),
+	//and says whether the connection stays open for another one after this response.
+	String protocol = "HTTP/1.0"; //what the status line starts with, the same version the client asked with
+	boolean keepAlive = false;
+	int requestCount = 0; //requests answered on this connection so far
+
+	//for AdmissionControl. when this connection was queued up for a worker (0 once its wait is counted),
+	//and which limiter let the current request in, and when.
+	long queuedAt = 0;
+	Limiter admittedBy = null;
+	long serviceStart;
+
+	long headersStart; //when startResponse was called, for Metrics
+
+	//for Range requests. the first,last pairs Conditional.ranges found, and the headers for each part of a multipart answer.
+	long [] ranges = new long[2 * Conditional.MAX_RANGES];
+	ResponseHeaders partHeaders = null;
+
+	//separates the parts of a multipart/byteranges answer. it just has to never show up in a file, so it is random.
+	static final String BOUNDARY = "RANGE_" + Long.toHexString(new java.util.Random().nextLong() | Long.MIN_VALUE);
+
+	//constructor. takes the client socket, forms input and output based on it.
+	public HandlerThread(Socket s) throws IOException{
+		client = s;
+		clientAddress = client.getInetAddress();
+		clientPort = client.getPort();
+		client.setSoTimeout(ServerConfig.requestTimeout);
+		client.setTcpNoDelay(true); //headers and a file sent with sendFile go out in separate writes, and on a kept connection nagle would hold the second one back
+		reader = new RequestReader(client);
+		if(client.getChannel() != null) out = gather = new GatheringOutputStream(client.getChannel());
+		else out = client.getOutputStream(); //a socket that didnt come from a channel, written to as it is
+		countBytes();
+	}
+
+	//nio mode constructor. takes the connection and the request that was read off it.
+	public HandlerThread(NioConnection c, HttpRequest request){
+		connection = c;
+		pendingRequest = request;
+		Socket s = c.channel.socket();
+		clientAddress = s.getInetAddress();
+		clientPort = s.getPort();
+		out = c.out;
+		countBytes();
+	}
+
+	//HTTP/2 constructor. takes the stream and the request that came in on it, already read like the nio mode's.
+	public HandlerThread(Http2Stream s, HttpRequest request){
+		stream = s;
+		pendingRequest = request;
+		clientAddress = s.connection.clientAddress;
+		clientPort = s.connection.clientPort;
+		out = s;
+		countBytes();
+	}
+
+	//with an AccessLog to write to, out gets wrapped so the bytes of each response can be counted.
+	void countBytes(){
+		if(AccessLog.shared == null) return;
+		if(clientAddress != null) addressBytes = clientAddress.getAddress();
+		out = counted = new CountingOutputStream(out);
+	}
+
+	//counts the status for Metrics, and keeps it for the AccessLog.
+	void status(String status){
+		statusCode = Metrics.code(status);
+		Metrics.status(statusCode);
+	}
+
+	//this is a handy method for ending client communications. pretty straightforward.
+	//if the connection is being kept alive, the response is just flushed and the connection is left open for the next request.
+	//otherwise it gets closed. the project requirements had a 250ms sleep before the close, Linger does that now without holding up this thread.
+	//in nio mode the selector thread closes the socket once the response is written out.
+	//an HTTP/2 stream is ended by its Http2Connection once this is done with it, whatever keepAlive says.
+	public void shutdown() throws IOException{
+		long start = System.nanoTime();
+		try{
+			if(stream != null){
+				out.flush();
+				return;
+			}
+			if(keepAlive){
+				out.flush();
+				return;
+			}
+			if(connection != null){
+				out.close();
+				return;
+			}
+			try{
+				out.flush();
+			}
+			finally{
+				Linger.close(client); //even if the client is gone, the socket isnt
+			}
+		}
+		finally{
+			Metrics.lap(Metrics.SHUTDOWN, start);
+		}
+	}
+
+	//for the answers that are just a status, like 404.
+	//on a 1.0 connection that is closing anyway, this is the bare status line, as it always was.
+	//otherwise the client needs to know where the response ends, so it gets headers, a Content-Length of 0 and the blank line.
+	public void sendStatus(String status) throws IOException{
+		if(!keepAlive && protocol.equals("HTTP/1.0")){
+			status(status);
+			headers.reset().status("HTTP/1.0", status).writeTo(out);
+			return;
+		}
+		startResponse(status).add("Content-Length", 0).dates().end();
+		sendHeaders();
+	}
+
+	//clears the headers and puts the status line in, plus whatever the client needs to know about the connection.
+	public ResponseHeaders startResponse(String status){
+		headersStart = System.nanoTime();
+		status(status);
+		headers.reset().status(protocol, status);
+		if(keepAlive){
+			if(protocol.equals("HTTP/1.0")) headers.add("Connection", "keep-alive"); //1.0 clients only keep the connection if they are told to
+			headers.add("Keep-Alive", ServerConfig.keepAliveHeader);
+		}
+		else if(!protocol.equals("HTTP/1.0")) headers.add("Connection", "close");
+		return headers;
+	}
+
+	//the answer when AdmissionControl turns a request away. the connection is closed, it is busy enough already.
+	public void sendShed() throws IOException{
+		keepAlive = false;
+		startResponse("503 Service Unavailable").add("Retry-After", ServerConfig.retryAfter).add("Content-Length", 0).dates().end();
+		sendHeaders();
+	}
+
+	//the Metrics page. it is a GET like any other, only made up on the spot.
+	public void sendMetrics(String command) throws IOException{
+		byte [] body = Metrics.render().getBytes(StandardCharsets.ISO_8859_1);
+		startResponse("200 OK").add("Content-Type", "text/plain; version=0.0.4").add("Content-Length", body.length).dates().end();
+		sendHeaders();
+		if(command.equals("GET")) out.write(body);
+	}
+
+	//a whole answer in one go, for handlers that have their body ready. HEAD gets the same headers and no body.
+	public void send(HttpRequest request, String status, String contentType, byte [] body) throws IOException{
+		startResponse(status).add("Content-Type", contentType).add("Content-Length", body.length).dates().end();
+		sendHeaders();
+		if(!request.method.equals("HEAD")) out.write(body);
+	}
+
+	//should the connection stay open after the answer to this request?
+	//1.1 connections are persistent unless the client says "Connection: close", 1.0 ones only if the client asks for keep-alive.
+	//requests that didnt fully arrive, or that have a body of unknown length, end the connection, since there is no telling where the next one starts.
+	public boolean persistent(HttpRequest request){
+		if(!request.complete) return false;
+		if(Lifecycle.draining) return false; //the server is on its way out, see Lifecycle
+		if(requestCount >= ServerConfig.maxKeepAliveRequests) return false;
+		if(request.method.equals("POST") && !request.chunked && request.findHeader("Content-Length") == -1) return false;
+		if(request.headerEquals("Connection", "close")) return false;
+		if(protocol.equals("HTTP/1.0")) return request.headerEquals("Connection", "keep-alive");
+		return true;
+	}
+
+	//checks for properly formatted HTTP request.
+	//the actual checking is done by HttpRequest.parse, on the raw bytes, as the request is parsed.
+	//this is still here for anything that only has the request as a String.
+	public boolean correctFormat(String req){
+		byte [] bytes = req.getBytes(StandardCharsets.ISO_8859_1);
+		return new HttpRequest().parse(bytes, 0, bytes.length);
+	}
+
+	//for a given number of millseconds from since the epoch,
+	//this method turns that number into an HTTP-readable version.
+	//HttpDate does the work, and remembers the answer.
+	public String getFormattedTime(long millis){
+		return HttpDate.format(millis);
+	}
+
+
+
+	//this method checks the given file's length, file type, and any encoding.
+	//then, it creates appropriate HTTP response headers and returns them.
+	//the response itself doesnt use this anymore, it renders straight into bytes with fileHeaders().
+	public String addHeaders(File fileToRead){
+		return fileHeaders(new ResponseHeaders(), fileToRead).dates().toString();
+	}
+
+	//all of addHeaders except Date and Expires. these only change when the file does, so FileCache keeps them around.
+	public static ResponseHeaders fileHeaders(ResponseHeaders h, File fileToRead){
+		return fileHeaders(h, fileToRead, Conditional.etag(fileToRead.length(), fileToRead.lastModified()));
+	}
+
+	public static ResponseHeaders fileHeaders(ResponseHeaders h, File fileToRead, String etag){
+		return fileHeaders(h, contentType(fileToRead.getName()), fileToRead.length(), fileToRead.lastModified(), etag);
+	}
+
+	//the same, from what DocIndex already knows about the file, without going to the disk.
+	public static ResponseHeaders fileHeaders(ResponseHeaders h, String type, long size, long lastModified, String etag){
+		h.add("Content-Type", type);
+		h.add("Content-Length", size);
+		h.addDate("Last-Modified", lastModified);
+		h.add("ETag", etag);
+		h.add("Accept-Ranges", "bytes");
+		h.add("Content-Encoding", "identity");
+		if(Compression.applies(type, size)) h.add("Vary", "Accept-Encoding"); //another client could have gotten it compressed
+		h.add("Allow", "GET, POST, HEAD");
+		return h;
+	}
+
+	//the mime type for a file name, going by its extension.
+	public static String contentType(String name){
+		String extension = name.substring(name.lastIndexOf('.') + 1);
+		switch(extension){
+			case "txt": return "text/txt";
+			case "html": return "text/html";
+			case "png": return "image/png";
+			case "jpeg": return "image/jpeg";
+			case "gif": return "image/gif";
+			case "pdf": return "application/pdf";
+			case "x-gzip": return "application/x-gzip";
+			case "zip": return "application/zip";
+		}
+		return "application/octet-stream"; //default values
+	}
+
+
+	//the same method as above, but overloaded. This one works with POST requests.
+	//differences: content type isalways text/html, and content length is always the length of the output payload (which is the paramter)
+	//a negative CL means the length isnt known, and the header is left out.
+	public String addHeaders(File fileToRead, int CL){
+		return cgiHeaders(new ResponseHeaders(), fileToRead, CL).toString();
+	}
+
+	public ResponseHeaders cgiHeaders(ResponseHeaders h, File fileToRead, int CL){
+		return cgiHeaders(h, fileToRead, CL, null);
+	}
+
+	//encoding is what the output is compressed with, or null if it isnt.
+	public ResponseHeaders cgiHeaders(ResponseHeaders h, File fileToRead, int CL, String encoding){
+		h.add("Content-Type", "text/html");
+		if(CL >= 0) h.add("Content-Length", CL);
+		h.addDate("Last-Modified", fileToRead.lastModified());
+		h.add("Content-Encoding", encoding == null ? "identity" : encoding);
+		if(Compression.applies("text/html", -1)) h.add("Vary", "Accept-Encoding");
+		h.add("Allow", "GET, POST, HEAD");
+		return h.dates();
+	}
+
+	//sends whatever is in headers. in the classic and virtual modes they are only copied into the connection's output here,
+	//and go out with the body in one write.
+	public void sendHeaders() throws IOException{
+		Metrics.lap(Metrics.HEADERS, headersStart);
+		headers.writeTo(out);
+	}
+
+
+	//this method checks HTTP requests to see if they have an if-modified-since clause.
+	//if they do, it returns the specified time, as millis from epoch.
+	//if they dont, it returns -1.
+	//the request is assumed to be properly formatted.
+	public long getIfModifiedTime(HttpRequest request){
+
+		String timeString = request.header("If-Modified-Since");
+		if(timeString == null) return -1;
+
+		return HttpDate.parse(timeString); //-1 if the time wasn't correctly formatted
+
+	}
+
+
+	//Checks request headers for content-type, and returns it.
+	//This applies for POST requests only, as of Project Part 2.
+	public String getContentType(HttpRequest request){
+		return request.header("Content-Type"); //null IF THE CONTENT TYPE IS NOT PRESENT
+		//this should result in 500
+	}
+
+	//Checks request headers for content-length, gets it as an integer, and returns it.
+	//returns -1 if no content length is found, or if it is non-integer.
+	//a chunked body has no Content-Length, but it has been put back together by now, so its length is just what is there.
+	//(nothing, for one that is streamed. serveCgi finds out how long that is as it spools it.)
+	public int getContentLength(HttpRequest request){
+		if(request.chunked) return request.bodyLength();
+		return (int) request.headerLong("Content-Length"); //-1 becomes 411
+	}
+
+	//returns value of http post header field "From".
+	//returns null if not found.
+	public String getFrom(HttpRequest request){
+		return request.header("From");
+	}
+
+	//returns value of http post header field "User Agent".
+	//returns null if not found.
+	public String getUserAgent(HttpRequest request){
+		return request.header("User-Agent");
+	}
+
+	//where the part of the payload that is in the request's buffer ends. it starts at request.bodyStart, and is still encoded.
+	//that is all of it, unless the request is streaming, see RequestBody.
+	public int getPayloadEnd(HttpRequest request){
+		return request.end;
+	}
+
+	//decodes a streamed form body into a temporary file on its way in, a buffer at a time.
+	//a cgi script has to be told how long its input is before it starts, and that isnt known until all of it has been decoded.
+	//returns null if the body isnt properly percent-encoded. the caller deletes the file.
+	public File spool(RequestBody body) throws IOException{
+		File file = File.createTempFile("post", ".body");
+		if(cgiBuffer == null) cgiBuffer = new byte[8192];
+		try(DecodingOutputStream decoded = new DecodingOutputStream(new BufferedOutputStream(new FileOutputStream(file)), true)){
+			int n;
+			while((n = body.read(cgiBuffer)) != -1) decoded.write(cgiBuffer, 0, n);
+		}
+		catch(CharConversionException cce){
+			file.delete();
+			return null;
+		}
+		catch(IOException ioe){
+			file.delete();
+			throw ioe;
+		}
+		return file;
+	}
+
+	//checks a GET against its If-None-Match and If-Modified-Since (see Conditional.fresh), and sends the 304 if the client's copy is still good.
+	//returns true if the 304 was sent.
+	public boolean notModified(String command, long modifiedTime, String etag, HttpRequest request) throws IOException{
+		if(command.equals("HEAD") && protocol.equals("HTTP/1.0")) return false; //HTTP 1.0  rfc says HEAD cannot be conditional. see 8.2
+		if(!Conditional.fresh(request, modifiedTime, etag)) return false;
+		startResponse("304 Not Modified").add("ETag", etag).dates().end();
+		sendHeaders();
+		return true;
+	}
+
+	//sends a file that FileCache has. the headers and contents are already bytes, so a 200 goes out as it is.
+	public void sendCached(String command, FileCache.Entry cached, HttpRequest request) throws IOException{
+		if(command.equals("GET")){
+			int n = Conditional.ranges(request, cached.size, cached.lastModified, cached.etag, ranges);
+			if(n != 0){
+				sendRanges(n, cached.file, cached.size, cached.lastModified, cached.etag, cached.body, null);
+				return;
+			}
+		}
+		startResponse("200 OK").raw(cached.headers).dates().end();
+		sendHeaders();
+		if(command.equals("GET")){
+			long start = System.nanoTime();
+			sendBuffer(cached.body.duplicate());
+			Metrics.lap(Metrics.BODY, start);
+		}
+	}
+
+	//answers a Range request: a 416 if n is -1, otherwise a 206 with the n ranges in ranges[], one as it is or more as multipart/byteranges.
+	//only the bytes asked for are sent. they come out of body if the file is cached, otherwise they are transferred from fc
+	//(which is closed afterwards, and reopened for every part after the first).
+	public void sendRanges(int n, File file, long size, long lastModified, String etag, ByteBuffer body, FileChannel fc) throws IOException{
+		if(n == -1){
+			if(fc != null) fc.close();
+			startResponse("416 Range Not Satisfiable").contentRange(-1, -1, size).add("Content-Length", 0).dates().end();
+			sendHeaders();
+			return;
+		}
+
+		String type = contentType(file.getName());
+		ResponseHeaders h = startResponse("206 Partial Content");
+		if(n == 1){
+			h.add("Content-Type", type);
+			h.contentRange(ranges[0], ranges[1], size);
+			h.add("Content-Length", ranges[1] - ranges[0] + 1);
+		}
+		else{
+			//the length of every part's headers and bytes, and the closing boundary
+			if(partHeaders == null) partHeaders = new ResponseHeaders();
+			long length = 0;
+			for(int i = 0; i < n; i++){
+				length += partHeader(i, type, size).len + ranges[2 * i + 1] - ranges[2 * i] + 1;
+			}
+			length += 2 + 2 + BOUNDARY.length() + 2 + 2;
+			h.add("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+			h.add("Content-Length", length);
+		}
+		h.addDate("Last-Modified", lastModified);
+		h.add("ETag", etag);
+		h.add("Accept-Ranges", "bytes");
+		h.dates().end();
+		sendHeaders();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < n; i++){
+			if(n > 1) partHeader(i, type, size).writeTo(out);
+			long first = ranges[2 * i];
+			long count = ranges[2 * i + 1] - first + 1;
+			if(body != null){
+				ByteBuffer slice = body.duplicate();
+				slice.position((int) first).limit((int) (first + count));
+				sendBuffer(slice);
+			}
+			else{
+				if(fc == null) fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				sendFile(fc, first, count);
+				fc = null;
+			}
+		}
+		if(n > 1){
+			partHeaders.reset().ascii("\r\n--" + BOUNDARY + "--\r\n");
+			partHeaders.writeTo(out);
+		}
+		Metrics.lap(Metrics.BODY, start);
+	}
+
+	//the boundary and headers in front of part i of a multipart/byteranges body, in partHeaders.
+	//every part but the first starts with the CRLF that ends the part before it.
+	ResponseHeaders partHeader(int i, String type, long size){
+		ResponseHeaders p = partHeaders.reset();
+		if(i > 0) p.crlf();
+		p.ascii("--" + BOUNDARY);
+		p.crlf();
+		p.add("Content-Type", type);
+		p.contentRange(ranges[2 * i], ranges[2 * i + 1], size);
+		return p.end();
+	}
+
+	//writes what is left in the buffer to the client, after whatever was written before it. the buffer isnt copied:
+	//in the classic and virtual modes it joins the headers in the connection's output, and goes out with them at the next flush.
+	//in nio mode it is queued up for the selector thread. either way it must not change until it has been sent.
+	public void sendBuffer(ByteBuffer buffer) throws IOException{
+		if(counted != null) counted.count += buffer.remaining();
+
+		if(gather != null){
+			gather.segment(buffer);
+			return;
+		}
+
+		out.flush();
+		if(connection != null){
+			connection.out.sendBuffer(buffer);
+			return;
+		}
+
+		WritableByteChannel target = bodyChannel();
+		while(buffer.hasRemaining()) target.write(buffer);
+	}
+
+	//where sendFile (and sendBuffer on an HTTP/2 stream) write: the socket's channel, or for a stream (which has no socket), a channel over it.
+	//not through counted, they count what they send themselves.
+	WritableByteChannel bodyChannel() throws IOException{
+		if(gather != null) return gather.channel;
+		return Channels.newChannel(counted != null ? counted.inner() : out);
+	}
+
+	//writes count bytes of the file, starting at position, straight to the client with FileChannel.transferTo.
+	//on linux that turns into sendfile, so the file never gets copied into java at all.
+	//whatever was written before it goes out first. this takes over fc and closes it when its done.
+	public void sendFile(FileChannel fc, long position, long count) throws IOException{
+		out.flush();
+		if(counted != null) counted.count += count;
+
+		//in nio mode the selector thread does the transfer, whenever the socket is ready for it
+		if(connection != null){
+			connection.out.sendFile(fc, position, count);
+			return;
+		}
+
+		WritableByteChannel target = bodyChannel();
+
+		long blockStart = BlockingMonitor.enter();
+		try{
+			while(count > 0){
+				long n = fc.transferTo(position, count, target);
+				if(n <= 0 && position >= fc.size()) break; //the file got shorter since we looked
+				position += n;
+				count -= n;
+			}
+		}
+		finally{
+			BlockingMonitor.exit(BlockingMonitor.FILE_READ, blockStart);
+			fc.close();
+		}
+	}
+
+	//sends the file compressed, if it is text worth compressing and the client takes gzip or deflate (see Compression).
+	//a Range is always of the plain file, so a resumed download gets the same bytes it started with. those go out as they are.
+	//returns false if nothing was sent, because it isnt getting compressed. body is the file's bytes if FileCache has them.
+	public boolean sendCompressed(String command, String key, File file, long size, long lastModified, String etag, ByteBuffer body, HttpRequest request) throws IOException{
+		String type = contentType(file.getName());
+		if(!Compression.applies(type, size) || request.findHeader("Range") != -1) return false;
+		String encoding = Compression.negotiate(request);
+		if(encoding == null) return false;
+		Compression.Variant v = Compression.variant(key, file, encoding, size, lastModified, etag, body);
+		if(v == null) return false;
+
+		if(notModified(command, lastModified, v.etag, request)) return true;
+		startResponse("200 OK").add("Content-Type", type).add("Content-Length", v.length).addDate("Last-Modified", lastModified)
+			.add("ETag", v.etag).add("Content-Encoding", encoding).add("Vary", "Accept-Encoding").add("Allow", "GET, POST, HEAD").dates().end();
+		sendHeaders();
+		if(command.equals("GET")){
+			long start = System.nanoTime();
+			if(v.body != null) sendBuffer(v.body.duplicate());
+			else{
+				try(FileChannel fc = FileChannel.open(v.file.toPath(), StandardOpenOption.READ)){
+					sendFile(fc, 0, v.length);
+				}
+			}
+			Metrics.lap(Metrics.BODY, start);
+		}
+		return true;
+	}
+
+	//starts the script as a new process with env added to its environment, and sends what it prints to the client as it prints it.
+	//the payload, form data in payload[from..to), is decoded as it is written to the script's stdin. that happens on another thread
+	//while this one copies its stdout, so a script that prints more than a pipe holds before it has read all of its input doesnt deadlock.
+	//stdin is closed after the payload, so the script sees the end of it. a spooled payload is the script's stdin file instead.
+	//nothing bigger than cgiBuffer is ever held, however much the script prints.
+	//if it printed nothing, that is a 204. otherwise the length isnt known up front, so 1.1 clients get it chunked,
+	//and 1.0 clients get it until the connection closes. stderr goes to the server's stderr.
+	//a script still running after server.cgi.timeout gets killed. if it hadnt printed anything yet, that is a 504.
+	//if encoding isnt null, the output is compressed with it on the way. whatever the script has printed is flushed out
+	//whenever it stops to think, so a slow script still shows up a bit at a time.
+	public void streamCgi(File script, Map<String, String> env, byte [] payload, int from, int to, File spooled, String encoding) throws IOException{
+		ProcessBuilder pb = new ProcessBuilder(script.getAbsoluteFile().toString());
+		pb.environment().putAll(env);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		if(spooled != null) pb.redirectInput(spooled); //already decoded. the script reads it straight from the file
+
+		long blockStart = BlockingMonitor.enter();
+		Process p;
+		try{
+			p = pb.start();
+		}
+		finally{
+			BlockingMonitor.exit(BlockingMonitor.CGI_START, blockStart);
+		}
+
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> killer = cgiTimer.schedule(() -> {
+			timedOut.set(true);
+			//anything the script started goes too, or it would keep stdout open and the read below would never end
+			p.descendants().forEach(ProcessHandle::destroyForcibly);
+			p.destroyForcibly();
+		}, ServerConfig.cgiTimeout, TimeUnit.MILLISECONDS);
+		p.onExit().thenRun(() -> killer.cancel(false));
+
+		Future<?> fed = spooled != null ? null : cgiFeeders.submit(() -> {
+			try(OutputStream stdin = new DecodingOutputStream(p.getOutputStream(), true)){
+				stdin.write(payload, from, to - from);
+			}
+			catch(IOException ioe){
+				return; //the script quit without reading all of it. thats up to the script.
+			}
+		});
+
+		InputStream stdout = p.getInputStream();
+		if(cgiBuffer == null) cgiBuffer = new byte[8192];
+		CompressingOutputStream compressed = null;
+		blockStart = BlockingMonitor.enter();
+		try{
+			int n = stdout.read(cgiBuffer);
+			if(n == -1){
+				if(timedOut.get()){
+					sendStatus("504 Gateway Timeout");
+					return;
+				}
+				//set headers again
+				cgiHeaders(startResponse("204 No Content"), script, 0).end();
+				sendHeaders();
+				return;
+			}
+
+			boolean chunked = !protocol.equals("HTTP/1.0") && stream == null; //HTTP/2 has its own way of saying where the body ends
+			if(!chunked) keepAlive = false; //the end of the connection is the end of the response
+			ResponseHeaders h = cgiHeaders(startResponse("200 OK"), script, -1, encoding);
+			if(chunked) h.add("Transfer-Encoding", "chunked");
+			h.end();
+			sendHeaders();
+
+			OutputStream body = chunked ? new ChunkedOutputStream(out) : out;
+			if(encoding != null) compressed = new CompressingOutputStream(body, encoding);
+			do{
+				if(compressed == null){
+					body.write(cgiBuffer, 0, n);
+					if(stdout.available() == 0) body.flush();
+				}
+				else{
+					compressed.write(cgiBuffer, 0, n);
+					if(stdout.available() == 0) compressed.flush();
+				}
+			}
+			while((n = stdout.read(cgiBuffer)) != -1);
+
+			if(timedOut.get()){
+				//cut off partway. leaving out the last chunk (and closing) is how the client finds out.
+				keepAlive = false;
+				return;
+			}
+			if(compressed != null) compressed.finish();
+			body.close(); //the last chunk. the connection itself stays open
+		}
+		finally{
+			BlockingMonitor.exit(BlockingMonitor.CGI_READ, blockStart);
+			if(compressed != null) compressed.release(); //already given back if it finished, not if the script was cut off or the client left
+			stdout.close();
+			//the payload is still in the request buffer, and the next request gets read into that. so the feeder has to be done with it.
+			//it is by now, unless the script shut its stdout without exiting, and then the timeout is what ends it.
+			try{
+				if(fed != null) fed.get();
+			}
+			catch(InterruptedException | ExecutionException e){
+				//nothing more to do with it either way
+			}
+		}
+	}
+
+	//given a String of form data,
+	//this method turns each %XX back into the character it stands for, and each + into a space.
+	//then, it returns the altered String.
+	//the server decodes bytes with PercentDecoder now. this is still here for anything that only has the String.
+	public static String urlEncode(String s) throws IllegalArgumentException{ 
+
+		if(s == null) return null;
+
+		byte [] bytes = s.getBytes(StandardCharsets.UTF_8);
+		int n = PercentDecoder.decode(bytes, 0, bytes.length, bytes, 0, true);
+		if(n == -1) throw new IllegalArgumentException("bad percent-encoding in \"" + s + "\"");
+		return new String(bytes, 0, n, StandardCharsets.UTF_8);
+
+	}
+			
+
+	//this method is called when a Thread is started.
+	//it reads a request off the socket, then hands it to respond().
+	//as long as the connection is kept alive it goes back for the next one, which may already be sitting in the reader if the client is pipelining.
+	//in nio mode the request is already here, so it goes straight to respond(). the selector thread reads the next one.
+	//the same goes for a request on an HTTP/2 stream, which is the only one this thread answers.
+	public void run(){
+
+		if(pendingRequest != null){
+			handle(pendingRequest);
+			return;
+		}
+		
+		try{	
+			
+			//reads the whole request. the reader blocks with the socket timeout,
+			//and if nothing at all shows up in that time the connection is cancelled.
+			HttpRequest request = reader.readRequest();
+
+			if(request == null){
+				status("408 Request Timeout");
+				headers.reset().status("HTTP/1.0", "408 Request Timeout").writeTo(out);
+				shutdown();
+				if(AccessLog.shared != null) AccessLog.shared.log(addressBytes, null, statusCode, counted.count, 0);
+				return;
+			}
+
+			handle(request);
+
+			//between requests the client gets the (longer) keep-alive timeout, and if it doesnt send anything it is just closed, no 408.
+			while(keepAlive){
+				client.setSoTimeout(ServerConfig.keepAliveTimeout);
+				request = reader.readRequest();
+				if(request == null){
+					keepAlive = false;
+					shutdown();
+					return;
+				}
+				client.setSoTimeout(ServerConfig.requestTimeout);
+				handle(request);
+			}
+		}
+
+		catch(IOException ioe){
+			keepAlive = false;
+			status("500 Internal Server Error");
+			try{
+				headers.reset().status("HTTP/1.0", "500 Internal Server Error").writeTo(out);
+				shutdown();
+				if(AccessLog.shared != null) AccessLog.shared.log(addressBytes, null, statusCode, 0, 0);
+			}
+			catch(IOException ioe2){
+				return;
+			}
+		}
+	}
+
+	//respond(), plus telling the limiter that let the request in (if one did) how long it took.
+	//it is counted as in flight while it is answered, so a stopping server waits for it. in nio mode NioConnection counts it instead.
+	public void handle(HttpRequest request){
+		if(queuedAt != 0) Metrics.record(Metrics.QUEUE, System.nanoTime() - queuedAt);
+		long start = System.nanoTime();
+		long sentBefore = counted == null ? 0 : counted.count;
+		statusCode = 0;
+		if(connection == null) Lifecycle.started();
+		try{
+			respond(request);
+		}
+		finally{
+			if(connection == null) Lifecycle.finished();
+		}
+		long now = Metrics.lap(Metrics.RESPOND, start);
+		if(stream != null) request.version = 2.0f; //it was made up as a 1.1 request to be answered, but the log should say what it was
+		if(AccessLog.shared != null) AccessLog.shared.log(addressBytes, request, statusCode, counted.count - sentBefore, now - start);
+		if(admittedBy != null){
+			admittedBy.release(System.nanoTime() - serviceStart);
+			admittedBy = null;
+		}
+	}
+
+	//hands the connection over to an Http2Connection, and runs that until the client is done with it.
+	//a client that asked to upgrade gets the 101 first, and the request it asked with is answered as stream 1.
+	void http2(HttpRequest request, boolean preface) throws IOException{
+		keepAlive = false;
+		InputStream rest = connection != null ? connection.takeOver() : reader.rest();
+		Http2Connection h2 = new Http2Connection(rest, out, clientAddress, clientPort);
+		if(!preface){
+			status("101 Switching Protocols");
+			headers.reset().status("HTTP/1.1", "101 Switching Protocols").add("Connection", "Upgrade").add("Upgrade", "h2c").end().writeTo(out);
+			out.flush();
+		}
+		h2.serve(preface ? null : request, preface ? Http2Connection.PRI_REQUEST : 0);
+	}
+
+	//this is where all the parsing and evaluating happens.
+	//if the client's request was properly formed,
+	//it is handed to whichever Handler the Router has for it. for files that is serveFile(), for scripts serveCgi().
+	public void respond(HttpRequest request){
+
+		keepAlive = false;
+		protocol = "HTTP/1.0";
+		requestCount++;
+
+		try{
+
+			//a request that broke one of the limits stopped being read partway through, so the connection cant be used again.
+			if(request.overLimit != null){
+				if(request.valid && request.version > 1.0f) protocol = "HTTP/1.1";
+				sendStatus(request.overLimit);
+				shutdown();
+				return;
+			}
+
+			//HTTP/2, from a client that knew to start with it, or one asking to switch. either way the connection is an Http2Connection's now.
+			//only over plain HTTP, HTTPS would have agreed on it during the handshake.
+			if(ServerConfig.http2 && stream == null && (connection == null || connection.tls == null)){
+				boolean preface = Http2Connection.isPreface(request);
+				if(preface || (!Lifecycle.draining && Http2Connection.wantsUpgrade(request))){
+					http2(request, preface);
+					shutdown();
+					return;
+				}
+			}
+
+			if(request.valid == false){
+				sendStatus("400 Bad Request");
+				shutdown();
+				return;
+			}
+			
+			//FROM HERE ON, THE REQUEST **SHOULD BE** ASSUMED TO BE PROPERLY FORMATTED (except for the headers that need to be done as of thurs 6:30)
+
+			String command = request.method;
+			String resource = request.path();
+
+			//a broken %XX in the path
+			if(resource == null){
+				sendStatus("400 Bad Request");
+				shutdown();
+				return;
+			}
+	
+			float versionNumber = request.version;
+
+			if(versionNumber > 1.1f){
+				sendStatus("505 HTTP Version Not Supported");
+				shutdown();
+				return;
+			}
+			if(versionNumber > 1.0f) protocol = "HTTP/1.1";
+
+			//1.1 requests have to say which host they are for
+			if(protocol.equals("HTTP/1.1") && request.findHeader("Host") == -1){
+				sendStatus("400 Bad Request");
+				shutdown();
+				return;
+			}
+
+			keepAlive = persistent(request);
+
+			//the metrics page goes before admission control, so it can still be seen when the server is turning everything else away
+			if(Metrics.enabled && (command.equals("GET") || command.equals("HEAD")) && resource.equals(ServerConfig.metricsPath)){
+				sendMetrics(command);
+				shutdown();
+				return;
+			}
+
+			//a drain asked for over HTTP, see Lifecycle. only from this machine, anyone else gets a 403.
+			if(command.equals("POST") && !ServerConfig.drainPath.isEmpty() && resource.equals(ServerConfig.drainPath)){
+				if(!clientAddress.isLoopbackAddress()){
+					sendStatus("403 Forbidden");
+					shutdown();
+					return;
+				}
+				keepAlive = false;
+				send(request, "202 Accepted", "text/plain", "draining\n".getBytes(StandardCharsets.ISO_8859_1));
+				shutdown();
+				Lifecycle.exit();
+				return;
+			}
+
+			//static files and cgi each have their own limit. how long this connection waited for a worker counts too,
+			//but only for its first request, the ones after that didnt wait.
+			Limiter limiter = AdmissionControl.forMethod(command);
+			long queueWait = queuedAt == 0 ? 0 : System.nanoTime() - queuedAt;
+			queuedAt = 0;
+			if(limiter != null){
+				if(!limiter.tryAcquire(queueWait)){
+					sendShed();
+					shutdown();
+					return;
+				}
+				admittedBy = limiter;
+				serviceStart = System.nanoTime();
+			}
+
+			//which handler answers is up to the Router: files for GET and HEAD, and cgi for POST, unless a route says otherwise.
+			Handler handler = Router.shared.find(command, resource);
+			if(handler == null){
+				//a method nothing is routed for was properly formed, but isnt one this server does
+				sendStatus(Router.shared.handles(command) ? "404 Not Found" : "501 Not Implemented");
+				shutdown();
+				return;
+			}
+			handler.handle(this, request, resource);
+
+			//whatever of a streamed body the handler didnt read is still on its way in, and has to be out of the way before the next request
+			if(keepAlive && request.streaming() && !request.body().skipRest()) keepAlive = false;
+			shutdown();
+			return;
+		}
+
+		
+
+		//this catches all possible crazy unforeseen errors. Nothing in particular.
+		catch(IOException ioe){ 
+			keepAlive = false; //part of a response might be out already, so this connection is done either way
+			String cause = String.valueOf(ioe.getCause());
+			//System.out.println(cause);
+			try{
+				if(cause.contains("error=13,")){ //for POST requests lacking in execute permissions
+					sendStatus("403 Forbidden");
+				}
+
+				else if(ioe instanceof SocketTimeoutException){ //a streamed body stopped coming
+					sendStatus("408 Request Timeout");
+				}
+
+				else if(ioe instanceof ChunkedInputStream.Refused){ //a streamed chunked body that went over, or wasnt chunked properly
+					sendStatus(((ChunkedInputStream.Refused) ioe).status);
+				}
+				
+				else{
+					sendStatus("500 Internal Server Error");
+				}
+			
+				shutdown();
+			}
+			catch(IOException ioe2){
+				//closing and flushing failed at the last second? idk what to do.
+				return;
+			}
+			return;
+		}
+	}
+
+	//the static file handler, Router.FILES. GET and HEAD of a file under the server's directory.
+	public void serveFile(HttpRequest request, String resource) throws IOException{
+		String command = request.method;
+		long lookupStart = System.nanoTime();
+
+		//nothing outside the server's directory gets served, however many ".." it takes to get there.
+		String path = DocIndex.normalize(resource);
+		if(path == null){
+			sendStatus("403 Forbidden");
+			return;
+		}
+
+		//popular files are kept in memory. if this is one of them, it goes out without touching the disk.
+		String cacheKey = FileCache.key(path);
+		FileCache.Entry cached = FileCache.shared.get(cacheKey);
+		if(cached != null){
+			Metrics.lap(Metrics.LOOKUP, lookupStart);
+			if(!sendCompressed(command, cacheKey, cached.file, cached.size, cached.lastModified, cached.etag, cached.body, request)
+				&& !notModified(command, cached.lastModified, cached.etag, request)) sendCached(command, cached, request);
+			return;
+		}
+
+		// i use substring here because java doesnt need the initial slash to find the resource...
+		File fileToRead = new File("." + path);//.substring(1)
+
+		//size, modified time and so on, from the DocIndex if there is one, so the file isnt stat'ed again and again.
+		DocIndex.Entry entry = DocIndex.lookup(path);
+		if(entry == null){ 
+			sendStatus("404 Not Found");
+			return;
+		}
+
+		if(entry.directory()){
+			sendStatus("400 Bad Request"); // i guess so?
+			return;
+		}
+
+		if(!entry.readable()){
+			sendStatus("403 Forbidden");
+			return;
+		}
+		
+		long lastModified = entry.lastModified;
+		long size = entry.size;
+		String etag = entry.etag();
+
+		if(sendCompressed(command, cacheKey, fileToRead, size, lastModified, etag, null, request)){
+			return;
+		}
+
+		if(notModified(command, lastModified, etag, request)){
+			return;
+		}
+
+
+		FileChannel fc = null;
+		
+		try{
+
+			//the file is opened as a channel so its contents can go straight to the socket
+			fc = FileChannel.open(fileToRead.toPath(), StandardOpenOption.READ);
+
+			//the index can be a moment behind a file that is being written. if it is, this is the one time the disk gets asked.
+			if(fc.size() != size){
+				entry = DocIndex.stat(DocIndex.ROOT, path);
+				if(entry == null || entry.directory()){
+					fc.close();
+					sendStatus("404 Not Found");
+					return;
+				}
+				lastModified = entry.lastModified;
+				size = entry.size;
+				etag = entry.etag();
+			}
+			Metrics.lap(Metrics.LOOKUP, lookupStart);
+		}
+
+		//it was deleted since the index saw it.
+		catch(NoSuchFileException nsfe){
+			sendStatus("404 Not Found");
+			return;
+		}
+
+		// Okay, this is a bit confusing. 
+		// Checking for 404 Not Found is already done by this point.
+		// This catch is only catching AccessDenied because that is what gets thrown for no read permissions!
+		// Weirdly, File.canRead() doesnt work??? but this does????? whateverrr 
+		catch(AccessDeniedException ade){
+			sendStatus("403 Forbidden");
+			return;
+		}
+
+
+		//small enough to keep? then it gets read in once, and this and every later request is served from memory.
+		if(command.equals("GET")){
+			FileCache.Entry loaded = FileCache.shared.load(cacheKey, fileToRead, size, lastModified, etag, fileHeaders(headers.reset(), entry.type, size, lastModified, etag).toByteArray());
+			if(loaded != null){
+				fc.close();
+				sendCached(command, loaded, request);
+				return;
+			}
+		}
+
+		//just part of it?
+		if(command.equals("GET")){
+			int n = Conditional.ranges(request, size, lastModified, etag, ranges);
+			if(n != 0){
+				sendRanges(n, fileToRead, size, lastModified, etag, null, fc);
+				return;
+			}
+		}
+
+		//status line and headers first. HEAD needs the blank line too.
+		fileHeaders(startResponse("200 OK"), entry.type, size, lastModified, etag).dates().end();
+		sendHeaders();
+
+		if(command.equals("HEAD")){
+			fc.close();
+			return;
+		}
+
+		else if(command.equals("GET")){ //just to be clear.
+
+			//then the file itself, byte for byte, without ever pulling it onto the heap
+			long bodyStart = System.nanoTime();
+			sendFile(fc, 0, fc.size());
+			Metrics.lap(Metrics.BODY, bodyStart);
+			return;
+	
+
+		}
+	}
+
+	//the cgi handler, Router.CGI. POST to a script, which gets the form data on its standard input.
+	public void serveCgi(HttpRequest request, String resource) throws IOException{
+		long lookupStart = System.nanoTime();
+
+		String path = DocIndex.normalize(resource);
+		if(path == null){
+			sendStatus("403 Forbidden");
+			return;
+		}
+		File fileToRead = new File("." + path);//.substring(1)
+
+		DocIndex.Entry entry = DocIndex.lookup(path);
+		if(entry == null){ 
+			sendStatus("404 Not Found");
+			return;
+		}
+
+		if(entry.directory()){
+			sendStatus("400 Bad Request"); // i guess so?
+			return;
+		}
+
+		
+		int contentLength = getContentLength(request);
+		if(contentLength == -1){
+			sendStatus("411 Length Required");
+			return;
+		}
+
+		
+		String contentType = getContentType(request);
+		if(contentType == null || !contentType.equals("application/x-www-form-urlencoded")){ //PP2 code cant handle anything else
+			sendStatus("500 Internal Server Error");
+			return;
+		}
+
+
+		//at this point, contentLength will be a valid int but it may be negative... hmmm. 400 Bad Format?
+
+		String extension = resource.substring(resource.lastIndexOf('.') + 1);
+		if(!extension.equalsIgnoreCase("cgi")){ //SHOULD WE USE EQUALSIGNORECASE? NEEDS TESTING
+			sendStatus("405 Method Not Allowed");
+			return;
+		}
+
+		// System.out.println(fileToRead.canExecute());
+		// if(!fileToRead.canExecute()){
+		// 	pw.print("HTTP/1.0 403 Forbidden" + '\r' + '\n');
+		// 	shutdown();
+		// 	return;
+		// }
+		//NONE OF THAT WORKS SO WERE JUST GONNA RUN IT, LET IT FAIL WITH SECURITYEXCEPTION, AND CATCH THAT
+
+		long cgiStart = Metrics.lap(Metrics.LOOKUP, lookupStart);
+
+		//the payload is decoded on its way to the script, so all that is needed now is how long it will be.
+		//a body that was too big to read in with the headers is decoded into a file first, which the script then reads from.
+		int payloadStart = request.bodyStart;
+		int payloadEnd = getPayloadEnd(request);
+		File spooled = null;
+		long payloadLength;
+		if(request.streaming()){
+			spooled = spool(request.body());
+			payloadLength = spooled == null ? -1 : spooled.length();
+		}
+		else payloadLength = PercentDecoder.decodedLength(request.buf, payloadStart, payloadEnd);
+		if(payloadLength == -1){
+			sendStatus("400 Bad Request");
+			return;
+		}
+		if(spooled != null || payloadEnd > payloadStart){
+			contentLength = (int) payloadLength;
+		}
+
+		try{
+			runCgi(request, resource, fileToRead, contentLength, payloadLength, spooled, cgiStart);
+		}
+		finally{
+			if(spooled != null) spooled.delete();
+		}
+	}
+
+	//the rest of serveCgi, once the payload is ready to go: sets up the environment and runs the script, pooled if it can be.
+	public void runCgi(HttpRequest request, String resource, File fileToRead, int contentLength, long payloadLength, File spooled, long cgiStart) throws IOException{
+		int payloadStart = request.bodyStart;
+		int payloadEnd = getPayloadEnd(request);
+
+		Map<String, String> env = new HashMap<String, String>();
+		env.put("CONTENT_LENGTH", "" + contentLength); //concat'ing an int just casts it to string.
+		env.put("SCRIPT_NAME", resource);
+		env.put("SERVER_NAME", clientAddress.toString()); //internet address of socket.
+		env.put("SERVER_PORT", "" + clientPort);
+		
+		String httpfrom = getFrom(request);
+		if(httpfrom != null){
+			env.put("HTTP_FROM", httpfrom); 
+		}
+		
+		String httpua = getUserAgent(request);
+		if(httpua != null){
+			env.put("HTTP_USER_AGENT", httpua);
+		}
+
+		if(connection != null && connection.tls != null){
+			env.put("HTTPS", "on");
+		}
+
+		//scripts that are set up to be pooled are already running, so the request just gets handed over.
+		//(a spooled payload isnt, the pool protocol hands the payload over from memory.)
+		CgiPool pool = spooled == null ? CgiPool.forScript(resource, fileToRead) : null;
+		if(pool != null){
+			byte [] output;
+			long blockStart = BlockingMonitor.enter();
+			try{
+				output = pool.call(env, request.buf, payloadStart, payloadEnd, (int) payloadLength);
+			}
+			catch(CgiPool.Timeout t){
+				sendStatus("504 Gateway Timeout");
+				return;
+			}
+			finally{
+				BlockingMonitor.exit(BlockingMonitor.CGI_WAIT, blockStart);
+			}
+			if(output != null){
+				String encoding = null;
+				if(Compression.applies("text/html", output.length) && (encoding = Compression.negotiate(request)) != null){
+					output = Compression.compress(ByteBuffer.wrap(output), encoding);
+				}
+				//set headers again
+				cgiHeaders(startResponse(output.length == 0 ? "204 No Content" : "200 OK"), fileToRead, output.length, encoding).end();
+				sendHeaders();
+				out.write(output);
+				Metrics.lap(Metrics.CGI, cgiStart);
+				return;
+			}
+		}
+
+		//if none of them is free, or the script isnt pooled, it gets started up fresh like always.
+		String encoding = Compression.applies("text/html", -1) ? Compression.negotiate(request) : null;
+		streamCgi(fileToRead, env, request.buf, payloadStart, payloadEnd, spooled, encoding);
+		Metrics.lap(Metrics.CGI, cgiStart);
+	}
+
+}
@@ -0,0 +1,421 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+
+//HPACK (RFC 7541), how HTTP/2 compresses headers. an Http2Connection has a Decoder for the headers the client sends
+//and an Encoder for the ones that go back, and each keeps its own dynamic table of headers already sent,
+//so sending the same one again is just its index. both tables are bounded by server.http2.headerTable:
+//the client is told that is all the room our decoder has, and the encoder uses no more than that, or than the client has.
+//names and values are ISO-8859-1 Strings, a char per byte, the same as HttpRequest makes them.
+class Hpack{
+
+	//appendix A. index 1 is STATIC[0], and the dynamic table starts at 62.
+	static final String [][] STATIC = {
+		{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+		{":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+		{":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+		{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+		{"content-encoding", ""}, {"content-language", ""}, {"content-length", ""}, {"content-location", ""}, {"content-range", ""},
+		{"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""},
+		{"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+		{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""},
+		{"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+		{"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+		{"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+		{"www-authenticate", ""}
+	};
+
+	//appendix B, the huffman code for each byte, right-aligned, and how many bits long it is.
+	//EOS is the code after 255. it is only ever seen as the padding at the end of a string, never whole.
+	static final int [] CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	static final byte [] LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+	static final int EOS = 0x3fffffff;
+	static final int EOS_LENGTH = 30;
+
+	//the codes as a tree, for decoding a bit at a time. node n goes to TREE[2 * n] on a 0 and TREE[2 * n + 1] on a 1.
+	//a positive entry is the next node, and ~b is where the code for byte b ends (~256 for EOS). the root is node 0.
+	static final int [] TREE = tree();
+
+	static int [] tree(){
+		int [] tree = new int[2 * 512];
+		int nodes = 1;
+		for(int b = 0; b <= 256; b++){
+			int code = b == 256 ? EOS : CODES[b];
+			int length = b == 256 ? EOS_LENGTH : LENGTHS[b];
+			int n = 0;
+			for(int i = length - 1; i > 0; i--){
+				int bit = (code >>> i) & 1;
+				if(tree[2 * n + bit] == 0) tree[2 * n + bit] = nodes++;
+				n = tree[2 * n + bit];
+			}
+			tree[2 * n + (code & 1)] = ~b;
+		}
+		return tree;
+	}
+
+	//how much room a header takes up in a dynamic table. the 32 is the spec's guess at what keeping it costs.
+	static int entrySize(String name, String value){
+		return name.length() + value.length() + 32;
+	}
+
+	static String huffmanDecode(byte [] b, int from, int to) throws IOException{
+		char [] out = new char[(to - from) * 8 / 5]; //no code is shorter than 5 bits
+		int length = 0;
+		int n = 0;
+		int bits = 0; //since the last whole code
+		boolean ones = true;
+		for(int i = from; i < to; i++){
+			for(int shift = 7; shift >= 0; shift--){
+				int bit = (b[i] >>> shift) & 1;
+				int next = TREE[2 * n + bit];
+				if(next < 0){
+					if(next == ~256) throw new IOException("EOS in a huffman string");
+					out[length++] = (char) ~next;
+					n = 0;
+					bits = 0;
+					ones = true;
+				}
+				else{
+					n = next;
+					bits++;
+					ones &= bit == 1;
+				}
+			}
+		}
+		//what is left over has to be the start of EOS, which is all ones, and less than a byte of it
+		if(bits > 7 || !ones) throw new IOException("bad huffman padding");
+		return new String(out, 0, length);
+	}
+
+	//how many bytes s is huffman coded.
+	static int huffmanLength(String s){
+		long bits = 0;
+		for(int i = 0; i < s.length(); i++) bits += LENGTHS[s.charAt(i) & 0xff];
+		return (int) ((bits + 7) / 8);
+	}
+
+	static void huffmanEncode(String s, ByteArrayOutputStream out){
+		long pending = 0; //only the low bits count
+		int bits = 0;
+		for(int i = 0; i < s.length(); i++){
+			int c = s.charAt(i) & 0xff;
+			pending = (pending << LENGTHS[c]) | CODES[c];
+			bits += LENGTHS[c];
+			while(bits >= 8){
+				bits -= 8;
+				out.write((int) (pending >>> bits));
+			}
+		}
+		if(bits > 0) out.write((int) (pending << (8 - bits)) | (0xff >>> bits)); //padded out with the start of EOS
+	}
+
+	//an integer with an n bit prefix (5.1). flags are whatever goes in the bits of the first byte above the prefix.
+	static void integer(ByteArrayOutputStream out, int value, int n, int flags){
+		int max = (1 << n) - 1;
+		if(value < max){
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while(value >= 128){
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	//a string literal (5.2), huffman coded if that makes it shorter.
+	static void string(ByteArrayOutputStream out, String s){
+		int huffman = huffmanLength(s);
+		if(huffman < s.length()){
+			integer(out, huffman, 7, 0x80);
+			huffmanEncode(s, out);
+			return;
+		}
+		integer(out, s.length(), 7, 0);
+		for(int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+	}
+
+	//a dynamic table, newest entry first. old entries fall off the end to make room for new ones.
+	static class Table{
+
+		String [] names = new String[16];
+		String [] values = new String[16];
+		int first = 0; //where the newest entry is. the rest follow it, wrapping around
+		int count = 0;
+		int size = 0;
+		int capacity;
+
+		Table(int capacity){
+			this.capacity = capacity;
+		}
+
+		//entry i, 0 being the newest.
+		String name(int i){
+			return names[(first + i) & (names.length - 1)];
+		}
+
+		String value(int i){
+			return values[(first + i) & (names.length - 1)];
+		}
+
+		//an entry bigger than the whole table empties it, and isnt added.
+		void add(String name, String value){
+			int s = entrySize(name, value);
+			while(count > 0 && size + s > capacity) evict();
+			if(s > capacity) return;
+			if(count == names.length){
+				String [] n = new String[2 * count];
+				String [] v = new String[2 * count];
+				for(int i = 0; i < count; i++){
+					n[i] = name(i);
+					v[i] = value(i);
+				}
+				names = n;
+				values = v;
+				first = 0;
+			}
+			first = (first - 1) & (names.length - 1);
+			names[first] = name;
+			values[first] = value;
+			count++;
+			size += s;
+		}
+
+		void resize(int capacity){
+			this.capacity = capacity;
+			while(size > capacity) evict();
+		}
+
+		void evict(){
+			int last = (first + count - 1) & (names.length - 1);
+			size -= entrySize(names[last], values[last]);
+			names[last] = null;
+			values[last] = null;
+			count--;
+		}
+	}
+
+	//the client's side of things. one header block at a time, in the order they came in on the connection.
+	static class Decoder{
+
+		Table table;
+		int maxCapacity; //what the client was told it can use
+
+		//where decode() is up to
+		byte [] b;
+		int pos;
+		int to;
+
+		Decoder(int maxCapacity){
+			this.maxCapacity = maxCapacity;
+			table = new Table(maxCapacity);
+		}
+
+		//decodes the header block in b[from..to) into headers, each name followed by its value.
+		//once the headers add up to more than limit (counted the way the table counts them) the rest are still decoded,
+		//since the table has to end up the same as the client's, but not kept. then it returns false.
+		//anything wrong with the block itself is an IOException, and the connection cant go on after that.
+		boolean decode(byte [] block, int from, int until, List<String> headers, int limit) throws IOException{
+			b = block;
+			pos = from;
+			to = until;
+			int total = 0;
+			boolean fits = true;
+			boolean sizeUpdates = true; //only allowed at the start of a block
+
+			while(pos < to){
+				int first = b[pos] & 0xff;
+				String name;
+				String value;
+				if((first & 0x80) != 0){ //indexed
+					int index = integer(7);
+					name = name(index);
+					value = value(index);
+				}
+				else if((first & 0xe0) == 0x20){ //a dynamic table size update
+					if(!sizeUpdates) throw new IOException("table size update after a header");
+					int capacity = integer(5);
+					if(capacity > maxCapacity) throw new IOException("table size update past " + maxCapacity);
+					table.resize(capacity);
+					continue;
+				}
+				else{
+					//a literal. with incremental indexing (01), it goes in the table after. without (0000) or never indexed (0001) it doesnt.
+					boolean indexing = (first & 0xc0) == 0x40;
+					int index = integer(indexing ? 6 : 4);
+					name = index == 0 ? string() : name(index);
+					value = string();
+					if(indexing) table.add(name, value);
+				}
+				sizeUpdates = false;
+
+				total += entrySize(name, value);
+				if(total > limit) fits = false;
+				if(fits){
+					headers.add(name);
+					headers.add(value);
+				}
+			}
+			b = null;
+			return fits;
+		}
+
+		String name(int index) throws IOException{
+			if(index == 0) throw new IOException("index 0");
+			if(index <= STATIC.length) return STATIC[index - 1][0];
+			if(index - STATIC.length > table.count) throw new IOException("index " + index + " isnt in the table");
+			return table.name(index - STATIC.length - 1);
+		}
+
+		String value(int index) throws IOException{
+			if(index <= STATIC.length) return STATIC[index - 1][1];
+			return table.value(index - STATIC.length - 1);
+		}
+
+		//an integer with an n bit prefix. anything past 2^28 is someone up to no good.
+		int integer(int n) throws IOException{
+			int max = (1 << n) - 1;
+			int value = b[pos++] & max;
+			if(value < max) return value;
+			for(int shift = 0; ; shift += 7){
+				if(pos == to) throw new IOException("the block ends in the middle of an integer");
+				if(shift > 21) throw new IOException("integer too big");
+				int c = b[pos++] & 0xff;
+				value += (c & 0x7f) << shift;
+				if((c & 0x80) == 0) return value;
+			}
+		}
+
+		String string() throws IOException{
+			if(pos == to) throw new IOException("the block ends before a string");
+			boolean huffman = (b[pos] & 0x80) != 0;
+			int length = integer(7);
+			if(length > to - pos) throw new IOException("the block ends in the middle of a string");
+			String s = huffman ? huffmanDecode(b, pos, pos + length) : new String(b, pos, length, StandardCharsets.ISO_8859_1);
+			pos += length;
+			return s;
+		}
+	}
+
+	//our side. the encoder decides what goes in its table, so it never uses more than the smaller of its bound and what the client has.
+	static class Encoder{
+
+		int bound;
+		Table table = new Table(4096); //the size the client starts out assuming
+
+		//size updates owed to the client, sent at the start of the next block. if the table got smaller then bigger again
+		//in between, the client has to hear about the smallest it got too. -1 if there is none.
+		int pending = -1;
+		int smallest;
+
+		Encoder(int bound){
+			this.bound = bound;
+			capacity(4096);
+		}
+
+		//the client's SETTINGS_HEADER_TABLE_SIZE.
+		void capacity(int setting){
+			int c = Math.min(setting, bound);
+			if(c == table.capacity && pending == -1) return;
+			smallest = pending == -1 ? c : Math.min(smallest, c);
+			pending = c;
+			table.resize(c);
+		}
+
+		void start(ByteArrayOutputStream out){
+			if(pending == -1) return;
+			if(smallest < pending) integer(out, smallest, 5, 0x20);
+			integer(out, pending, 5, 0x20);
+			pending = -1;
+		}
+
+		void header(ByteArrayOutputStream out, String name, String value){
+			int nameIndex = 0;
+			for(int i = 0; i < STATIC.length; i++){
+				if(!STATIC[i][0].equals(name)) continue;
+				if(STATIC[i][1].equals(value)){
+					integer(out, i + 1, 7, 0x80);
+					return;
+				}
+				if(nameIndex == 0) nameIndex = i + 1;
+			}
+			for(int i = 0; i < table.count; i++){
+				if(!table.name(i).equals(name)) continue;
+				if(table.value(i).equals(value)){
+					integer(out, STATIC.length + 1 + i, 7, 0x80);
+					return;
+				}
+				if(nameIndex == 0) nameIndex = STATIC.length + 1 + i;
+			}
+
+			boolean indexing = !name.equals("set-cookie") && !changes(name) && entrySize(name, value) <= table.capacity;
+			if(indexing) integer(out, nameIndex, 6, 0x40);
+			else if(name.equals("set-cookie")) integer(out, nameIndex, 4, 0x10); //never indexed, by anybody in between either
+			else integer(out, nameIndex, 4, 0);
+			if(nameIndex == 0) string(out, name);
+			string(out, value);
+			if(indexing) table.add(name, value);
+		}
+
+		//headers that are different nearly every time. in the table they would only push out the ones worth keeping.
+		static boolean changes(String name){
+			switch(name){
+				case "content-length":
+				case "content-range":
+				case "etag":
+				case "last-modified":
+					return true;
+				default:
+					return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,790 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//HTTP/2 over plain TCP (h2c), on a connection that started out as HTTP/1.
+//HandlerThread hands the connection over when its first request is the HTTP/2 preface (a client that knew to start with it),
+//or a 1.1 request with "Upgrade: h2c", which is then answered as stream 1. from then on, the thread that had the connection
+//reads frames off it, and each request that comes in on a stream is answered by a HandlerThread of its own on the h2-stream pool,
+//same as if it had come in on a connection of its own: static files, cgi, routes and all. see Http2Stream for how the answer gets back.
+//request bodies are read in whole (up to server.limits.body) before the request is handed over.
+//every frame goes out whole under one lock, so the streams take turns a frame at a time, and a big file doesnt hold up the rest.
+//flow control is both ways, per stream and for the connection. there is no server push, and no TLS (h2 over TLS needs ALPN).
+class Http2Connection{
+
+	static final byte [] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	static final int PRI_REQUEST = 18; //"PRI * HTTP/2.0\r\n\r\n", which reads as a request with no headers
+
+	//frame types
+	static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4, PUSH_PROMISE = 0x5,
+		PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+	//flags
+	static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+	//error codes
+	static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3, STREAM_CLOSED = 0x5,
+		FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, CANCEL = 0x8, COMPRESSION_ERROR = 0x9, ENHANCE_YOUR_CALM = 0xb;
+
+	//settings
+	static final int HEADER_TABLE_SIZE = 0x1, ENABLE_PUSH = 0x2, MAX_CONCURRENT_STREAMS = 0x3, INITIAL_WINDOW_SIZE = 0x4,
+		MAX_FRAME_SIZE = 0x5, MAX_HEADER_LIST_SIZE = 0x6;
+
+	static final int DEFAULT_WINDOW = 65535;
+	static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+	//the biggest frame either side sends. it is the smallest a client has to take, so there is nothing to agree on.
+	static final int MAX_FRAME = 16384;
+
+	//the threads streams are answered on. there is no limit here, each connection keeps itself to server.http2.concurrency.
+	static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "h2-stream");
+		t.setDaemon(true);
+		return t;
+	});
+
+	//the connections being served, for telling them all GOAWAY when the server stops. see Lifecycle.
+	static final Set<Http2Connection> live = ConcurrentHashMap.newKeySet();
+
+	//for Metrics
+	static final AtomicLong connections = new AtomicLong();
+	static final AtomicLong streams = new AtomicLong();
+	static final AtomicLong refused = new AtomicLong();
+	static final AtomicLong resets = new AtomicLong();
+
+	//a connection error. the connection is over, and the client is told why with a GOAWAY.
+	static class Failure extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		int code;
+
+		Failure(int code, String message){
+			super(message);
+			this.code = code;
+		}
+	}
+
+	InputStream in;
+	OutputStream out;
+	byte [] frameHeader = new byte[9];
+	byte [] payload = new byte[MAX_FRAME];
+	byte [] outFrame = new byte[9 + MAX_FRAME]; //frames are put together here and written in one go. only touched under writeLock
+
+	Object writeLock = new Object();
+	Hpack.Decoder decoder = new Hpack.Decoder(Math.max(ServerConfig.http2HeaderTable, 4096)); //4096 until the client has our SETTINGS
+	Hpack.Encoder encoder = new Hpack.Encoder(ServerConfig.http2HeaderTable); //only touched under writeLock
+
+	//streams ready to be answered, and how many are being answered, guarded by waiting. see start().
+	ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+	int running;
+
+	//everything below is guarded by this, and streams waiting for window wait on it.
+	Map<Integer, Http2Stream> open = new HashMap<>();
+	int lastStream = 0; //the highest one the client has started
+	boolean closed = false; //nothing more can go out
+	boolean goingAway = false; //no new streams, the ones already going get to finish
+	long sendWindow = DEFAULT_WINDOW; //DATA we can still send, on all streams together
+	int initialWindow = DEFAULT_WINDOW; //what each new stream starts out with, from the client's SETTINGS
+	int frameSize = MAX_FRAME; //the biggest DATA frame we send. never more than the client's MAX_FRAME_SIZE
+
+	long receiveWindow = DEFAULT_WINDOW; //DATA the client can still send us. only the reading thread touches this
+
+	//request body held for all the streams together, which is never more than server.limits.body. only the reading thread touches this.
+	//each stream would fit on its own, but a client with all of its streams open could make the server hold that many times over.
+	long bodyBytes = 0;
+
+	//a header block coming in over a HEADERS frame and the CONTINUATIONs after it
+	ByteArrayOutputStream block = new ByteArrayOutputStream();
+	int blockStream = 0;
+	int blockFlags;
+
+	long lastFrame = System.currentTimeMillis();
+
+	//who the client is, for the HandlerThreads answering its streams
+	InetAddress clientAddress;
+	int clientPort;
+
+	Http2Connection(InputStream in, OutputStream out, InetAddress clientAddress, int clientPort){
+		this.in = in;
+		this.out = out;
+		this.clientAddress = clientAddress;
+		this.clientPort = clientPort;
+	}
+
+	//true if the request is how a client with prior knowledge starts HTTP/2: the preface, which parses as a (bad) "PRI" request.
+	static boolean isPreface(HttpRequest request){
+		if(request.end - request.start < PRI_REQUEST) return false;
+		for(int i = 0; i < PRI_REQUEST; i++){
+			if(request.buf[request.start + i] != PREFACE[i]) return false;
+		}
+		return true;
+	}
+
+	//true if the request asks to switch to h2c. the body has to be all there already, it is stream 1's.
+	static boolean wantsUpgrade(HttpRequest request){
+		if(!request.valid || request.version != 1.1f || request.streaming() || !request.complete) return false;
+		String upgrade = request.header("Upgrade");
+		if(upgrade == null || request.findHeader("HTTP2-Settings") == -1) return false;
+		for(String protocol : upgrade.split(",")){
+			if(protocol.trim().equalsIgnoreCase("h2c")) return true;
+		}
+		return false;
+	}
+
+	//runs the connection until the client is done with it, or it breaks. upgraded is the request that asked for the upgrade,
+	//answered as stream 1 (after the 101, which is already out), or null if the client started with the preface.
+	//prefaceRead is how much of the preface came in as the request.
+	void serve(HttpRequest upgraded, int prefaceRead) throws IOException{
+		connections.incrementAndGet();
+		try{
+			//our SETTINGS have to be the first thing the client gets, then the connection's window goes up from the 64k everybody starts with
+			ByteArrayOutputStream settings = new ByteArrayOutputStream();
+			setting(settings, HEADER_TABLE_SIZE, ServerConfig.http2HeaderTable);
+			setting(settings, ENABLE_PUSH, 0);
+			setting(settings, MAX_CONCURRENT_STREAMS, ServerConfig.http2MaxStreams);
+			setting(settings, INITIAL_WINDOW_SIZE, ServerConfig.http2Window);
+			setting(settings, MAX_HEADER_LIST_SIZE, ServerConfig.maxRequestLine + ServerConfig.maxHeaderBytes);
+			frame(SETTINGS, 0, 0, settings.toByteArray(), 0, settings.size());
+			if(ServerConfig.http2Window > DEFAULT_WINDOW){
+				windowUpdate(0, ServerConfig.http2Window - DEFAULT_WINDOW);
+				receiveWindow = ServerConfig.http2Window;
+			}
+
+			//a server that started draining before this was in live wouldnt have told it
+			live.add(this);
+			if(Lifecycle.draining) goAway(NO_ERROR, null);
+
+			if(upgraded != null){
+				byte [] b = Base64.getUrlDecoder().decode(upgraded.header("HTTP2-Settings").trim());
+				settings(b, b.length);
+				lastStream = 1;
+				Http2Stream s = new Http2Stream(this, 1);
+				s.remoteClosed = true;
+				synchronized(this){
+					open.put(1, s);
+				}
+				start(s, upgraded);
+			}
+
+			//the rest of the preface
+			byte [] preface = new byte[PREFACE.length - prefaceRead];
+			if(!readFully(preface, preface.length, false)) return;
+			for(int i = 0; i < preface.length; i++){
+				if(preface[i] != PREFACE[prefaceRead + i]) throw new Failure(PROTOCOL_ERROR, "no preface");
+			}
+
+			while(readFrame());
+		}
+		catch(Failure f){
+			goAway(f.code, f.getMessage());
+		}
+		catch(IllegalArgumentException iae){
+			goAway(PROTOCOL_ERROR, "bad HTTP2-Settings");
+		}
+		finally{
+			live.remove(this);
+			awaitStreams();
+		}
+	}
+
+	//no new streams on any connection. the ones already started get answered, and then each connection closes.
+	static void drainAll(){
+		for(Http2Connection c : live) c.goAway(NO_ERROR, null);
+	}
+
+	//reads a frame and does what it says. false once the client is done: it closed the connection,
+	//or it was idle longer than the keep-alive timeout, or it said GOAWAY and its streams are all answered.
+	boolean readFrame() throws IOException{
+		if(!readFully(frameHeader, 9, true)) return false;
+		lastFrame = System.currentTimeMillis();
+		int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+		int type = frameHeader[3] & 0xff;
+		int flags = frameHeader[4] & 0xff;
+		int stream = int32(frameHeader, 5) & 0x7fffffff;
+		if(length > MAX_FRAME) throw new Failure(FRAME_SIZE_ERROR, "a frame of " + length + " bytes");
+		if(!readFully(payload, length, false)) return false;
+		if(blockStream != 0 && type != CONTINUATION) throw new Failure(PROTOCOL_ERROR, "a header block was cut off");
+
+		switch(type){
+			case DATA:
+				data(stream, flags, length);
+				break;
+			case HEADERS:
+				headers(stream, flags, length);
+				break;
+			case CONTINUATION:
+				if(stream != blockStream || blockStream == 0) throw new Failure(PROTOCOL_ERROR, "CONTINUATION out of place");
+				block.write(payload, 0, length);
+				if(block.size() > maxBlock()) throw new Failure(ENHANCE_YOUR_CALM, "a header block too big to decode");
+				if((flags & END_HEADERS) != 0) headersDone();
+				break;
+			case PRIORITY:
+				if(stream == 0) throw new Failure(PROTOCOL_ERROR, "PRIORITY on stream 0");
+				if(length != 5) reset(stream, FRAME_SIZE_ERROR);
+				break; //every stream gets its turn, nobody is first
+			case RST_STREAM:
+				if(stream == 0) throw new Failure(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+				if(length != 4) throw new Failure(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+				if(stream > lastStream) throw new Failure(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+				Http2Stream s;
+				synchronized(this){
+					s = open.remove(stream);
+					notifyAll();
+				}
+				if(s != null){
+					dropBody(s);
+					s.cancel();
+				}
+				break;
+			case SETTINGS:
+				if(stream != 0) throw new Failure(PROTOCOL_ERROR, "SETTINGS on a stream");
+				if((flags & ACK) != 0){
+					if(length != 0) throw new Failure(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+					decoder.maxCapacity = ServerConfig.http2HeaderTable;
+					break;
+				}
+				settings(payload, length);
+				frame(SETTINGS, ACK, 0, payload, 0, 0);
+				break;
+			case PUSH_PROMISE:
+				throw new Failure(PROTOCOL_ERROR, "clients dont push");
+			case PING:
+				if(stream != 0) throw new Failure(PROTOCOL_ERROR, "PING on a stream");
+				if(length != 8) throw new Failure(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+				if((flags & ACK) == 0) frame(PING, ACK, 0, payload, 0, 8);
+				break;
+			case GOAWAY:
+				if(stream != 0) throw new Failure(PROTOCOL_ERROR, "GOAWAY on a stream");
+				synchronized(this){
+					goingAway = true;
+					if(open.isEmpty()) return false;
+				}
+				break;
+			case WINDOW_UPDATE:
+				if(length != 4) throw new Failure(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+				windowUpdated(stream, int32(payload, 0) & 0x7fffffff);
+				break;
+			default:
+				break; //unknown frames are ignored
+		}
+		return true;
+	}
+
+	//reads n bytes into b, or returns false if the client has gone. a frame can take as long as it likes to start,
+	//between frames the read just times out and tries again, until the connection has been idle the keep-alive timeout
+	//with nothing going on. then it is told GOAWAY and closed. once a frame has started, the rest of it has the request timeout.
+	//a stream whose request is still coming in isnt anything going on, it is the client that owes us something.
+	//so those dont keep an idle connection open, they are refused when it closes.
+	boolean readFully(byte [] b, int n, boolean betweenFrames) throws IOException{
+		int read = 0;
+		while(read < n){
+			int r;
+			try{
+				r = in.read(b, read, n - read);
+			}
+			catch(SocketTimeoutException ste){
+				if(!betweenFrames || read > 0) throw ste;
+				synchronized(this){
+					if(goingAway && open.isEmpty()) return false; //the client said it was done, and everything it asked for is answered
+					if(answering() || System.currentTimeMillis() - lastFrame < ServerConfig.keepAliveTimeout) continue;
+				}
+				refuseUnstarted();
+				goAway(NO_ERROR, "idle");
+				return false;
+			}
+			if(r == -1) return false;
+			read += r;
+		}
+		return true;
+	}
+
+	//true if any stream has gone to the workers, and isnt answered yet. must hold the lock.
+	boolean answering(){
+		for(Http2Stream s : open.values()){
+			if(s.started) return true;
+		}
+		return false;
+	}
+
+	//gives up on the streams whose requests never finished coming in. nothing was done with them, so the client can try them again.
+	void refuseUnstarted() throws IOException{
+		List<Http2Stream> refuse = new ArrayList<>();
+		synchronized(this){
+			Iterator<Http2Stream> it = open.values().iterator();
+			while(it.hasNext()){
+				Http2Stream s = it.next();
+				if(s.started) continue;
+				it.remove();
+				refuse.add(s);
+			}
+			notifyAll();
+		}
+		for(Http2Stream s : refuse){
+			dropBody(s);
+			s.cancel();
+			reset(s.id, REFUSED_STREAM);
+		}
+	}
+
+	//the most bytes of HPACK a request can take. they can only decode to more, so past this it is no use.
+	static int maxBlock(){
+		return 2 * (ServerConfig.maxRequestLine + ServerConfig.maxHeaderBytes);
+	}
+
+	void data(int stream, int flags, int length) throws IOException{
+		if(stream == 0) throw new Failure(PROTOCOL_ERROR, "DATA on stream 0");
+		int from = 0;
+		int to = length;
+		if((flags & PADDED) != 0){
+			if(length == 0) throw new Failure(FRAME_SIZE_ERROR, "no room for the padding length");
+			from = 1;
+			to -= payload[0] & 0xff;
+			if(to < from) throw new Failure(PROTOCOL_ERROR, "more padding than frame");
+		}
+
+		//all of it counts against the windows, padding too
+		if(length > receiveWindow) throw new Failure(FLOW_CONTROL_ERROR, "DATA past the connection's window");
+		receiveWindow -= length;
+		if(receiveWindow < ServerConfig.http2Window / 2){
+			windowUpdate(0, ServerConfig.http2Window - receiveWindow);
+			receiveWindow = ServerConfig.http2Window;
+		}
+
+		Http2Stream s;
+		synchronized(this){
+			s = open.get(stream);
+		}
+		if(s == null || s.remoteClosed){
+			if(stream > lastStream) throw new Failure(PROTOCOL_ERROR, "DATA on an idle stream");
+			reset(stream, STREAM_CLOSED);
+			return;
+		}
+		if(length > s.receiveWindow){
+			reset(stream, FLOW_CONTROL_ERROR);
+			synchronized(this){
+				open.remove(stream);
+				notifyAll();
+			}
+			dropBody(s);
+			s.cancel();
+			return;
+		}
+		s.receiveWindow -= length;
+
+		boolean end = (flags & END_STREAM) != 0;
+		if(s.body != null){
+			if(s.body.size() + (to - from) > ServerConfig.maxBody || bodyBytes + (to - from) > ServerConfig.maxBody){
+				//the request cant be taken in, so it is answered now, and whatever more of it comes is just thrown away
+				dropBody(s);
+				s.remoteClosed = end;
+				ready(s, RequestReader.PAYLOAD_TOO_LARGE);
+				return;
+			}
+			s.body.write(payload, from, to - from);
+			bodyBytes += to - from;
+		}
+		if(end){
+			s.remoteClosed = true;
+			if(s.body != null) ready(s, null);
+		}
+		else if(s.receiveWindow < ServerConfig.http2Window / 2){
+			windowUpdate(stream, ServerConfig.http2Window - s.receiveWindow);
+			s.receiveWindow = ServerConfig.http2Window;
+		}
+	}
+
+	void headers(int stream, int flags, int length) throws IOException{
+		if(stream == 0 || (stream & 1) == 0) throw new Failure(PROTOCOL_ERROR, "HEADERS on stream " + stream);
+		int from = 0;
+		int to = length;
+		if((flags & PADDED) != 0){
+			if(length == 0) throw new Failure(FRAME_SIZE_ERROR, "no room for the padding length");
+			from = 1;
+			to -= payload[0] & 0xff;
+		}
+		if((flags & PRIORITY_FLAG) != 0) from += 5; //ignored, like PRIORITY frames
+		if(to < from) throw new Failure(PROTOCOL_ERROR, "HEADERS too short");
+		block.reset();
+		block.write(payload, from, to - from);
+		blockStream = stream;
+		blockFlags = flags;
+		if((flags & END_HEADERS) != 0) headersDone();
+	}
+
+	//the whole header block is in. it is decoded whatever happens to the stream, so the decoder's table stays the same as the client's.
+	void headersDone() throws IOException{
+		int stream = blockStream;
+		boolean end = (blockFlags & END_STREAM) != 0;
+		blockStream = 0;
+
+		List<String> fields = new ArrayList<>();
+		boolean fits;
+		try{
+			fits = decoder.decode(block.toByteArray(), 0, block.size(), fields, ServerConfig.maxRequestLine + ServerConfig.maxHeaderBytes);
+		}
+		catch(IOException ioe){
+			throw new Failure(COMPRESSION_ERROR, ioe.getMessage());
+		}
+
+		Http2Stream s;
+		synchronized(this){
+			s = open.get(stream);
+		}
+		if(s != null){
+			//trailers, after the body. there is nothing to do with them
+			if(!end || s.remoteClosed) reset(stream, PROTOCOL_ERROR);
+			else{
+				s.remoteClosed = true;
+				if(s.body != null) ready(s, null);
+			}
+			return;
+		}
+		if(stream <= lastStream){
+			reset(stream, STREAM_CLOSED);
+			return;
+		}
+		lastStream = stream;
+
+		synchronized(this){
+			if(goingAway) return; //it is past the last stream the GOAWAY said would be answered
+			if(open.size() < ServerConfig.http2MaxStreams){
+				s = new Http2Stream(this, stream);
+				open.put(stream, s);
+			}
+		}
+		if(s == null){
+			refused.incrementAndGet();
+			reset(stream, REFUSED_STREAM);
+			return;
+		}
+		s.fields = fields;
+		s.fits = fits;
+		s.remoteClosed = end;
+		if(end) ready(s, null);
+		else s.body = new ByteArrayOutputStream();
+	}
+
+	//the request on s is all in (or is being answered early, with limit as the status). it is turned into the HTTP/1.1 request
+	//it would have been, so HandlerThread can answer it as it would any other.
+	void ready(Http2Stream s, String limit) throws IOException{
+		byte [] body = s.body == null ? null : s.body.toByteArray();
+		dropBody(s);
+		byte [] buf = s.request(body);
+		if(buf == null){
+			reset(s.id, PROTOCOL_ERROR);
+			synchronized(this){
+				open.remove(s.id);
+				notifyAll();
+			}
+			return;
+		}
+		int headerEnd = buf.length - (body == null ? 0 : body.length);
+
+		HttpRequest request = new HttpRequest();
+		request.parse(buf, 0, headerEnd);
+		if(limit == null) limit = s.fits ? RequestReader.overLimit(request, buf, headerEnd, buf.length) : RequestReader.HEADERS_TOO_LARGE;
+		RequestReader.finish(request, buf, headerEnd, buf.length);
+		request.complete = true;
+		request.overLimit = limit;
+		start(s, request);
+	}
+
+	//lets go of what came in of the stream's body. only the reading thread calls this.
+	void dropBody(Http2Stream s){
+		if(s.body == null) return;
+		bodyBytes -= s.body.size();
+		s.body = null;
+	}
+
+	//the stream goes on the workers, or waits in line if server.http2.concurrency of them are already being answered.
+	//the wait counts as queue wait, so admission control sees it like it sees an HTTP/1 request waiting for a worker.
+	void start(Http2Stream s, HttpRequest request){
+		s.started = true;
+		streams.incrementAndGet();
+		HandlerThread handler = new HandlerThread(s, request);
+		handler.queuedAt = System.nanoTime();
+		Runnable task = () -> {
+			try{
+				handler.run();
+			}
+			finally{
+				s.finish();
+				next();
+			}
+		};
+		synchronized(waiting){
+			if(running >= ServerConfig.http2Concurrency){
+				waiting.add(task);
+				return;
+			}
+			running++;
+		}
+		workers.execute(task);
+	}
+
+	//a stream was answered, so the one waiting longest can go.
+	void next(){
+		Runnable task;
+		synchronized(waiting){
+			task = waiting.poll();
+			if(task == null){
+				running--;
+				return;
+			}
+		}
+		workers.execute(task);
+	}
+
+	//the stream is over on our side. if the client hadnt finished sending (because it didnt need to), it is told to stop.
+	void done(Http2Stream s){
+		boolean stop;
+		synchronized(this){
+			stop = open.remove(s.id) != null && !s.remoteClosed;
+			notifyAll();
+		}
+		if(stop){
+			try{
+				reset(s.id, NO_ERROR);
+			}
+			catch(IOException ioe){
+				return;
+			}
+		}
+	}
+
+	//applies the settings in b[0..length).
+	void settings(byte [] b, int length) throws IOException{
+		if(length % 6 != 0) throw new Failure(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+		for(int i = 0; i < length; i += 6){
+			int id = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+			long value = int32(b, i + 2) & 0xffffffffL;
+			switch(id){
+				case HEADER_TABLE_SIZE:
+					synchronized(writeLock){
+						encoder.capacity((int) Math.min(value, Integer.MAX_VALUE));
+					}
+					break;
+				case ENABLE_PUSH:
+					if(value > 1) throw new Failure(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+					break;
+				case INITIAL_WINDOW_SIZE:
+					if(value > MAX_WINDOW) throw new Failure(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+					//the difference goes to every stream already open, and can take a window below 0
+					synchronized(this){
+						long change = value - initialWindow;
+						initialWindow = (int) value;
+						for(Http2Stream s : open.values()){
+							s.sendWindow += change;
+							if(s.sendWindow > MAX_WINDOW) throw new Failure(FLOW_CONTROL_ERROR, "a window past 2^31-1");
+						}
+						notifyAll();
+					}
+					break;
+				case MAX_FRAME_SIZE:
+					if(value < 16384 || value > 16777215) throw new Failure(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+					synchronized(this){
+						frameSize = (int) Math.min(value, MAX_FRAME);
+					}
+					break;
+				default:
+					break; //MAX_CONCURRENT_STREAMS is about pushes, which never happen. the rest we dont need
+			}
+		}
+	}
+
+	void windowUpdated(int stream, int increment) throws IOException{
+		if(stream == 0){
+			if(increment == 0) throw new Failure(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+			synchronized(this){
+				sendWindow += increment;
+				if(sendWindow > MAX_WINDOW) throw new Failure(FLOW_CONTROL_ERROR, "the connection's window past 2^31-1");
+				notifyAll();
+			}
+			return;
+		}
+		Http2Stream s;
+		synchronized(this){
+			s = open.get(stream);
+			if(s != null && increment > 0){
+				s.sendWindow += increment;
+				notifyAll();
+			}
+		}
+		if(s == null){
+			if(stream > lastStream) throw new Failure(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+			return; //already closed, the update just got there late
+		}
+		if(increment == 0 || s.sendWindow > MAX_WINDOW){
+			reset(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+			synchronized(this){
+				open.remove(stream);
+				notifyAll();
+			}
+			dropBody(s);
+			s.cancel();
+		}
+	}
+
+	//waits (as long as a connection gets to sit idle) for the streams still going to finish up. the connection closes after.
+	void awaitStreams(){
+		long deadline = System.currentTimeMillis() + ServerConfig.keepAliveTimeout;
+		synchronized(this){
+			try{
+				while(!open.isEmpty() && !closed){
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) break;
+					wait(wait);
+				}
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+			closed = true;
+			notifyAll();
+		}
+		Collection<Http2Stream> left;
+		synchronized(this){
+			left = new ArrayList<>(open.values());
+			open.clear();
+		}
+		for(Http2Stream s : left) s.cancel();
+	}
+
+	//sends b[off..off+len) as DATA on s, a frame at a time, as the client's windows allow. end is END_STREAM on the last one.
+	//a client that keeps the window shut for as long as a connection can be idle is given up on.
+	void data(Http2Stream s, byte [] b, int off, int len, boolean end) throws IOException{
+		do{
+			int n;
+			synchronized(this){
+				long deadline = System.currentTimeMillis() + ServerConfig.keepAliveTimeout;
+				while(true){
+					if(closed) throw new IOException("the connection is closed");
+					if(s.cancelled) throw new IOException("the client reset the stream");
+					n = (int) Math.min(Math.min(sendWindow, s.sendWindow), Math.min(len, frameSize));
+					if(n > 0 || len == 0) break;
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) throw new SocketTimeoutException("the client stopped reading");
+					try{
+						wait(wait);
+					}
+					catch(InterruptedException ie){
+						throw new InterruptedIOException();
+					}
+				}
+				sendWindow -= n;
+				s.sendWindow -= n;
+			}
+			frame(DATA, end && n == len ? END_STREAM : 0, s.id, b, off, n);
+			off += n;
+			len -= n;
+		}
+		while(len > 0);
+	}
+
+	//the response's headers, as a HEADERS frame and as many CONTINUATIONs as it takes. they are encoded under the same lock
+	//they are written with, so the client decodes them in the order the encoder's table changed.
+	void headers(Http2Stream s, List<String> fields, boolean end) throws IOException{
+		synchronized(writeLock){
+			ByteArrayOutputStream b = s.encoded;
+			b.reset();
+			encoder.start(b);
+			for(int i = 0; i < fields.size(); i += 2) encoder.header(b, fields.get(i), fields.get(i + 1));
+			byte [] block = b.toByteArray();
+			int size;
+			synchronized(this){
+				size = frameSize;
+			}
+			int off = 0;
+			do{
+				int n = Math.min(size, block.length - off);
+				int flags = off + n == block.length ? END_HEADERS : 0;
+				if(off == 0) frame(HEADERS, flags | (end ? END_STREAM : 0), s.id, block, off, n);
+				else frame(CONTINUATION, flags, s.id, block, off, n);
+				off += n;
+			}
+			while(off < block.length);
+		}
+	}
+
+	void reset(int stream, int code) throws IOException{
+		resets.incrementAndGet();
+		byte [] b = new byte[4];
+		putInt32(b, 0, code);
+		frame(RST_STREAM, 0, stream, b, 0, 4);
+	}
+
+	void windowUpdate(int stream, long increment) throws IOException{
+		byte [] b = new byte[4];
+		putInt32(b, 0, (int) increment);
+		frame(WINDOW_UPDATE, 0, stream, b, 0, 4);
+	}
+
+	//tells the client the connection is over, and which of its streams got answered (all of them up to lastStream).
+	void goAway(int code, String why){
+		byte [] debug = why == null || code == NO_ERROR ? new byte[0] : why.getBytes(StandardCharsets.ISO_8859_1);
+		byte [] b = new byte[8 + Math.min(debug.length, 256)];
+		synchronized(this){
+			goingAway = true;
+			putInt32(b, 0, lastStream);
+		}
+		putInt32(b, 4, code);
+		System.arraycopy(debug, 0, b, 8, b.length - 8);
+		try{
+			frame(GOAWAY, 0, 0, b, 0, b.length);
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+
+	//one whole frame. everything goes out through here.
+	void frame(int type, int flags, int stream, byte [] b, int off, int len) throws IOException{
+		synchronized(writeLock){
+			if(closed) throw new IOException("the connection is closed");
+			outFrame[0] = (byte) (len >>> 16);
+			outFrame[1] = (byte) (len >>> 8);
+			outFrame[2] = (byte) len;
+			outFrame[3] = (byte) type;
+			outFrame[4] = (byte) flags;
+			putInt32(outFrame, 5, stream);
+			System.arraycopy(b, off, outFrame, 9, len);
+			try{
+				out.write(outFrame, 0, 9 + len);
+				out.flush();
+			}
+			catch(IOException ioe){
+				synchronized(this){
+					closed = true;
+					notifyAll();
+				}
+				throw ioe;
+			}
+		}
+	}
+
+	static void setting(ByteArrayOutputStream out, int id, int value){
+		out.write(id >>> 8);
+		out.write(id);
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	static int int32(byte [] b, int i){
+		return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+	}
+
+	static void putInt32(byte [] b, int i, int v){
+		b[i] = (byte) (v >>> 24);
+		b[i + 1] = (byte) (v >>> 16);
+		b[i + 2] = (byte) (v >>> 8);
+		b[i + 3] = (byte) v;
+	}
+}
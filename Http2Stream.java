@@ -0,0 +1,267 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+
+//one request and its response on an Http2Connection.
+//the HandlerThread answering it writes to this like it would to a socket, HTTP/1 status line, headers and all.
+//the status line and headers are turned into a HEADERS frame (less the ones that are about the HTTP/1 connection),
+//and what comes after them goes out as DATA frames, a frame's worth at a time, or whatever there is when it is flushed.
+//the HEADERS wait for the first DATA or the end, so a response with no body is one frame.
+class Http2Stream extends OutputStream{
+
+	//headers that are about an HTTP/1 connection, and mean nothing (or are not allowed) in HTTP/2
+	static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	Http2Connection connection;
+	int id;
+
+	//the request side, only touched by the thread reading frames
+	List<String> fields; //the decoded headers, name then value
+	boolean fits; //false if they went over the limits and some were left out
+	ByteArrayOutputStream body; //the body as it comes in. null if there is none coming, or it is done
+	long receiveWindow = ServerConfig.http2Window;
+	volatile boolean remoteClosed = false;
+	boolean started = false; //handed to the workers. only the reading thread sets it, and reads it under the connection's lock
+
+	//the response side. sendWindow is guarded by connection, the rest is only touched by the HandlerThread
+	long sendWindow;
+	volatile boolean cancelled = false;
+	ByteArrayOutputStream head = new ByteArrayOutputStream(); //the HTTP/1 head, until it is all here
+	List<String> response; //the head, as HTTP/2 headers. null until the blank line at the end of it
+	long length = -1; //its Content-Length, if it has one
+	long sent = 0;
+	boolean headersSent = false;
+	boolean endSent = false; //END_STREAM is out, the response is over
+	byte [] data = new byte[Http2Connection.MAX_FRAME];
+	int buffered = 0;
+	ByteArrayOutputStream encoded = new ByteArrayOutputStream(); //for the connection to encode headers into
+
+	Http2Stream(Http2Connection c, int id){
+		connection = c;
+		this.id = id;
+		sendWindow = c.initialWindow;
+	}
+
+	//the request, as the HTTP/1.1 request it would have been, body and all. null if it is malformed:
+	//a pseudo header missing, doubled up, unknown or after the others, an upper case name, or a header only HTTP/1 has.
+	byte [] request(byte [] payload){
+		String method = null, path = null, scheme = null, authority = null;
+		StringBuilder sb = new StringBuilder();
+		StringBuilder cookies = null;
+		boolean regular = false;
+		for(int i = 0; i < fields.size(); i += 2){
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			if(value.indexOf('\r') != -1 || value.indexOf('\n') != -1 || value.indexOf('\0') != -1) return null;
+			if(name.startsWith(":")){
+				if(regular) return null;
+				switch(name){
+					case ":method":
+						if(method != null) return null;
+						method = value;
+						break;
+					case ":path":
+						if(path != null) return null;
+						path = value;
+						break;
+					case ":scheme":
+						if(scheme != null) return null;
+						scheme = value;
+						break;
+					case ":authority":
+						if(authority != null) return null;
+						authority = value;
+						break;
+					default:
+						return null;
+				}
+				continue;
+			}
+			regular = true;
+			for(int c = 0; c < name.length(); c++){
+				char ch = name.charAt(c);
+				if(ch <= ' ' || ch == ':' || (ch >= 'A' && ch <= 'Z') || ch > '~') return null;
+			}
+			if(CONNECTION_HEADERS.contains(name)) return null;
+			if(name.equals("te") && !value.equals("trailers")) return null;
+			if(name.equals("content-length")) continue; //worked out from the body below
+			if(name.equals("host") && authority != null) continue;
+			if(name.equals("cookie")){
+				//they can come split up, one per crumb, to compress better. HTTP/1 has them all on one line
+				if(cookies == null) cookies = new StringBuilder(value);
+				else cookies.append("; ").append(value);
+				continue;
+			}
+			sb.append(name).append(": ").append(value).append("\r\n");
+		}
+		if(method == null || scheme == null || path == null || path.isEmpty()) return null;
+
+		StringBuilder head = new StringBuilder();
+		head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		if(authority != null) head.append("Host: ").append(authority).append("\r\n");
+		head.append(sb);
+		if(cookies != null) head.append("Cookie: ").append(cookies).append("\r\n");
+		if(payload != null) head.append("Content-Length: ").append(payload.length).append("\r\n");
+		head.append("\r\n");
+
+		byte [] h = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		if(payload == null) return h;
+		byte [] buf = Arrays.copyOf(h, h.length + payload.length);
+		System.arraycopy(payload, 0, buf, h.length, payload.length);
+		return buf;
+	}
+
+	public void write(int b) throws IOException{
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	public void write(byte [] b, int off, int len) throws IOException{
+		if(cancelled) throw new IOException("the client reset the stream");
+		if(endSent) throw new IOException("the response is over");
+		if(response == null){
+			//still in the head. it ends at the first blank line, and whatever is after that is body
+			int scanFrom = Math.max(0, head.size() - 3);
+			head.write(b, off, len);
+			byte [] h = head.toByteArray();
+			int end = -1;
+			for(int i = scanFrom; i + 3 < h.length; i++){
+				if(h[i] == '\r' && h[i + 1] == '\n' && h[i + 2] == '\r' && h[i + 3] == '\n'){
+					end = i + 4;
+					break;
+				}
+			}
+			if(end == -1) return;
+			headDone(h, end);
+			if(end < h.length) bodyWrite(h, end, h.length - end);
+			return;
+		}
+		bodyWrite(b, off, len);
+	}
+
+	void headDone(byte [] h, int end){
+		response = parseHead(h, end);
+		head = null;
+		for(int i = 0; i < response.size(); i += 2){
+			if(!response.get(i).equals("content-length")) continue;
+			try{
+				length = Long.parseLong(response.get(i + 1));
+			}
+			catch(NumberFormatException nfe){
+				length = -1;
+			}
+		}
+	}
+
+	void bodyWrite(byte [] b, int off, int len) throws IOException{
+		//a big write goes straight out, no point copying it
+		if(buffered == 0 && len >= data.length){
+			send(b, off, len);
+			return;
+		}
+		while(len > 0){
+			int n = Math.min(len, data.length - buffered);
+			System.arraycopy(b, off, data, buffered, n);
+			buffered += n;
+			off += n;
+			len -= n;
+			if(buffered == data.length) flush();
+		}
+	}
+
+	//whatever body there is goes out now. the headers go with it, unless there is no body yet.
+	public void flush() throws IOException{
+		if(response == null || buffered == 0) return;
+		int n = buffered;
+		buffered = 0;
+		send(data, 0, n);
+	}
+
+	//body, after the headers if they arent out yet. the DATA that gets to the Content-Length ends the stream,
+	//since clients take the response as done right then, and some dont expect anything more on the stream.
+	void send(byte [] b, int off, int len) throws IOException{
+		boolean last = length != -1 && sent + len >= length;
+		if(!headersSent){
+			headersSent = true;
+			connection.headers(this, response, false);
+		}
+		connection.data(this, b, off, len, last);
+		sent += len;
+		endSent = last;
+	}
+
+	//the end of the response. the last of it goes with END_STREAM, unless it already went.
+	public void close() throws IOException{
+		if(cancelled || endSent) return;
+		//what was written never got to the blank line, like a bare "HTTP/1.0 404 Not Found". that is still the status
+		if(response == null && head.size() > 0) headDone(head.toByteArray(), head.size());
+		if(response == null){
+			endSent = true;
+			connection.reset(id, Http2Connection.INTERNAL_ERROR);
+			return;
+		}
+		if(!headersSent && buffered == 0){
+			//no body, like a 304 or a HEAD. the headers are all of it
+			headersSent = true;
+			endSent = true;
+			connection.headers(this, response, true);
+			return;
+		}
+		if(!headersSent){
+			headersSent = true;
+			connection.headers(this, response, false);
+		}
+		int n = buffered;
+		buffered = 0;
+		endSent = true;
+		connection.data(this, data, 0, n, true);
+	}
+
+	//called when the HandlerThread is done with it, whatever state it left things in.
+	void finish(){
+		try{
+			close();
+		}
+		catch(IOException ioe){
+			//the connection is gone, or the client reset the stream
+		}
+		connection.done(this);
+	}
+
+	//the client reset the stream, or the connection is going away. the HandlerThread finds out the next time it writes.
+	void cancel(){
+		cancelled = true;
+	}
+
+	//":status" and the headers of an HTTP/1 response head in h[0..end), names in lower case.
+	static List<String> parseHead(byte [] h, int end){
+		List<String> headers = new ArrayList<>();
+		String status = "500";
+		int lineStart = 0;
+		boolean first = true;
+		while(lineStart < end){
+			int lineEnd = lineStart;
+			while(lineEnd < end && h[lineEnd] != '\r' && h[lineEnd] != '\n') lineEnd++;
+			String line = new String(h, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+			lineStart = lineEnd;
+			while(lineStart < end && (h[lineStart] == '\r' || h[lineStart] == '\n') && lineStart - lineEnd < 2) lineStart++;
+			if(first){
+				first = false;
+				//"HTTP/1.1 200 OK"
+				int space = line.indexOf(' ');
+				if(space != -1 && line.length() >= space + 4) status = line.substring(space + 1, space + 4);
+				headers.add(":status");
+				headers.add(status);
+				continue;
+			}
+			int colon = line.indexOf(':');
+			if(colon <= 0) continue;
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			if(CONNECTION_HEADERS.contains(name)) continue;
+			headers.add(name);
+			headers.add(line.substring(colon + 1).trim());
+		}
+		return headers;
+	}
+}
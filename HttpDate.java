@@ -0,0 +1,158 @@
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+
+
+//HTTP dates ("Sun, 06 Nov 1994 08:49:37 GMT"), without SimpleDateFormat.
+//formatting is done by hand straight into bytes, so it is thread safe and makes no garbage.
+//the current time only changes once a second, so the Date and Expires header lines are rendered once a second and shared.
+//other times (Last-Modified) are kept in a small table, so the same file's time is only ever rendered once.
+class HttpDate{
+
+	//how far ahead Expires is. picked a random number. Thank you Rent
+	static final long EXPIRES_AFTER = 525600;
+
+	static final byte [][] DAYS = ascii("Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"); //day 0 of the epoch was a thursday
+	static final byte [][] MONTHS = ascii("Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec");
+
+	//parsing is rare (only conditional GETs), so that is left to java.time. DateTimeFormatter is immutable, so one is enough.
+	//"zzz" takes GMT, UTC and friends, same as the old SimpleDateFormat did.
+	//the day name is skipped rather than checked, since SimpleDateFormat never checked it either.
+	static final DateTimeFormatter PARSER = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss zzz", Locale.US);
+
+	//the Date and Expires lines for the current second.
+	static class Now{
+		final long second;
+		final byte [] dateLine;
+		final byte [] expiresLine;
+
+		Now(long s){
+			second = s;
+			dateLine = line("Date: ", s * 1000);
+			expiresLine = line("Expires: ", s * 1000 + EXPIRES_AFTER);
+		}
+	}
+
+	static volatile Now now = new Now(System.currentTimeMillis() / 1000);
+
+	//one rendered time. the fields are final so a slot can be read from any thread without locking.
+	static class Rendered{
+		final long millis;
+		final byte [] bytes;
+
+		Rendered(long m){
+			millis = m;
+			bytes = new byte[29];
+			format(m, bytes, 0);
+		}
+	}
+
+	static final Rendered [] rendered = new Rendered[1024];
+
+	//the lines for right now. whoever first notices the second has changed renders the new ones.
+	static Now current(){
+		Now n = now;
+		long second = System.currentTimeMillis() / 1000;
+		if(n.second != second){
+			n = new Now(second);
+			now = n;
+		}
+		return n;
+	}
+
+	//"Date: ...\r\n" for the current second.
+	static byte [] dateLine(){
+		return current().dateLine;
+	}
+
+	//"Expires: ...\r\n" for the current second.
+	static byte [] expiresLine(){
+		return current().expiresLine;
+	}
+
+	//millis rendered as an HTTP date, 29 bytes, no CRLF.
+	//the last result for each slot is remembered, so asking for the same file's mtime again is just a lookup.
+	static byte [] bytes(long millis){
+		int slot = (int) ((millis / 1000) ^ (millis >>> 32)) & (rendered.length - 1);
+		Rendered r = rendered[slot];
+		if(r == null || r.millis != millis){
+			r = new Rendered(millis);
+			rendered[slot] = r;
+		}
+		return r.bytes;
+	}
+
+	static String format(long millis){
+		return new String(bytes(millis), StandardCharsets.ISO_8859_1);
+	}
+
+	//writes the 29 bytes of the date into b at off.
+	static void format(long millis, byte [] b, int off){
+		long seconds = Math.floorDiv(millis, 1000);
+		long days = Math.floorDiv(seconds, 86400);
+		int secOfDay = Math.floorMod(seconds, 86400);
+
+		//days since the epoch to year/month/day. this is Howard Hinnant's civil_from_days.
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		byte [] dayName = DAYS[Math.floorMod(days, 7)];
+		b[off] = dayName[0]; b[off + 1] = dayName[1]; b[off + 2] = dayName[2];
+		b[off + 3] = ','; b[off + 4] = ' ';
+		twoDigits(day, b, off + 5);
+		b[off + 7] = ' ';
+		byte [] monthName = MONTHS[month - 1];
+		b[off + 8] = monthName[0]; b[off + 9] = monthName[1]; b[off + 10] = monthName[2];
+		b[off + 11] = ' ';
+		twoDigits((int) (year / 100) % 100, b, off + 12);
+		twoDigits((int) (year % 100), b, off + 14);
+		b[off + 16] = ' ';
+		twoDigits(secOfDay / 3600, b, off + 17);
+		b[off + 19] = ':';
+		twoDigits(secOfDay / 60 % 60, b, off + 20);
+		b[off + 22] = ':';
+		twoDigits(secOfDay % 60, b, off + 23);
+		b[off + 25] = ' '; b[off + 26] = 'G'; b[off + 27] = 'M'; b[off + 28] = 'T';
+	}
+
+	//an HTTP date as millis from the epoch, or -1 if it isnt one.
+	static long parse(String s){
+		int comma = s.indexOf(", ");
+		try{
+			return ZonedDateTime.parse(s.substring(comma + 2), PARSER).toInstant().toEpochMilli();
+		}
+		catch(DateTimeParseException dtpe){
+			return -1;
+		}
+	}
+
+	static void twoDigits(int v, byte [] b, int off){
+		b[off] = (byte) ('0' + v / 10);
+		b[off + 1] = (byte) ('0' + v % 10);
+	}
+
+	static byte [] line(String name, long millis){
+		byte [] b = new byte[name.length() + 29 + 2];
+		for(int i = 0; i < name.length(); i++) b[i] = (byte) name.charAt(i);
+		format(millis, b, name.length());
+		b[b.length - 2] = '\r';
+		b[b.length - 1] = '\n';
+		return b;
+	}
+
+	static byte [][] ascii(String... strings){
+		byte [][] b = new byte[strings.length][];
+		for(int i = 0; i < strings.length; i++) b[i] = strings[i].getBytes(StandardCharsets.ISO_8859_1);
+		return b;
+	}
+}
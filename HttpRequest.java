@@ -0,0 +1,310 @@
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+
+//a parsed request. parse() goes over the raw bytes once and only remembers where things are (offsets into the buffer),
+//so nothing gets copied or split. Strings are only made if somebody asks for one.
+//a connection keeps one of these and parses every request into it, so the arrays in here get reused too.
+//the checks on the request line are the same ones HandlerThread.correctFormat used to do with split(),
+//and anything it would have rejected (or crashed on) comes out with valid == false.
+class HttpRequest{
+
+	//the methods correctFormat accepted. method always points at one of these, so comparing with == is fine.
+	static final String [] METHODS = {"GET", "POST", "HEAD", "DELETE", "PUT", "LINK", "UNLINK"};
+
+	byte [] buf;
+	int start;
+	int end;
+	boolean valid;
+
+	String method;
+	int targetStart, targetEnd;
+	int versionStart, versionEnd;
+	float version;
+
+	//header i runs from nameStart[i] to nameEnd[i] (the name, without the colon)
+	//and valueStart[i] to valueEnd[i] (the value, without the spaces around it).
+	int headerCount;
+	int [] nameStart = new int[16];
+	int [] nameEnd = new int[16];
+	int [] valueStart = new int[16];
+	int [] valueEnd = new int[16];
+
+	//where the body starts. equal to end if there is no body.
+	int bodyStart;
+
+	byte [] pathBuf = new byte[256]; //path() decodes into this
+
+	//set by whoever read the request. complete is false if the client stopped (or ran out of time, or room) partway through,
+	//chunked is true if the body came chunked and has already been decoded in place.
+	boolean complete;
+	boolean chunked;
+
+	//set by whoever read the request if it broke one of the limits in ServerConfig, to the status it gets, e.g. "413 Payload Too Large".
+	String overLimit;
+
+	//for a body too big to read in with the headers. the part of it that came in with them is buf[bodyStart..end),
+	//and the other bodyLeft bytes are still to come from bodyRest. null if all of the body is in buf.
+	//a chunked body that is streamed is all in bodyRest (a ChunkedInputStream), and bodyLeft is -1.
+	InputStream bodyRest;
+	long bodyLeft;
+	RequestBody body;
+
+	//parses buf[from] up to buf[to]. returns the same thing that ends up in valid.
+	public boolean parse(byte [] b, int from, int to){
+		buf = b;
+		start = from;
+		end = to;
+		method = null;
+		headerCount = 0;
+		bodyStart = to;
+		complete = true;
+		chunked = false;
+		overLimit = null;
+		bodyRest = null;
+		bodyLeft = 0;
+		body = null;
+		valid = parseRequestLine();
+		if(valid) parseHeaders();
+		return valid;
+	}
+
+	//method SP target SP HTTP/version, and nothing else on the line.
+	boolean parseRequestLine(){
+		int lineEnd = indexOfCrlf(start);
+		if(lineEnd == -1) lineEnd = end;
+		if(lineEnd == start) return false;
+
+		//no leading or trailing spaces
+		if(buf[start] == ' ' || buf[lineEnd - 1] == ' ') return false;
+
+		int space1 = indexOf(' ', start, lineEnd);
+		if(space1 == -1) return false;
+		int space2 = indexOf(' ', space1 + 1, lineEnd);
+		if(space2 == -1) return false;
+		if(indexOf(' ', space2 + 1, lineEnd) != -1) return false; //exactly three tokens
+		if(space2 == space1 + 1) return false; //empty target
+
+		method = matchMethod(start, space1);
+		if(method == null) return false;
+
+		targetStart = space1 + 1;
+		targetEnd = space2;
+		if(buf[targetStart] != '/') return false;
+
+		versionStart = space2 + 1;
+		versionEnd = lineEnd;
+		return parseVersion();
+	}
+
+	//"HTTP/" and then a number. anything after another slash is ignored, like split("/") used to do.
+	boolean parseVersion(){
+		int i = versionStart;
+		if(versionEnd - i < 5 || buf[i] != 'H' || buf[i + 1] != 'T' || buf[i + 2] != 'T' || buf[i + 3] != 'P' || buf[i + 4] != '/') return false;
+		int numStart = i + 5;
+		int numEnd = indexOf('/', numStart, versionEnd);
+		if(numEnd == -1) numEnd = versionEnd;
+
+		//the usual case, one digit dot one digit, without making a String.
+		if(numEnd - numStart == 3 && isDigit(buf[numStart]) && buf[numStart + 1] == '.' && isDigit(buf[numStart + 2])){
+			version = (buf[numStart] - '0') + (buf[numStart + 2] - '0') / 10f;
+			return true;
+		}
+
+		//anything else gets the same treatment as before.
+		try{
+			version = Float.parseFloat(new String(buf, numStart, numEnd - numStart, StandardCharsets.ISO_8859_1));
+			return true;
+		}
+		catch(NumberFormatException nfe){
+			return false;
+		}
+	}
+
+	//the headers were parsed already, and now the body has come in after them.
+	//the buffer might have been swapped for a bigger copy in the meantime, the offsets are still good.
+	public void extend(byte [] b, int to){
+		buf = b;
+		end = to;
+	}
+
+	//one header per line until the blank line. lines without a colon are skipped.
+	void parseHeaders(){
+		int lineStart = indexOfCrlf(start);
+		if(lineStart == -1) return;
+		lineStart += 2;
+
+		while(lineStart < end){
+			int lineEnd = indexOfCrlf(lineStart);
+			if(lineEnd == lineStart){ //blank line, the body is next
+				bodyStart = lineStart + 2;
+				return;
+			}
+			if(lineEnd == -1) lineEnd = end;
+
+			int colon = indexOf(':', lineStart, lineEnd);
+			if(colon > lineStart){
+				int vs = colon + 1;
+				int ve = lineEnd;
+				while(vs < ve && (buf[vs] == ' ' || buf[vs] == '\t')) vs++;
+				while(ve > vs && (buf[ve - 1] == ' ' || buf[ve - 1] == '\t')) ve--;
+				addHeader(lineStart, colon, vs, ve);
+			}
+			lineStart = lineEnd + 2;
+		}
+	}
+
+	void addHeader(int ns, int ne, int vs, int ve){
+		if(headerCount == nameStart.length){
+			nameStart = java.util.Arrays.copyOf(nameStart, headerCount * 2);
+			nameEnd = java.util.Arrays.copyOf(nameEnd, headerCount * 2);
+			valueStart = java.util.Arrays.copyOf(valueStart, headerCount * 2);
+			valueEnd = java.util.Arrays.copyOf(valueEnd, headerCount * 2);
+		}
+		nameStart[headerCount] = ns;
+		nameEnd[headerCount] = ne;
+		valueStart[headerCount] = vs;
+		valueEnd[headerCount] = ve;
+		headerCount++;
+	}
+
+	String matchMethod(int from, int to){
+		for(String m : METHODS){
+			if(m.length() != to - from) continue;
+			boolean same = true;
+			for(int i = 0; i < m.length() && same; i++){
+				same = buf[from + i] == m.charAt(i);
+			}
+			if(same) return m;
+		}
+		return null;
+	}
+
+	//index of the first header called name (any case), or -1.
+	public int findHeader(String name){
+		for(int h = 0; h < headerCount; h++){
+			if(isNamed(h, name)) return h;
+		}
+		return -1;
+	}
+
+	boolean isNamed(int h, String name){
+		int len = nameEnd[h] - nameStart[h];
+		if(len != name.length()) return false;
+		for(int i = 0; i < len; i++){
+			int a = buf[nameStart[h] + i];
+			int b = name.charAt(i);
+			if(a != b && toLower(a) != toLower(b)) return false;
+		}
+		return true;
+	}
+
+	//value of the header called name, or null if there isnt one.
+	public String header(String name){
+		int h = findHeader(name);
+		if(h == -1) return null;
+		return new String(buf, valueStart[h], valueEnd[h] - valueStart[h], StandardCharsets.ISO_8859_1);
+	}
+
+	//value of the header called name as a number. -1 if there isnt one, it isnt just digits, or it is more than an int holds.
+	public long headerLong(String name){
+		int h = findHeader(name);
+		if(h == -1) return -1;
+		long value = number(h);
+		return value > Integer.MAX_VALUE ? -1 : value;
+	}
+
+	//the value of header h, if it is only digits (up to 18 of them, so it cant overflow). -1 otherwise.
+	long number(int h){
+		int i = valueStart[h];
+		int e = valueEnd[h];
+		if(i == e || e - i > 18) return -1;
+		long value = 0;
+		for(; i < e; i++){
+			if(!isDigit(buf[i])) return -1;
+			value = value * 10 + (buf[i] - '0');
+		}
+		return value;
+	}
+
+	//the Content-Length, for working out where the body ends. -1 if there isnt one.
+	//-2 if it cant be trusted: not a plain number, or sent more than once with different numbers.
+	//a body whose end isnt certain could have the next request hidden in it, so -2 has to end the connection.
+	public long contentLength(){
+		long length = -1;
+		for(int h = 0; h < headerCount; h++){
+			if(!isNamed(h, "Content-Length")) continue;
+			long n = number(h);
+			if(n == -1 || (length != -1 && n != length)) return -2;
+			length = n;
+		}
+		return length;
+	}
+
+	//true if the header called name is there and its value equals value (any case).
+	public boolean headerEquals(String name, String value){
+		int h = findHeader(name);
+		if(h == -1 || valueEnd[h] - valueStart[h] != value.length()) return false;
+		for(int i = 0; i < value.length(); i++){
+			if(toLower(buf[valueStart[h] + i]) != toLower(value.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	public String target(){
+		return new String(buf, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+	}
+
+	//the target with its %XX escapes decoded, read as UTF-8. this is what gets looked up on disk.
+	//null if an escape is broken, or decodes to a NUL, which no file name can have.
+	public String path(){
+		int len = targetEnd - targetStart;
+		if(pathBuf.length < len) pathBuf = new byte[len];
+		int n = PercentDecoder.decode(buf, targetStart, targetEnd, pathBuf, 0, false);
+		if(n == -1) return null;
+		for(int i = 0; i < n; i++){
+			if(pathBuf[i] == 0) return null;
+		}
+		return new String(pathBuf, 0, n, StandardCharsets.UTF_8);
+	}
+
+	//the body, as a stream that ends where the body does. handlers read it from here,
+	//whether it is all in buf already or still mostly on the socket.
+	public RequestBody body(){
+		if(body == null) body = new RequestBody(this);
+		return body;
+	}
+
+	//true if the body wasnt read in with the headers, and has to be read through body().
+	public boolean streaming(){
+		return bodyRest != null;
+	}
+
+	//bytes of body that are actually in the buffer.
+	public int bodyLength(){
+		return end - bodyStart;
+	}
+
+	int indexOfCrlf(int from){
+		for(int i = from; i + 1 < end; i++){
+			if(buf[i] == '\r' && buf[i + 1] == '\n') return i;
+		}
+		return -1;
+	}
+
+	int indexOf(char c, int from, int to){
+		for(int i = from; i < to; i++){
+			if(buf[i] == c) return i;
+		}
+		return -1;
+	}
+
+	static boolean isDigit(byte b){
+		return b >= '0' && b <= '9';
+	}
+
+	static int toLower(int c){
+		return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+
+
+//stopping the server without cutting anyone off, and starting the next one without a gap.
+//a SIGTERM (or ctrl-c, or a POST to server.admin.drain from the server's own machine) starts a drain, in the jvm's shutdown hook:
+//	the listening sockets close, so new connections go to the next server (see below), or are refused if there isnt one
+//	every response from then on says Connection: close, and HTTP/2 connections get a GOAWAY, so clients leave once they are answered
+//	requests already in, and connections already waiting for a worker, get answered, for up to server.drainTimeout
+//	then cgi scripts still running, and the pooled ones, are stopped: TERM, and KILL a second later for any that ignore it
+//	then what was given to atExit runs, in order (the access log is flushed and closed, the document root index saved)
+//a request still going at the deadline is cut off, which is what used to happen to all of them.
+//
+//for a restart without a gap, the next server has to be taking connections before this one stops. there are two ways:
+//	server.reusePort: both servers bind the port with SO_REUSEPORT. start the new one, then TERM the old one. the kernel spreads
+//	connections over every socket on the port, so once the old one has closed its, they all go to the new one. the few that were
+//	waiting in the old socket's accept queue at that moment get reset.
+//	server.inheritSocket: the listening socket comes in on stdin, the way inetd and systemd socket activation hand it over.
+//	whatever holds it hands the same socket to each new server, so it never closes and nothing waiting on it is lost.
+class Lifecycle{
+
+	static volatile boolean draining = false;
+
+	//responses started and not all sent yet. HandlerThread counts its own, except in nio mode, where NioConnection counts
+	//from the request being read until the selector thread has written the last of the answer.
+	static final AtomicInteger inFlight = new AtomicInteger();
+
+	static final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<ServerSocketChannel>();
+	static final List<Runnable> onDrain = new CopyOnWriteArrayList<Runnable>(); //after the listeners close, for the accept loops
+	static final List<Runnable> exitTasks = new CopyOnWriteArrayList<Runnable>();
+
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread(Lifecycle::drain, "drain"));
+	}
+
+	//a socket to stop accepting on.
+	static void listening(ServerSocketChannel ssc){
+		listeners.add(ssc);
+	}
+
+	static void onDrain(Runnable r){
+		onDrain.add(r);
+	}
+
+	//something to do once the requests are done, just before the jvm goes. these run one after the other, in the order they were given.
+	static void atExit(Runnable r){
+		exitTasks.add(r);
+	}
+
+	static void started(){
+		inFlight.incrementAndGet();
+	}
+
+	static void finished(){
+		inFlight.decrementAndGet();
+	}
+
+	//stops the server the same way a SIGTERM would. from a thread of its own, since the drain waits for the caller's request too.
+	static void exit(){
+		new Thread(() -> System.exit(0), "exit").start();
+	}
+
+	static void drain(){
+		long start = System.nanoTime();
+		draining = true;
+		for(ServerSocketChannel ssc : listeners){
+			try{
+				ssc.close();
+			}
+			catch(IOException ioe){
+				//it isnt taking connections either way
+			}
+		}
+		for(Runnable r : onDrain) r.run();
+		Http2Connection.drainAll();
+
+		long deadline = start + ServerConfig.drainTimeout * 1000000L;
+		while(busy() > 0 && System.nanoTime() < deadline){
+			try{
+				Thread.sleep(20);
+			}
+			catch(InterruptedException ie){
+				break;
+			}
+		}
+		int cut = busy();
+		int stopped = stopChildren();
+		System.out.println("Drained in " + (System.nanoTime() - start) / 1000000 + " ms"
+			+ (cut > 0 ? ", cutting off " + cut + " requests" : "") + (stopped > 0 ? ", stopped " + stopped + " cgi processes" : "") + ".");
+
+		for(Runnable r : exitTasks){
+			try{
+				r.run();
+			}
+			catch(RuntimeException re){
+				System.out.println("Something failed on the way out: " + re);
+			}
+		}
+	}
+
+	//requests being answered, plus connections waiting for a worker, which each have at least one.
+	static int busy(){
+		return inFlight.get() + AdmissionControl.queueLength();
+	}
+
+	//every process the server started that is still running, and whatever those started. returns how many there were.
+	static int stopChildren(){
+		List<ProcessHandle> children = ProcessHandle.current().descendants().collect(Collectors.toList());
+		children.forEach(ProcessHandle::destroy);
+		long deadline = System.nanoTime() + 1000000000L;
+		for(ProcessHandle p : children){
+			try{
+				p.onExit().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			catch(Exception e){
+				p.destroyForcibly();
+			}
+		}
+		return children.size();
+	}
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//an adaptive concurrency limit for one kind of request.
+//tryAcquire() lets a request in if fewer than limit are being served, release() says it is done and how long it took.
+//the limit moves between 1 and max: +1/limit for every request that finished within target (so about +1 per limit's worth of them),
+//and *0.9 for every one that didnt, or whenever the queue wait alone went over the target.
+class Limiter{
+
+	String name;
+	int max;
+	long targetNanos;
+	volatile double limit;
+
+	AtomicInteger inFlight = new AtomicInteger();
+	AtomicLong admitted = new AtomicLong();
+	AtomicLong shed = new AtomicLong();
+	AtomicLong queueWaitNanos = new AtomicLong();
+	AtomicLong serviceNanos = new AtomicLong();
+
+	public Limiter(String n, int maximum, long targetMillis){
+		name = n;
+		max = Math.max(1, maximum);
+		targetNanos = targetMillis * 1000000L;
+		limit = max;
+	}
+
+	//queueWait is how long the request waited for a worker, in nanos. false means shed it.
+	public boolean tryAcquire(long queueWait){
+		if(queueWait > ServerConfig.maxQueueWait * 1000000L){
+			decrease();
+			shed.incrementAndGet();
+			return false;
+		}
+		while(true){
+			int n = inFlight.get();
+			if(n >= (int) limit){
+				shed.incrementAndGet();
+				return false;
+			}
+			if(inFlight.compareAndSet(n, n + 1)) break;
+		}
+		admitted.incrementAndGet();
+		queueWaitNanos.addAndGet(queueWait);
+		if(queueWait > targetNanos) decrease();
+		return true;
+	}
+
+	//took is the service time in nanos, from being let in to the response being written.
+	public void release(long took){
+		inFlight.decrementAndGet();
+		serviceNanos.addAndGet(took);
+		if(took > targetNanos) decrease();
+		else increase();
+	}
+
+	synchronized void increase(){
+		limit = Math.min(max, limit + 1 / limit);
+	}
+
+	synchronized void decrease(){
+		limit = Math.max(1, limit * 0.9);
+	}
+
+	public String stats(){
+		long n = admitted.get();
+		long avgWait = n == 0 ? 0 : queueWaitNanos.get() / n / 1000;
+		long avgService = n == 0 ? 0 : serviceNanos.get() / n / 1000;
+		return name + ": limit " + (int) limit + "/" + max + ", " + inFlight.get() + " in flight, " + n + " admitted, " + shed.get() + " shed, "
+			+ "avg queue wait " + avgWait + "us, avg service " + avgService + "us" + '\n';
+	}
+}
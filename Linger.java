@@ -0,0 +1,42 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.*;
+
+
+
+//closes sockets a little while after their last response went out.
+//the project requirements had the handler sleep for 250ms before closing, which kept a worker stuck doing nothing for every request.
+//now the output side is shut right away (so the client sees the end of the response immediately),
+//and the socket is handed to one shared timer thread that does the real close once server.linger has passed.
+class Linger{
+
+	static final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "linger");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public static void close(Socket s){
+		if(ServerConfig.linger <= 0){
+			closeNow(s);
+			return;
+		}
+		try{
+			s.shutdownOutput();
+		}
+		catch(IOException ioe){
+			closeNow(s);
+			return;
+		}
+		closer.schedule(() -> closeNow(s), ServerConfig.linger, TimeUnit.MILLISECONDS);
+	}
+
+	static void closeNow(Socket s){
+		try{
+			s.close();
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+//latency histograms for each phase of handling a request, and a count of every status code sent.
+//served on server.metrics (/_metrics unless changed) in the Prometheus text format, along with what FileCache, CgiPool,
+//BlockingMonitor and AdmissionControl keep track of. setting server.metrics to "" turns the endpoint and the recording off.
+//recording is a few atomic adds into arrays that exist from the start, so it never allocates and never locks.
+//only serving the page (render()) builds strings.
+class Metrics{
+
+	static final int QUEUE = 0; //connection waiting for a worker
+	static final int WAIT = 1; //waiting for the first byte of a request
+	static final int READ = 2; //from the first byte to the whole request being in
+	static final int PARSE = 3; //the request line and headers, HttpRequest.parse
+	static final int LOOKUP = 4; //finding the file (or script) and checking it
+	static final int HEADERS = 5; //building the status line and headers
+	static final int BODY = 6; //writing the file out
+	static final int CGI = 7; //starting the script, waiting on it and sending what it printed
+	static final int SHUTDOWN = 8; //flushing and closing (or keeping) the connection
+	static final int RESPOND = 9; //all of respond(), start to finish
+	static final int HANDSHAKE = 10; //a TLS handshake, from its first byte to finished
+	static final String [] PHASES = {"queue", "wait", "read", "parse", "lookup", "headers", "body", "cgi", "shutdown", "respond", "handshake"};
+
+	static final boolean enabled = !ServerConfig.metricsPath.isEmpty();
+
+	static final Histogram [] phases = new Histogram[PHASES.length];
+	static{
+		for(int i = 0; i < phases.length; i++) phases[i] = new Histogram();
+	}
+
+	//responses sent, by status code.
+	static final AtomicLongArray statuses = new AtomicLongArray(600);
+
+	//the bucket bounds the page shows, in seconds. the histograms themselves are much finer than this.
+	static final double [] BOUNDS = {0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+	static final double [] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	static void record(int phase, long nanos){
+		if(enabled) phases[phase].record(nanos);
+	}
+
+	//records the time since start and returns now, so one phase can start where the last one ended.
+	static long lap(int phase, long start){
+		long now = System.nanoTime();
+		record(phase, now - start);
+		return now;
+	}
+
+	static void status(int code){
+		if(enabled && code >= 0 && code < 600) statuses.incrementAndGet(code);
+	}
+
+	//from a status like "404 Not Found".
+	static void status(String status){
+		status(code(status));
+	}
+
+	//the number a status like "404 Not Found" starts with, -1 if it doesnt.
+	static int code(String status){
+		if(status.length() < 3) return -1;
+		return (status.charAt(0) - '0') * 100 + (status.charAt(1) - '0') * 10 + (status.charAt(2) - '0');
+	}
+
+	static String render(){
+		StringBuilder sb = new StringBuilder(8192);
+
+		sb.append("# HELP http_phase_seconds Time spent in each phase of handling a request.\n");
+		sb.append("# TYPE http_phase_seconds histogram\n");
+		for(int p = 0; p < phases.length; p++){
+			long [] counts = phases[p].snapshot();
+			int b = 0;
+			long cumulative = 0;
+			for(double bound : BOUNDS){
+				long limit = (long) (bound * 1e9);
+				while(b < counts.length && Histogram.highest(b) <= limit) cumulative += counts[b++];
+				sb.append("http_phase_seconds_bucket{phase=\"").append(PHASES[p]).append("\",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+			}
+			long total = 0;
+			for(long c : counts) total += c;
+			sb.append("http_phase_seconds_bucket{phase=\"").append(PHASES[p]).append("\",le=\"+Inf\"} ").append(total).append('\n');
+			sb.append("http_phase_seconds_sum{phase=\"").append(PHASES[p]).append("\"} ").append(phases[p].sum.get() / 1e9).append('\n');
+			sb.append("http_phase_seconds_count{phase=\"").append(PHASES[p]).append("\"} ").append(total).append('\n');
+		}
+
+		sb.append("# HELP http_phase_seconds_quantile Quantiles of the same, from the full resolution histograms.\n");
+		sb.append("# TYPE http_phase_seconds_quantile gauge\n");
+		for(int p = 0; p < phases.length; p++){
+			long [] counts = phases[p].snapshot();
+			for(double q : QUANTILES){
+				sb.append("http_phase_seconds_quantile{phase=\"").append(PHASES[p]).append("\",quantile=\"").append(q).append("\"} ")
+					.append(Histogram.quantile(counts, q) / 1e9).append('\n');
+			}
+		}
+
+		sb.append("# HELP http_phase_seconds_max The longest each phase has taken.\n");
+		sb.append("# TYPE http_phase_seconds_max gauge\n");
+		for(int p = 0; p < phases.length; p++){
+			sb.append("http_phase_seconds_max{phase=\"").append(PHASES[p]).append("\"} ").append(phases[p].max.get() / 1e9).append('\n');
+		}
+
+		sb.append("# HELP http_responses_total Responses sent, by status code.\n");
+		sb.append("# TYPE http_responses_total counter\n");
+		for(int code = 100; code < 600; code++){
+			long n = statuses.get(code);
+			if(n != 0) sb.append("http_responses_total{code=\"").append(code).append("\"} ").append(n).append('\n');
+		}
+
+		FileCache cache = FileCache.shared;
+		counter(sb, "file_cache_hits_total", "Requests served from FileCache.", cache.hits.get());
+		counter(sb, "file_cache_misses_total", "Requests for files FileCache did not have.", cache.misses.get());
+		counter(sb, "file_cache_evictions_total", "Files dropped from FileCache to make room.", cache.evictions.get());
+		counter(sb, "file_cache_invalidations_total", "Files dropped from FileCache because they changed.", cache.invalidations.get());
+		synchronized(cache){
+			gauge(sb, "file_cache_files", "Files in FileCache.", cache.entries.size());
+			gauge(sb, "file_cache_bytes", "Bytes of file contents in FileCache.", cache.totalBytes);
+		}
+		if(Tls.context != null){
+			sb.append("# HELP tls_handshakes_total TLS handshakes, by whether they resumed an earlier session.\n# TYPE tls_handshakes_total counter\n");
+			sb.append("tls_handshakes_total{type=\"full\"} ").append(Tls.full.get()).append('\n');
+			sb.append("tls_handshakes_total{type=\"resumed\"} ").append(Tls.resumed.get()).append('\n');
+			counter(sb, "tls_handshake_failures_total", "TLS connections that broke off before or during the handshake.", Tls.failed.get());
+		}
+		if(ServerConfig.http2){
+			counter(sb, "http2_connections_total", "Connections that switched to HTTP/2.", Http2Connection.connections.get());
+			counter(sb, "http2_streams_total", "Requests answered on HTTP/2 streams.", Http2Connection.streams.get());
+			counter(sb, "http2_streams_refused_total", "HTTP/2 streams turned away for going over server.http2.maxStreams.", Http2Connection.refused.get());
+			counter(sb, "http2_resets_total", "HTTP/2 streams the server reset.", Http2Connection.resets.get());
+		}
+		DocIndex index = DocIndex.shared;
+		if(index != null){
+			counter(sb, "doc_index_hits_total", "Files and directories found in the DocIndex.", index.hits.get());
+			counter(sb, "doc_index_misses_total", "Paths the DocIndex didnt have, looked up on the disk instead.", index.misses.get());
+			counter(sb, "doc_index_rebuilds_total", "Times the DocIndex folded its changes into a new snapshot.", index.rebuilds.get());
+			gauge(sb, "doc_index_entries", "Files and directories in the DocIndex.", index.size());
+		}
+		AccessLog log = AccessLog.shared;
+		if(log != null){
+			counter(sb, "access_log_records_total", "Requests written to the access log.", log.written.get());
+			counter(sb, "access_log_dropped_total", "Requests left out of the access log because its buffer was full.", log.dropped.get());
+			counter(sb, "access_log_rotations_total", "Times the access log was moved aside for a new file.", log.rotations.get());
+			gauge(sb, "access_log_buffered", "Requests waiting to be written to the access log.", log.buffered());
+		}
+		synchronized(Compression.class){
+			gauge(sb, "compression_cache_files", "Compressed files Compression keeps.", Compression.cache.size());
+			gauge(sb, "compression_cache_bytes", "Bytes of compressed files Compression keeps.", Compression.cacheBytes);
+		}
+
+		sb.append("# HELP cgi_pool_processes Pooled cgi processes, busy and idle.\n# TYPE cgi_pool_processes gauge\n");
+		for(Map.Entry<String, CgiPool> e : CgiPool.pools.entrySet()){
+			CgiPool pool = e.getValue();
+			synchronized(pool){
+				sb.append("cgi_pool_processes{script=\"").append(e.getKey()).append("\",state=\"busy\"} ").append(pool.total - pool.idle.size()).append('\n');
+				sb.append("cgi_pool_processes{script=\"").append(e.getKey()).append("\",state=\"idle\"} ").append(pool.idle.size()).append('\n');
+			}
+		}
+
+		sb.append("# HELP blocking_calls_total Blocking calls made by handlers, see BlockingMonitor.\n# TYPE blocking_calls_total counter\n");
+		for(int i = 0; i < BlockingMonitor.NAMES.length; i++){
+			sb.append("blocking_calls_total{kind=\"").append(BlockingMonitor.NAMES[i]).append("\"} ").append(BlockingMonitor.calls.get(i)).append('\n');
+		}
+		sb.append("# HELP blocking_on_virtual_total Blocking calls made on virtual threads.\n# TYPE blocking_on_virtual_total counter\n");
+		for(int i = 0; i < BlockingMonitor.NAMES.length; i++){
+			sb.append("blocking_on_virtual_total{kind=\"").append(BlockingMonitor.NAMES[i]).append("\"} ").append(BlockingMonitor.onVirtual.get(i)).append('\n');
+		}
+		sb.append("# HELP blocking_seconds_total Time spent in blocking calls.\n# TYPE blocking_seconds_total counter\n");
+		for(int i = 0; i < BlockingMonitor.NAMES.length; i++){
+			sb.append("blocking_seconds_total{kind=\"").append(BlockingMonitor.NAMES[i]).append("\"} ").append(BlockingMonitor.nanos.get(i) / 1e9).append('\n');
+		}
+		counter(sb, "blocking_over_carriers_total", "Blocking calls made while more were in progress than there are carrier threads.", BlockingMonitor.overCarriers.get());
+		if(BlockingMonitor.watchingPins){
+			counter(sb, "virtual_thread_pinned_total", "Times a virtual thread held its carrier for more than 20ms, from jdk.VirtualThreadPinned.", BlockingMonitor.pinned.get());
+			sb.append("# HELP virtual_thread_pinned_seconds_total How long those held their carriers.\n# TYPE virtual_thread_pinned_seconds_total counter\n");
+			sb.append("virtual_thread_pinned_seconds_total ").append(BlockingMonitor.pinnedNanos.get() / 1e9).append('\n');
+		}
+
+		gauge(sb, "requests_in_flight", "Requests being answered, the ones a stopping server waits for.", Lifecycle.inFlight.get());
+		counter(sb, "admission_rejected_total", "Connections turned away because the worker queue was full.", AdmissionControl.rejected.get());
+		if(!AdmissionControl.executors.isEmpty()){
+			gauge(sb, "worker_queue_length", "Connections waiting for a worker.", AdmissionControl.queueLength());
+			gauge(sb, "workers_busy", "Worker threads handling a connection.", AdmissionControl.busyWorkers());
+		}
+		if(!Shard.all.isEmpty()){
+			sb.append("# HELP shard_accepted_total Connections each shard accepted.\n# TYPE shard_accepted_total counter\n");
+			for(Shard s : Shard.all) sb.append("shard_accepted_total{shard=\"").append(s.name).append("\"} ").append(s.accepted.get()).append('\n');
+			sb.append("# HELP shard_accept_rate Connections each shard accepted per second, over the last second.\n# TYPE shard_accept_rate gauge\n");
+			for(Shard s : Shard.all) sb.append("shard_accept_rate{shard=\"").append(s.name).append("\"} ").append(s.acceptRate()).append('\n');
+			sb.append("# HELP shard_rejected_total Connections each shard turned away because its queue was full.\n# TYPE shard_rejected_total counter\n");
+			for(Shard s : Shard.all) sb.append("shard_rejected_total{shard=\"").append(s.name).append("\"} ").append(s.rejected.get()).append('\n');
+			sb.append("# HELP shard_queue_length Connections waiting for one of each shard's workers.\n# TYPE shard_queue_length gauge\n");
+			for(Shard s : Shard.all) sb.append("shard_queue_length{shard=\"").append(s.name).append("\"} ").append(s.executor.getQueue().size()).append('\n');
+			sb.append("# HELP shard_workers_busy Each shard's workers handling a connection.\n# TYPE shard_workers_busy gauge\n");
+			for(Shard s : Shard.all) sb.append("shard_workers_busy{shard=\"").append(s.name).append("\"} ").append(s.executor.getActiveCount()).append('\n');
+		}
+		Limiter [] limiters = {AdmissionControl.staticFiles, AdmissionControl.cgi};
+		sb.append("# HELP admission_limit Requests of each class that can be served at once right now.\n# TYPE admission_limit gauge\n");
+		for(Limiter l : limiters) sb.append("admission_limit{class=\"").append(l.name).append("\"} ").append((int) l.limit).append('\n');
+		sb.append("# HELP admission_in_flight Requests of each class being served.\n# TYPE admission_in_flight gauge\n");
+		for(Limiter l : limiters) sb.append("admission_in_flight{class=\"").append(l.name).append("\"} ").append(l.inFlight.get()).append('\n');
+		sb.append("# HELP admission_admitted_total Requests let in.\n# TYPE admission_admitted_total counter\n");
+		for(Limiter l : limiters) sb.append("admission_admitted_total{class=\"").append(l.name).append("\"} ").append(l.admitted.get()).append('\n');
+		sb.append("# HELP admission_shed_total Requests turned away with a 503.\n# TYPE admission_shed_total counter\n");
+		for(Limiter l : limiters) sb.append("admission_shed_total{class=\"").append(l.name).append("\"} ").append(l.shed.get()).append('\n');
+
+		BufferPool.checkLeaks();
+		sb.append("# HELP buffer_pool_buffers Buffers in BufferPool, by size.\n# TYPE buffer_pool_buffers gauge\n");
+		for(BufferPool.Size p : BufferPool.sizes) sb.append("buffer_pool_buffers{size=\"").append(p.size).append("\"} ").append(p.slices.length).append('\n');
+		sb.append("# HELP buffer_pool_in_use Buffers out of BufferPool right now, by size.\n# TYPE buffer_pool_in_use gauge\n");
+		for(BufferPool.Size p : BufferPool.sizes) sb.append("buffer_pool_in_use{size=\"").append(p.size).append("\"} ").append(p.inUse()).append('\n');
+		sb.append("# HELP buffer_pool_acquired_total Buffers taken out of BufferPool, by size.\n# TYPE buffer_pool_acquired_total counter\n");
+		for(BufferPool.Size p : BufferPool.sizes) sb.append("buffer_pool_acquired_total{size=\"").append(p.size).append("\"} ").append(p.acquired.get()).append('\n');
+		sb.append("# HELP buffer_pool_exhausted_total Buffers allocated on the heap because every pool buffer of the size was out.\n# TYPE buffer_pool_exhausted_total counter\n");
+		for(BufferPool.Size p : BufferPool.sizes) sb.append("buffer_pool_exhausted_total{size=\"").append(p.size).append("\"} ").append(p.exhausted.get()).append('\n');
+		counter(sb, "buffer_pool_unpooled_total", "Buffers allocated on the heap because they were bigger than any pool buffer.", BufferPool.unpooled.get());
+		counter(sb, "buffer_pool_leaks_total", "Pool buffers reported as out for longer than server.bufferPool.leakSeconds.", BufferPool.leaks.get());
+
+		long allocated = allocatedBytes();
+		gauge(sb, "process_allocated_bytes", "Bytes allocated by the threads that are alive now. threads that have ended drop out, so this can go down.", allocated);
+		gauge(sb, "process_allocation_rate_bytes", "Bytes allocated per second since the last time this page was served. 0 if threads ending made the total go down.", allocationRate(allocated));
+		sb.append("# HELP jvm_gc_collections_total Garbage collections, by collector.\n# TYPE jvm_gc_collections_total counter\n");
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			sb.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionCount()).append('\n');
+		}
+		sb.append("# HELP jvm_gc_seconds_total Time spent collecting garbage, by collector.\n# TYPE jvm_gc_seconds_total counter\n");
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			sb.append("jvm_gc_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime() / 1e3).append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	//what allocatedBytes() was the last time, and when, for allocationRate().
+	static long lastAllocated = -1;
+	static long lastAllocatedAt;
+
+	//bytes per second since the last call. the first call has nothing to go on, and says 0.
+	static synchronized long allocationRate(long allocated){
+		long now = System.nanoTime();
+		long rate = 0;
+		if(lastAllocated >= 0 && allocated >= lastAllocated && now > lastAllocatedAt) rate = (long) ((allocated - lastAllocated) * 1e9 / (now - lastAllocatedAt));
+		lastAllocated = allocated;
+		lastAllocatedAt = now;
+		return rate;
+	}
+
+	//every live thread's allocation counter added up, for seeing how much a load run allocates per request.
+	static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		long total = 0;
+		for(long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds())){
+			if(bytes > 0) total += bytes;
+		}
+		return total;
+	}
+
+	static void counter(StringBuilder sb, String name, String help, long value){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	static void gauge(StringBuilder sb, String name, String help, long value){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+}
+
+//a latency histogram in the style of HdrHistogram. values under 16ns get a bucket each, and above that every power of two
+//is split into 16 buckets, so any value is off by at most 1/16 (about 6%). that covers everything a long can hold in 960 counters.
+//record() is a couple of atomic adds, safe from any number of threads at once.
+class Histogram{
+
+	static final int SUB_BITS = 4;
+	static final int SUB = 1 << SUB_BITS;
+	static final int BUCKETS = (63 - SUB_BITS + 1) * SUB; //longs are never negative, so the top exponent is 62
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	final AtomicLong sum = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+
+	public void record(long value){
+		if(value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		sum.addAndGet(value);
+		long m;
+		while(value > (m = max.get()) && !max.compareAndSet(m, value));
+	}
+
+	static int index(long value){
+		if(value < SUB) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BITS + 1) * SUB + (int) ((value >>> (exponent - SUB_BITS)) & (SUB - 1));
+	}
+
+	//the smallest value that goes in bucket i.
+	static long lowest(int i){
+		if(i < SUB) return i;
+		int exponent = i / SUB + SUB_BITS - 1;
+		return (long) (SUB + i % SUB) << (exponent - SUB_BITS);
+	}
+
+	//the biggest value that goes in bucket i.
+	static long highest(int i){
+		if(i == BUCKETS - 1) return Long.MAX_VALUE;
+		return lowest(i + 1) - 1;
+	}
+
+	//a copy of the counts, so a page shows one consistent-ish moment.
+	public long [] snapshot(){
+		long [] copy = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+		return copy;
+	}
+
+	//the value that a fraction q of everything recorded is at or under. the top of its bucket, so it errs high.
+	static long quantile(long [] counts, double q){
+		long total = 0;
+		for(long c : counts) total += c;
+		if(total == 0) return 0;
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++){
+			seen += counts[i];
+			if(seen >= rank) return highest(i);
+		}
+		return highest(counts.length - 1);
+	}
+}
@@ -0,0 +1,322 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import javax.net.ssl.SSLEngine;
+
+
+
+//the state of one client connection in nio mode.
+//the request is collected into a buffer by the selector thread.
+//the response goes the other way, a worker writes into an NioOutputStream and the selector thread drains it to the socket.
+//if the connection is kept alive, once the response is all written the next request is read the same way.
+//requests are handled one at a time, so pipelined ones get answered in order. any that arrived early just wait in the buffer.
+//on an HTTPS connection, everything goes through tls (which io is then) instead of straight to the channel.
+//a body too big to read in with the headers goes to the worker as soon as the headers are in, and the selector thread
+//keeps reading the rest of it into an NioInputStream for the worker to read from, a window's worth at a time.
+class NioConnection{
+
+	SelectorLoop loop;
+	SocketChannel channel;
+	ByteChannel io;
+	TlsChannel tls;
+	SelectionKey key;
+	ByteBuffer in = ByteBuffer.allocate(8192);
+	HttpRequest request = new HttpRequest();
+	NioOutputStream out;
+	NioInputStream body; //only while a streamed body is being read
+	boolean chunkedBody = false; //body is a chunked one, which doesnt say where it ends, so it may have read past it
+	long start = System.currentTimeMillis();
+	boolean dispatched = false;
+
+	//where in the buffer the header scan left off, where the headers end once found, and where the whole request ends.
+	int scanned = 0;
+	int headerEnd = -1;
+	int requestEnd = -1;
+
+	int served = 0; //requests already answered on this connection
+
+	//for Metrics. when the connection started waiting for a request, and when the first of it came in.
+	long waitStart = System.nanoTime();
+	long firstByte = 0;
+
+	boolean responding = false; //counted in Lifecycle.inFlight, from dispatch() until the answer is written
+
+	public NioConnection(SelectorLoop l, SocketChannel sc, SelectionKey k, SSLEngine engine){
+		loop = l;
+		channel = sc;
+		key = k;
+		if(engine != null) tls = new TlsChannel(sc, engine);
+		io = tls == null ? sc : tls;
+		out = new NioOutputStream(this);
+	}
+
+	void onReadable() throws IOException{
+		if(dispatched){
+			readBody();
+			return;
+		}
+
+		if(!in.hasRemaining()){
+			int room = RequestReader.room(request, headerEnd);
+			if(in.capacity() >= room){
+				//only a chunked body can fill the buffer past the headers. it is streamed, the same as in RequestReader
+				if(headerEnd == -1) request.overLimit = RequestReader.HEADERS_TOO_LARGE;
+				else chunkedBody = true;
+				dispatch();
+				return;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate((int) Math.min((long) in.capacity() * 2, room));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+
+		int n = io.read(in);
+		if(tls != null && tls.wantsWrite()) wantWrite(); //the handshake has something to say back
+		if(n == -1){
+			//the client gave up, or half closed after sending what it had. either way, work with what we got.
+			if(in.position() == 0) close();
+			else dispatch();
+			return;
+		}
+
+		if(firstByte == 0 && n > 0) firstByte = System.nanoTime();
+		if(requestComplete()) dispatch();
+		else if(tls != null && tls.buffered()) onReadable(); //more was decrypted than fit, and the selector wont ask again for it
+	}
+
+	//looks for the blank line that ends the headers, then waits for the body after it (Content-Length bytes, or up to the last chunk).
+	//same scan the classic mode's RequestReader does, just fed by the selector instead of a blocking read.
+	//also true when the request broke a limit, or its body is one to stream. dispatch() sorts those out.
+	boolean requestComplete(){
+		byte [] buf = in.array();
+		int end = in.position();
+
+		if(headerEnd == -1){
+			headerEnd = RequestReader.findHeaderEnd(buf, scanned, end);
+			scanned = end;
+			if(headerEnd != -1){
+				long parseStart = System.nanoTime();
+				request.parse(buf, 0, headerEnd);
+				Metrics.lap(Metrics.PARSE, parseStart);
+			}
+			String limit = RequestReader.overLimit(request, buf, headerEnd, end);
+			if(limit != null){
+				request.overLimit = limit;
+				return true;
+			}
+			if(headerEnd == -1) return false;
+		}
+
+		requestEnd = RequestReader.bodyEnd(request, buf, headerEnd, end);
+		return requestEnd != -1 || RequestReader.streams(request);
+	}
+
+	//how long this connection gets before onTimeout. between requests on a kept-alive connection, that is the keep-alive timeout.
+	int timeout(){
+		if(served > 0 && in.position() == 0) return ServerConfig.keepAliveTimeout;
+		return ServerConfig.requestTimeout;
+	}
+
+	//nothing at all showed up in time: 408, same as the classic mode. or, if this connection was just idling between requests, it is closed.
+	//if part of a request did show up, it goes to a worker as is, which is what the classic mode ends up doing too.
+	void onTimeout(){
+		if(in.position() == 0){
+			dispatched = true;
+			key.interestOps(0);
+			if(served > 0 || (tls != null && !tls.established)) close(); //no handshake, no way to say 408 either
+			else{
+				Metrics.status(408);
+				sendAndClose("HTTP/1.0 408 Request Timeout" + '\r' + '\n');
+			}
+		}
+		else dispatch();
+	}
+
+	//the whole request is here, give it to a worker.
+	void dispatch(){
+		dispatched = true;
+		key.interestOps(0);
+		responding = true;
+		Lifecycle.started();
+
+		if(firstByte != 0){
+			Metrics.record(Metrics.WAIT, firstByte - waitStart);
+			Metrics.lap(Metrics.READ, firstByte);
+		}
+
+		byte [] buf = in.array();
+		String limit = request.overLimit;
+		if(requestEnd != -1){
+			RequestReader.finish(request, buf, headerEnd, requestEnd);
+			request.complete = true;
+		}
+		else if(chunkedBody){
+			//none of it is decoded yet, so all of it is read through the ChunkedInputStream. the body's window is read into
+			//until the handler has all of it, so whatever it took in past the end is given back to in by nextRequest
+			requestEnd = in.position();
+			request.extend(buf, headerEnd);
+			request.complete = true;
+			request.chunked = true;
+			body = new NioInputStream(this, Long.MAX_VALUE);
+			request.bodyRest = new ChunkedInputStream(buf, headerEnd, requestEnd, body);
+			request.bodyLeft = -1;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		else if(limit == null && headerEnd != -1 && RequestReader.streams(request)){
+			//all of what is here is body. the rest is read into body as it comes, and the next request starts after it
+			requestEnd = in.position();
+			request.extend(buf, requestEnd);
+			request.complete = true;
+			body = new NioInputStream(this, RequestReader.bodyLength(request) - (requestEnd - headerEnd));
+			request.bodyRest = body;
+			request.bodyLeft = body.left;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		else{
+			requestEnd = in.position();
+			if(headerEnd == -1) request.parse(buf, 0, requestEnd);
+			else request.extend(buf, requestEnd);
+			request.complete = false;
+			request.overLimit = limit;
+		}
+
+		HandlerThread handler = new HandlerThread(this, request);
+		handler.requestCount = served;
+		handler.queuedAt = System.nanoTime();
+		try{
+			loop.executor.execute(() -> {
+				boolean answered = false;
+				try{
+					handler.run();
+					answered = true;
+				}
+				finally{
+					//if the handler blew up without answering, this at least lets go of the socket.
+					if(answered && handler.keepAlive) out.endResponse();
+					else out.close();
+				}
+			});
+		}
+		catch(RejectedExecutionException ree){
+			//the queue is full
+			AdmissionControl.rejected.incrementAndGet();
+			Metrics.status(503);
+			sendAndClose(AdmissionControl.SHED_RESPONSE);
+		}
+	}
+
+	//for the short answers the selector thread gives on its own.
+	void sendAndClose(String status){
+		sendAndClose(status.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	void sendAndClose(byte [] bytes){
+		out.write(bytes, 0, bytes.length);
+		out.close();
+	}
+
+	//called (on the selector thread) whenever the output stream has something new queued up.
+	//this can come in late, after the response is done and the next request is being read, so reading is kept on in that case.
+	void wantWrite(){
+		if(key.isValid()) key.interestOps(SelectionKey.OP_WRITE | readInterest());
+	}
+
+	//OP_READ while waiting for a request, nothing while a worker has it, unless it is still reading its body and there is room for more.
+	int readInterest(){
+		if(!dispatched) return SelectionKey.OP_READ;
+		return body != null && body.wantsBytes() ? SelectionKey.OP_READ : 0;
+	}
+
+	//reads what there is room for of a streamed body. the selector only says the socket is readable while there is room,
+	//but a TlsChannel can have more decrypted already, which it never will say, so that is read too.
+	void readBody() throws IOException{
+		if(body == null) return;
+		while(body.wantsBytes()){
+			if(!body.fill(io) || tls == null || !tls.buffered()) break;
+		}
+		if(tls != null && tls.wantsWrite()) wantWrite();
+		else if(key.isValid()) key.interestOps((key.interestOps() & SelectionKey.OP_WRITE) | readInterest());
+	}
+
+	//the worker made room in the body's window. called on the selector thread.
+	void bodyRead(){
+		try{
+			readBody();
+		}
+		catch(IOException | CancelledKeyException e){
+			close();
+		}
+	}
+
+	void onWritable() throws IOException{
+		int state = out.drainTo(io);
+		if(state == NioOutputStream.CLOSED) close();
+		else if(state == NioOutputStream.RESPONSE_DONE) nextRequest();
+		else if(state == NioOutputStream.IDLE){
+			key.interestOps(readInterest());
+			if(tls != null && !dispatched && tls.buffered()) onReadable(); //the handshake was waiting on that write, and the client's next part is already in
+		}
+	}
+
+	//the last response is all out and the connection is being kept. starts on the next request.
+	//whatever came in after the last request is the start of the next one, and if all of it is there already it goes straight to a worker.
+	void nextRequest() throws IOException{
+		answered();
+		served++;
+		byte [] buf = in.array();
+		int leftover = in.position() - requestEnd;
+		System.arraycopy(buf, requestEnd, buf, 0, leftover);
+		in.position(leftover);
+		if(chunkedBody) in = body.giveBack(in);
+		chunkedBody = false;
+		scanned = 0;
+		headerEnd = -1;
+		requestEnd = -1;
+		body = null;
+		leftover = in.position();
+		start = System.currentTimeMillis();
+		dispatched = false;
+		waitStart = System.nanoTime();
+		firstByte = leftover > 0 ? waitStart : 0;
+
+		if(requestComplete()) dispatch();
+		else if(tls != null && tls.buffered()) onReadable();
+		else key.interestOps(SelectionKey.OP_READ);
+	}
+
+	//the connection stops being HTTP/1 after the request the worker has, see Http2Connection. everything after that request is the worker's
+	//to read from here on: first what was read in along with it, then the rest, as the selector thread reads it. called on the worker.
+	InputStream takeOver(){
+		InputStream read = new ByteArrayInputStream(Arrays.copyOfRange(in.array(), requestEnd, in.position()));
+		NioInputStream rest = new NioInputStream(this, Long.MAX_VALUE);
+		loop.execute(() -> {
+			body = rest;
+			bodyRead();
+		});
+		return new SequenceInputStream(read, rest);
+	}
+
+	//the answer to the last dispatched request is all written, or never will be.
+	void answered(){
+		if(!responding) return;
+		responding = false;
+		Lifecycle.finished();
+	}
+
+	void close(){
+		answered();
+		key.cancel();
+		out.broken();
+		if(body != null) body.broken();
+		try{
+			io.close();
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+
+
+//the part of a request body that was too big to read in with the headers, as the selector thread reads it in.
+//the selector thread fills the window (never past the end of the body), and the worker reads it out through the request's RequestBody.
+//when the window is full, the selector stops reading until the worker makes room, so a fast client cant get ahead of a slow handler.
+//a worker waits here at most the request timeout for the client to send more.
+class NioInputStream extends InputStream{
+
+	static final int WINDOW = 16 * 1024;
+
+	NioConnection conn;
+	ByteBuffer window = ByteBuffer.allocate(WINDOW); //write mode
+	long left; //body bytes still on the socket
+	boolean eof = false;
+
+	public NioInputStream(NioConnection c, long length){
+		conn = c;
+		left = length;
+	}
+
+	//true if there is more body to come and room for it.
+	synchronized boolean wantsBytes(){
+		return left > 0 && !eof && window.hasRemaining();
+	}
+
+	//reads what the socket has, up to the end of the body. called on the selector thread. false if it read nothing.
+	synchronized boolean fill(ByteChannel channel) throws IOException{
+		int limit = window.limit();
+		window.limit((int) Math.min(limit, window.position() + left));
+		int n;
+		try{
+			n = channel.read(window);
+		}
+		finally{
+			window.limit(limit);
+		}
+		if(n == -1) eof = true;
+		else left -= n;
+		notifyAll();
+		return n > 0;
+	}
+
+	public int read() throws IOException{
+		byte [] one = new byte[1];
+		int n = read(one, 0, 1);
+		return n == -1 ? -1 : one[0] & 0xff;
+	}
+
+	public synchronized int read(byte [] b, int off, int len) throws IOException{
+		if(len == 0) return 0;
+		long deadline = System.currentTimeMillis() + ServerConfig.requestTimeout;
+		while(window.position() == 0){
+			if(left == 0) return -1;
+			if(eof) return -1; //RequestBody turns this into an EOFException
+			long wait = deadline - System.currentTimeMillis();
+			if(wait <= 0) throw new java.net.SocketTimeoutException("the client stopped sending the body");
+			try{
+				wait(wait);
+			}
+			catch(InterruptedException ie){
+				throw new InterruptedIOException();
+			}
+		}
+		boolean wasFull = !window.hasRemaining();
+		window.flip();
+		int n = Math.min(len, window.remaining());
+		window.get(b, off, n);
+		window.compact();
+		if(wasFull && left > 0) conn.loop.execute(conn::bodyRead);
+		return n;
+	}
+
+	public synchronized int available(){
+		return window.position();
+	}
+
+	//whatever is in the window that wasnt read, put after what is in buffer (growing it if need be). for a chunked body,
+	//which the window reads past the end of, that is the start of the next request.
+	synchronized ByteBuffer giveBack(ByteBuffer buffer){
+		window.flip();
+		if(buffer.remaining() < window.remaining()){
+			ByteBuffer bigger = ByteBuffer.allocate(buffer.position() + window.remaining());
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+		buffer.put(window);
+		window.clear();
+		return buffer;
+	}
+
+	//the connection is gone.
+	synchronized void broken(){
+		eof = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+
+
+//the output half of an NioConnection.
+//workers write into it like any other stream. full chunks get queued, and the selector thread writes them out when the socket is ready.
+//the chunks come from BufferPool and go back once they are written. buffers in a row on the queue go out in one gathering write,
+//so headers and the body after them are one writev (not over TLS, which encrypts them a record at a time anyway).
+//if the client reads slower than the worker writes, the worker waits here instead of the queue growing forever.
+class NioOutputStream extends OutputStream{
+
+	static final int CHUNK = BufferPool.CHUNK;
+	static final int MAX_PENDING = 256 * 1024;
+	static final int MAX_GATHER = 16;
+
+	//what drainTo found. MORE means the socket is full, IDLE that everything queued so far is written,
+	//RESPONSE_DONE that a whole response on a kept-alive connection is written, CLOSED that the stream is closed and all written.
+	static final int MORE = 0;
+	static final int IDLE = 1;
+	static final int RESPONSE_DONE = 2;
+	static final int CLOSED = 3;
+
+	//goes in the queue after the last of a response, when the connection is going to be kept.
+	static final Object END_OF_RESPONSE = new Object();
+
+	NioConnection conn;
+	ArrayDeque<Object> pending = new ArrayDeque<Object>(); //ByteBuffers and FileRegions, in the order they were written
+	int pendingBytes = 0;
+	ByteBuffer current = null; //a pool buffer
+	ByteBuffer [] gather = new ByteBuffer[MAX_GATHER]; //only used by drainTo
+	boolean closed = false;
+	boolean broken = false;
+
+	public NioOutputStream(NioConnection c){
+		conn = c;
+	}
+
+	public synchronized void write(int b){
+		if(current == null) current = BufferPool.acquire(CHUNK);
+		current.put((byte) b);
+		if(!current.hasRemaining()) enqueue();
+	}
+
+	public synchronized void write(byte [] b, int off, int len){
+		while(len > 0){
+			if(current == null) current = BufferPool.acquire(Math.min(Math.max(len, CHUNK), BufferPool.LARGE));
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			if(!current.hasRemaining()) enqueue();
+		}
+	}
+
+	public synchronized void flush(){
+		if(current != null && current.position() > 0) enqueue();
+	}
+
+	public void close(){
+		synchronized(this){
+			if(closed) return;
+			flush();
+			closed = true;
+		}
+		conn.loop.execute(conn::wantWrite);
+	}
+
+	//the response is over but the connection stays open. once everything before this is written, the connection reads its next request.
+	public void endResponse(){
+		synchronized(this){
+			flush();
+			if(!broken) pending.add(END_OF_RESPONSE);
+		}
+		conn.loop.execute(conn::wantWrite);
+	}
+
+	//queues up part of a file to go out after everything written so far.
+	//the selector thread does the actual transferTo, and closes the channel once the region is done.
+	public synchronized void sendFile(FileChannel fc, long position, long count) throws IOException{
+		flush();
+		if(broken){
+			fc.close();
+			return;
+		}
+		pending.add(new FileRegion(fc, position, count));
+		conn.loop.execute(conn::wantWrite);
+	}
+
+	//queues up a buffer as it is, without copying it. the buffer must not change until it has been sent.
+	public synchronized void sendBuffer(ByteBuffer buffer){
+		flush();
+		if(broken) return;
+		pending.add(buffer);
+		pendingBytes += buffer.remaining();
+		conn.loop.execute(conn::wantWrite);
+	}
+
+	//moves the current chunk onto the queue and pokes the selector thread.
+	//blocks while too much is queued up already, unless the connection is gone, in which case the bytes are just dropped.
+	void enqueue(){
+		current.flip();
+		if(!broken){
+			pending.add(current);
+			pendingBytes += current.remaining();
+		}
+		else BufferPool.release(current);
+		current = null;
+		conn.loop.execute(conn::wantWrite);
+
+		while(pendingBytes > MAX_PENDING && !broken){
+			try{
+				wait();
+			}
+			catch(InterruptedException ie){
+				return;
+			}
+		}
+	}
+
+	//writes as much as the socket will take right now, up to the end of the current response.
+	//returns one of MORE, IDLE, RESPONSE_DONE or CLOSED.
+	//on an HTTPS connection, it isnt written until the TlsChannel has sent all of it.
+	synchronized int drainTo(ByteChannel channel) throws IOException{
+		try{
+			while(!pending.isEmpty()){
+				Object next = pending.peek();
+				if(next == END_OF_RESPONSE){
+					if(!flushed(channel)) return MORE;
+					pending.poll();
+					return RESPONSE_DONE;
+				}
+				if(next instanceof FileRegion){
+					FileRegion region = (FileRegion) next;
+					if(!region.transferTo(channel)) return MORE;
+					pending.poll();
+					continue;
+				}
+				if(!(channel instanceof GatheringByteChannel)){
+					ByteBuffer b = (ByteBuffer) next;
+					pendingBytes -= channel.write(b);
+					if(b.hasRemaining()) return MORE;
+					BufferPool.release((ByteBuffer) pending.poll());
+					continue;
+				}
+				//this buffer and the ones right after it, in one write
+				int n = 0;
+				for(Object o : pending){
+					if(!(o instanceof ByteBuffer) || n == MAX_GATHER) break;
+					gather[n++] = (ByteBuffer) o;
+				}
+				pendingBytes -= ((GatheringByteChannel) channel).write(gather, 0, n);
+				boolean all = !gather[n - 1].hasRemaining();
+				for(int i = 0; i < n; i++){
+					if(gather[i].hasRemaining()) break;
+					BufferPool.release((ByteBuffer) pending.poll());
+				}
+				Arrays.fill(gather, 0, n, null);
+				if(!all) return MORE;
+			}
+			if(!flushed(channel)) return MORE;
+			return closed ? CLOSED : IDLE;
+		}
+		finally{
+			notifyAll();
+		}
+	}
+
+	static boolean flushed(ByteChannel channel) throws IOException{
+		return !(channel instanceof TlsChannel) || ((TlsChannel) channel).flushOut();
+	}
+
+	//the socket is gone, so let go of anything waiting on it.
+	synchronized void broken(){
+		broken = true;
+		for(Object o : pending){
+			if(o instanceof FileRegion) ((FileRegion) o).close();
+			else if(o instanceof ByteBuffer) BufferPool.release((ByteBuffer) o);
+		}
+		pending.clear();
+		pendingBytes = 0;
+		notifyAll();
+	}
+}
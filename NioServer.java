@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+
+
+//the event-driven front end. used instead of the accept loop in HTTP1Server.main when the mode is "nio".
+//the main thread only accepts connections and deals them out to the selector threads.
+//the selector threads do all of the socket reading and writing without ever blocking,
+//and a request is only handed to a worker (a HandlerThread) once all of it has arrived.
+//so a slow client costs a buffer, not a thread.
+//it can also take HTTPS connections on a second port (see Tls). those get a TlsChannel in between, and are otherwise the same.
+class NioServer{
+
+	ServerSocketChannel server;
+	ServerSocketChannel secure;
+	SelectorLoop [] loops;
+	ThreadPoolExecutor executor;
+	Shard shard;
+
+	public NioServer(ServerSocketChannel ssc) throws IOException{
+		this(ssc, null);
+	}
+
+	//either one can be null, for only plain or only HTTPS.
+	public NioServer(ServerSocketChannel ssc, ServerSocketChannel tls) throws IOException{
+		this(ssc, tls, new Shard(ssc == null ? "tls" : "0", ssc, 1));
+	}
+
+	//one shard's worth, see Shard. its workers are the same kind of pool as the classic mode's, so the 503 cutoff is the same too.
+	public NioServer(ServerSocketChannel ssc, ServerSocketChannel tls, Shard s) throws IOException{
+		server = ssc;
+		secure = tls;
+		shard = s;
+		executor = s.executor;
+
+		loops = new SelectorLoop[s.selectors];
+		for(int i = 0; i < loops.length; i++){
+			loops[i] = new SelectorLoop(executor);
+			Thread t = new Thread(loops[i], "selector-" + s.name + "-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	//accept loop. returns once the server is draining (see Lifecycle), or if the server socket breaks.
+	//new connections are handed out round robin.
+	public void run() throws IOException{
+		Selector acceptSelector = Selector.open();
+		for(ServerSocketChannel ssc : new ServerSocketChannel[]{server, secure}){
+			if(ssc == null) continue;
+			ssc.configureBlocking(false);
+			ssc.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		}
+		Lifecycle.onDrain(acceptSelector::wakeup);
+
+		int next = 0;
+		try{
+			while(!Lifecycle.draining){
+				acceptSelector.select();
+				for(SelectionKey key : acceptSelector.selectedKeys()){
+					ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
+					SocketChannel sc;
+					while((sc = ssc.accept()) != null){
+						shard.counted();
+						loops[next].add(sc, ssc == secure);
+						next = (next + 1) % loops.length;
+					}
+				}
+				acceptSelector.selectedKeys().clear();
+			}
+		}
+		catch(IOException ioe){
+			if(!Lifecycle.draining) throw ioe; //closed between the select and the accept
+		}
+		finally{
+			acceptSelector.close(); //the listening sockets are only really closed once they are off the selector
+		}
+	}
+}
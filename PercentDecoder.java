@@ -0,0 +1,56 @@
+//percent-decoding, in one pass over bytes, for request targets and application/x-www-form-urlencoded bodies.
+//every %XX with two hex digits (either case) becomes that byte, and in form data a + becomes a space.
+//it works on bytes and not chars, so UTF-8 comes through whole: "%C3%A9" turns back into the two bytes of an e with an acute accent,
+//and whoever reads the result decides it is UTF-8.
+//a % that isnt followed by two hex digits is an error (-1 here, a CharConversionException from the stream), not something to guess at.
+//nothing in here allocates. decode() can work in place, since the output is never longer than the input.
+class PercentDecoder{
+
+	//the value of each hex digit, -1 for everything else.
+	static final byte [] HEX = new byte[256];
+	static{
+		java.util.Arrays.fill(HEX, (byte) -1);
+		for(int i = 0; i < 10; i++) HEX['0' + i] = (byte) i;
+		for(int i = 0; i < 6; i++){
+			HEX['a' + i] = (byte) (10 + i);
+			HEX['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	//decodes src[from..to) into dst starting at at, and returns where the output ends, or -1 if an escape is broken.
+	//dst can be src, with at <= from, to decode in place.
+	static int decode(byte [] src, int from, int to, byte [] dst, int at, boolean form){
+		int i = from;
+		while(i < to){
+			byte b = src[i];
+			if(b == '%'){
+				if(i + 3 > to) return -1;
+				int hi = HEX[src[i + 1] & 0xff];
+				int lo = HEX[src[i + 2] & 0xff];
+				if(hi < 0 || lo < 0) return -1;
+				dst[at++] = (byte) (hi << 4 | lo);
+				i += 3;
+			}
+			else{
+				dst[at++] = form && b == '+' ? (byte) ' ' : b;
+				i++;
+			}
+		}
+		return at;
+	}
+
+	//how many bytes src[from..to) decodes to, or -1 if an escape is broken. for knowing a length before decoding as a stream.
+	static int decodedLength(byte [] src, int from, int to){
+		int n = 0;
+		int i = from;
+		while(i < to){
+			if(src[i] == '%'){
+				if(i + 3 > to || HEX[src[i + 1] & 0xff] < 0 || HEX[src[i + 2] & 0xff] < 0) return -1;
+				i += 3;
+			}
+			else i++;
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+
+
+
+//a request's body as a stream, which ends where the body does and not a byte later, so whatever the client sent after it
+//(the next request on a kept-alive connection) is left where it is.
+//it reads the part of the body that is already in the request's buffer first, then the rest off the connection (HttpRequest.bodyRest),
+//so a big upload only ever takes a buffer's worth of memory, however big it is.
+//a client that stops partway through gets an EOFException, not a short body.
+//a chunked body has no length to count down, bodyLeft is -1 for it, and it ends where its ChunkedInputStream does.
+class RequestBody extends InputStream{
+
+	HttpRequest request;
+	int pos; //next byte to read in the request's buffer
+	long left; //bytes still to come from bodyRest, -1 for until it ends
+
+	public RequestBody(HttpRequest r){
+		request = r;
+		pos = r.bodyStart;
+		left = r.bodyLeft;
+	}
+
+	public int read() throws IOException{
+		byte [] one = new byte[1];
+		int n = read(one, 0, 1);
+		return n == -1 ? -1 : one[0] & 0xff;
+	}
+
+	public int read(byte [] b, int off, int len) throws IOException{
+		if(len == 0) return 0;
+		if(pos < request.end){
+			int n = Math.min(len, request.end - pos);
+			System.arraycopy(request.buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		if(left == 0) return -1;
+		int n = request.bodyRest.read(b, off, left < 0 ? len : (int) Math.min(len, left));
+		if(n == -1){
+			if(left < 0){
+				left = 0;
+				return -1;
+			}
+			throw new EOFException("the client stopped partway through the body, with " + left + " bytes to go");
+		}
+		if(left > 0) left -= n;
+		return n;
+	}
+
+	public int available() throws IOException{
+		if(pos < request.end) return request.end - pos;
+		if(left < 0) return request.bodyRest.available();
+		return left == 0 ? 0 : (int) Math.min(left, request.bodyRest.available());
+	}
+
+	//how much of the body hasnt been read yet. -1 for a chunked body, which doesnt say until it ends.
+	public long remaining(){
+		if(left < 0) return -1;
+		return request.end - pos + left;
+	}
+
+	//reads and drops whatever is left, so the connection is ready for the next request. false if the client didnt send all of it.
+	public boolean skipRest(){
+		byte [] scratch = new byte[8192];
+		try{
+			while(read(scratch, 0, scratch.length) != -1);
+			return true;
+		}
+		catch(IOException ioe){
+			return false;
+		}
+	}
+}
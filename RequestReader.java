@@ -0,0 +1,301 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+
+
+//reads one request at a time off a client's input stream.
+//it blocks in read() with the socket's timeout set, instead of spinning on ready(), so a client that is just sitting there costs nothing.
+//the timeout is lowered as the request goes on, so all of it has to be in within server.requestTimeout, not just each read.
+//bytes go into one buffer that is kept for the whole connection. every time more arrive, only the new ones are checked
+//for the blank line that ends the headers. then the headers are parsed (once) and exactly Content-Length more bytes are read for the body
+//(or, for a chunked body, up to the last chunk, if that comes before the buffer is server.limits.bufferedBody past the headers).
+//a read can pick up more than one request if the client is pipelining. whatever is left over after a request is kept for the next one.
+//the limits in ServerConfig are checked as the bytes come in, so a request that breaks one stops being read right there.
+//a body too big to read in with the headers is left on the socket, and the handler reads it from request.body() instead.
+//a chunked one is decoded on the way, see ChunkedInputStream.
+class RequestReader{
+
+	static final String URI_TOO_LONG = "414 URI Too Long";
+	static final String HEADERS_TOO_LARGE = "431 Request Header Fields Too Large";
+	static final String PAYLOAD_TOO_LARGE = "413 Payload Too Large";
+	static final String BAD_FRAMING = "400 Bad Request";
+
+	InputStream in;
+	Socket socket; //whose timeout is lowered as the request's deadline gets close. null for just a stream, which only gets the per read timeout
+	int served = 0; //requests read so far
+	byte [] buf = new byte[8192];
+	int end = 0; //how much of buf is filled
+	int next = 0; //where the request after the current one starts
+	HttpRequest request = new HttpRequest();
+
+	public RequestReader(InputStream is){
+		in = is;
+	}
+
+	public RequestReader(Socket s) throws IOException{
+		this(s.getInputStream());
+		socket = s;
+	}
+
+	//reads the next request, parses it and returns it.
+	//returns null if the timeout ran out (or the client hung up) before a single byte came in, which means 408 (or, between requests, just close).
+	//if some of a request came in but not all of it, whatever did come in is returned, same as the old ready() loop would have,
+	//with complete == false so the connection isnt reused. the same goes for a request that broke a limit, with overLimit set too.
+	public HttpRequest readRequest() throws IOException{
+		//move the leftovers of the last read to the front
+		System.arraycopy(buf, next, buf, 0, end - next);
+		end -= next;
+		next = 0;
+
+		int scanned = 0;
+		int headerEnd = -1;
+		boolean complete = false;
+		boolean streaming = false;
+		String limit = null;
+
+		//for Metrics. a pipelined request that is already here didnt have to wait at all.
+		long waitStart = System.nanoTime();
+		long firstByte = end > 0 ? waitStart : 0;
+
+		//the first request on a connection has server.requestTimeout from when the connection started waiting for it.
+		//one after that can take the keep-alive timeout to start, then gets server.requestTimeout from its first byte.
+		int waitTimeout = socket == null ? 0 : socket.getSoTimeout();
+		long deadline = served == 0 || end > 0 ? System.currentTimeMillis() + ServerConfig.requestTimeout : 0;
+
+		while(true){
+			if(headerEnd == -1){
+				headerEnd = findHeaderEnd(buf, scanned, end);
+				scanned = end;
+				if(headerEnd != -1){
+					//the headers only get parsed once. the body just gets tacked on to the end afterwards.
+					long parseStart = System.nanoTime();
+					request.parse(buf, 0, headerEnd);
+					Metrics.lap(Metrics.PARSE, parseStart);
+				}
+				if((limit = overLimit(request, buf, headerEnd, end)) != null) break;
+			}
+			if(headerEnd != -1){
+				int bodyEnd = bodyEnd(request, buf, headerEnd, end);
+				if(bodyEnd != -1){
+					next = bodyEnd;
+					complete = true;
+					break;
+				}
+				if(streams(request)){
+					//everything after the headers is body, and the rest of it stays on the socket until the handler reads it
+					next = end;
+					complete = true;
+					streaming = true;
+					break;
+				}
+			}
+
+			if(end == buf.length){
+				int room = room(request, headerEnd);
+				if(buf.length >= room){
+					if(headerEnd == -1){
+						limit = HEADERS_TOO_LARGE;
+						break;
+					}
+					//only a chunked body can get here, one that didnt end within bufferedBody. all of what is here is body,
+					//and the handler reads the rest of it decoded, the same as any other streamed body
+					next = end;
+					complete = true;
+					streaming = true;
+					break;
+				}
+				byte [] bigger = new byte[(int) Math.min((long) buf.length * 2, room)];
+				System.arraycopy(buf, 0, bigger, 0, end);
+				buf = bigger;
+			}
+
+			if(socket != null && deadline != 0){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0) break; //same as the read timing out
+				socket.setSoTimeout((int) left);
+			}
+
+			int n;
+			try{
+				n = in.read(buf, end, buf.length - end);
+			}
+			catch(SocketTimeoutException ste){
+				break;
+			}
+			if(n == -1) break;
+			if(firstByte == 0 && n > 0) firstByte = System.nanoTime();
+			if(deadline == 0 && n > 0) deadline = System.currentTimeMillis() + ServerConfig.requestTimeout;
+			end += n;
+		}
+		if(socket != null && deadline != 0) socket.setSoTimeout(waitTimeout); //the handler reads a streamed body with it
+
+		if(end == 0) return null;
+		served++;
+		Metrics.record(Metrics.WAIT, firstByte - waitStart);
+		Metrics.lap(Metrics.READ, firstByte);
+		if(!complete){
+			next = end;
+			if(headerEnd == -1) request.parse(buf, 0, end);
+			else request.extend(buf, end);
+		}
+		else finish(request, buf, headerEnd, next);
+		request.complete = complete;
+		request.overLimit = limit;
+		if(streaming && isChunked(request)){
+			request.extend(buf, headerEnd); //none of it is decoded yet, so it is all read through the ChunkedInputStream
+			request.chunked = true;
+			request.bodyRest = new ChunkedInputStream(buf, headerEnd, end, in);
+			request.bodyLeft = -1;
+		}
+		else if(streaming){
+			request.bodyRest = in;
+			request.bodyLeft = bodyLength(request) - (end - headerEnd);
+		}
+		return request;
+	}
+
+	//what is left of the connection after the current request: whatever of it was read in already, then the socket.
+	//for when the connection stops being HTTP/1, see Http2Connection. the reader is no use after this.
+	InputStream rest(){
+		InputStream read = new ByteArrayInputStream(buf, next, end - next);
+		next = end;
+		return new SequenceInputStream(read, in);
+	}
+
+	//which limit the request in buf[0..end) breaks, as the status to answer with, or null if it is fine so far.
+	//headerEnd is -1 while the headers are still coming in. once they are all there (and parsed), their count and Content-Length are checked too.
+	//so is that where the body ends is certain. a Content-Length that isnt a plain number (or is given twice, differently), or one
+	//next to a Transfer-Encoding, or a Transfer-Encoding that isnt chunked, is a 400 that ends the connection. guessing at the end instead
+	//would let whatever is past the guess be read as a request of its own.
+	static String overLimit(HttpRequest request, byte [] buf, int headerEnd, int end){
+		int to = headerEnd == -1 ? end : headerEnd;
+		int lineEnd = indexOfCrlf(buf, 0, Math.min(to, ServerConfig.maxRequestLine + 2));
+		if(lineEnd == -1) return to > ServerConfig.maxRequestLine ? URI_TOO_LONG : null;
+		if(to - (lineEnd + 2) > ServerConfig.maxHeaderBytes + 2) return HEADERS_TOO_LARGE; //+2 for the blank line
+		if(headerEnd == -1) return null;
+		if(request.headerCount > ServerConfig.maxHeaders) return HEADERS_TOO_LARGE;
+		if(!request.valid) return null;
+		long length = request.contentLength();
+		boolean transferEncoding = request.findHeader("Transfer-Encoding") != -1;
+		if(length == -2 || (transferEncoding && (length != -1 || !isChunked(request)))) return BAD_FRAMING;
+		if(length > ServerConfig.maxBody) return PAYLOAD_TOO_LARGE;
+		return null;
+	}
+
+	//true if the body is too big to read in with the headers, and should be streamed to the handler instead.
+	static boolean streams(HttpRequest request){
+		return request.valid && !isChunked(request) && bodyLength(request) > ServerConfig.bufferedBody;
+	}
+
+	//the most the buffer needs to hold for this request: the biggest headers allowed (and a byte, to see that they went over),
+	//then the body, if it is one that is read in whole. a chunked body that hasnt ended by then is streamed.
+	static int room(HttpRequest request, int headerEnd){
+		if(headerEnd == -1) return ServerConfig.maxRequestLine + ServerConfig.maxHeaderBytes + 5;
+		return (int) Math.min(Integer.MAX_VALUE - 8, headerEnd + (long) ServerConfig.bufferedBody);
+	}
+
+	//looks for "\r\n\r\n" in buf, starting a few bytes before from in case it got split across two reads.
+	//returns the index just past it, or -1 if it isnt there yet.
+	static int findHeaderEnd(byte [] buf, int from, int to){
+		for(int i = Math.max(from, 3); i < to; i++){
+			if(buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') return i + 1;
+		}
+		return -1;
+	}
+
+	//how many body bytes to wait for after the headers.
+	//a missing or bad Content-Length just means there is no body to wait for. HandlerThread decides what to do about it.
+	static int bodyLength(HttpRequest request){
+		if(!request.valid) return 0;
+		return (int) Math.max(0, request.headerLong("Content-Length"));
+	}
+
+	//where the request that starts at 0 and has its headers end at headerEnd is over, or -1 if not all of it is in buf[0..end) yet.
+	//a chunked body ends after its last chunk, anything else after Content-Length bytes.
+	static int bodyEnd(HttpRequest request, byte [] buf, int headerEnd, int end){
+		if(isChunked(request)){
+			int chunkedEnd = chunkedEnd(buf, headerEnd, end);
+			if(chunkedEnd == -2) return end; //not really chunked. take what is there, it will fail later
+			return chunkedEnd;
+		}
+		long bodyEnd = headerEnd + (long) bodyLength(request);
+		return end >= bodyEnd ? (int) bodyEnd : -1;
+	}
+
+	//once all of a request is in buf, sets the request up to end where its body ends. a chunked body is decoded in place first.
+	static void finish(HttpRequest request, byte [] buf, int headerEnd, int requestEnd){
+		if(isChunked(request) && chunkedEnd(buf, headerEnd, requestEnd) == requestEnd){
+			request.extend(buf, decodeChunked(buf, headerEnd, requestEnd));
+			request.chunked = true;
+		}
+		else request.extend(buf, requestEnd);
+	}
+
+	static boolean isChunked(HttpRequest request){
+		return request.valid && request.headerEquals("Transfer-Encoding", "chunked");
+	}
+
+	//goes over a chunked body starting at from. returns where it ends (after the last chunk and any trailers),
+	//-1 if it isnt all there yet, or -2 if it isnt chunked properly.
+	static int chunkedEnd(byte [] buf, int from, int to){
+		int i = from;
+		while(true){
+			int lineEnd = indexOfCrlf(buf, i, to);
+			if(lineEnd == -1) return -1;
+			long size = chunkSize(buf, i, lineEnd);
+			if(size < 0) return -2;
+			i = lineEnd + 2;
+			if(size == 0) break;
+			if(i + size + 2 > to) return -1;
+			if(buf[(int) (i + size)] != '\r' || buf[(int) (i + size + 1)] != '\n') return -2;
+			i += (int) size + 2;
+		}
+		//trailers, until a blank line
+		while(true){
+			int lineEnd = indexOfCrlf(buf, i, to);
+			if(lineEnd == -1) return -1;
+			boolean blank = lineEnd == i;
+			i = lineEnd + 2;
+			if(blank) return i;
+		}
+	}
+
+	//squashes the chunks in buf[from..to) together, dropping the sizes and trailers. returns where the data now ends.
+	//only call this once chunkedEnd has said all of it is there.
+	static int decodeChunked(byte [] buf, int from, int to){
+		int read = from;
+		int write = from;
+		while(true){
+			int lineEnd = indexOfCrlf(buf, read, to);
+			int size = (int) chunkSize(buf, read, lineEnd);
+			read = lineEnd + 2;
+			if(size == 0) return write;
+			System.arraycopy(buf, read, buf, write, size);
+			write += size;
+			read += size + 2;
+		}
+	}
+
+	//the hex number at the start of a chunk line, ignoring any ";extension". -1 if there isnt one, -2 if it is more than server.limits.body.
+	static long chunkSize(byte [] buf, int from, int to){
+		long size = 0;
+		int i = from;
+		for(; i < to; i++){
+			int d = Character.digit(buf[i], 16);
+			if(d == -1) break;
+			size = size * 16 + d;
+			if(size > ServerConfig.maxBody) return -2;
+		}
+		if(i == from) return -1;
+		if(i < to && buf[i] != ';' && buf[i] != ' ') return -1;
+		return size;
+	}
+
+	static int indexOfCrlf(byte [] buf, int from, int to){
+		for(int i = from; i + 1 < to; i++){
+			if(buf[i] == '\r' && buf[i + 1] == '\n') return i;
+		}
+		return -1;
+	}
+}
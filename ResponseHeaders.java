@@ -0,0 +1,138 @@
+import java.io.*;
+
+
+
+//builds a status line and headers as bytes, in a buffer that a connection keeps and reuses for every response.
+//nothing in here makes a String. names and values are copied over a char at a time (headers are plain ascii),
+//numbers are written digit by digit, and dates come already rendered from HttpDate.
+//usage: headers.reset().status("HTTP/1.0 200 OK").add("Content-Length", n).dates().end().writeTo(out)
+class ResponseHeaders{
+
+	byte [] buf = new byte[512];
+	int len = 0;
+
+	public ResponseHeaders reset(){
+		len = 0;
+		return this;
+	}
+
+	//the status line, e.g. "HTTP/1.0 200 OK". the CRLF is added here.
+	public ResponseHeaders status(String line){
+		ascii(line);
+		return crlf();
+	}
+
+	//the same, in two pieces, e.g. ("HTTP/1.1", "200 OK").
+	public ResponseHeaders status(String protocol, String status){
+		ascii(protocol);
+		ascii(" ");
+		ascii(status);
+		return crlf();
+	}
+
+	public ResponseHeaders add(String name, String value){
+		ascii(name);
+		ascii(": ");
+		ascii(value);
+		return crlf();
+	}
+
+	public ResponseHeaders add(String name, long value){
+		ascii(name);
+		ascii(": ");
+		number(value);
+		return crlf();
+	}
+
+	//a header whose value is a time, e.g. Last-Modified.
+	public ResponseHeaders addDate(String name, long millis){
+		ascii(name);
+		ascii(": ");
+		bytes(HttpDate.bytes(millis));
+		return crlf();
+	}
+
+	//"Content-Range: bytes first-last/length", or "bytes */length" if first is negative (that is for a 416).
+	public ResponseHeaders contentRange(long first, long last, long length){
+		ascii("Content-Range: bytes ");
+		if(first < 0) ascii("*");
+		else{
+			number(first);
+			ascii("-");
+			number(last);
+		}
+		ascii("/");
+		number(length);
+		return crlf();
+	}
+
+	//header lines that were rendered earlier, CRLFs and all.
+	public ResponseHeaders raw(byte [] lines){
+		bytes(lines);
+		return this;
+	}
+
+	//Date and Expires, for the current second.
+	public ResponseHeaders dates(){
+		bytes(HttpDate.dateLine());
+		bytes(HttpDate.expiresLine());
+		return this;
+	}
+
+	//the blank line after the headers.
+	public ResponseHeaders end(){
+		return crlf();
+	}
+
+	public void writeTo(OutputStream out) throws IOException{
+		out.write(buf, 0, len);
+	}
+
+	//a copy of what is in the buffer, for keeping.
+	public byte [] toByteArray(){
+		return java.util.Arrays.copyOf(buf, len);
+	}
+
+	public String toString(){
+		return new String(buf, 0, len, java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+
+	ResponseHeaders crlf(){
+		room(2);
+		buf[len++] = '\r';
+		buf[len++] = '\n';
+		return this;
+	}
+
+	void ascii(String s){
+		int n = s.length();
+		room(n);
+		for(int i = 0; i < n; i++) buf[len++] = (byte) s.charAt(i);
+	}
+
+	void bytes(byte [] b){
+		room(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	void number(long v){
+		if(v < 0){
+			room(1);
+			buf[len++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for(long t = v; t >= 10; t /= 10) digits++;
+		room(digits);
+		for(int i = len + digits - 1; i >= len; i--){
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		len += digits;
+	}
+
+	void room(int n){
+		if(len + n > buf.length) buf = java.util.Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+	}
+}
@@ -0,0 +1,168 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+
+
+//picks the Handler for a request by its method and path.
+//each method has its own trie of the paths registered for it, a node per character, built as routes are added,
+//so finding a route is one walk down the path: no patterns get parsed, nothing is allocated, and it takes as long
+//as the path is, however many routes there are.
+//a pattern is a path, and can have "*" in it:
+//	"/about.html"        just that path
+//	"/static/*"          a "*" on the end matches the rest of the path, however deep ("/static/", "/static/css/a.css")
+//	"/users/*/avatar"    a "*" anywhere else is one whole segment, anything but "" or a "/"
+//when more than one matches, a literal character beats a "*" segment at the same spot, and the longest match wins,
+//so "/api/time" goes before "/api/*", which goes before "/*".
+//routes are added before the server starts taking requests (see load()), the tries arent safe to change while they are being read.
+class Router{
+
+	//the two handlers the server always had.
+	static final Handler FILES = (t, request, path) -> t.serveFile(request, path);
+	static final Handler CGI = (t, request, path) -> t.serveCgi(request, path);
+
+	//the one every HandlerThread asks. files for GET and HEAD, cgi for POST, plus whatever server.routes adds.
+	static final Router shared = new Router();
+	static{
+		shared.add("GET", "/*", FILES);
+		shared.add("HEAD", "/*", FILES);
+		shared.add("POST", "/*", CGI);
+	}
+
+	//one trie per method, in the order of HttpRequest.METHODS. null for methods nothing is routed for.
+	Node [] roots = new Node[HttpRequest.METHODS.length];
+
+	static class Node{
+		char [] keys = new char[0]; //sorted, for a binary search
+		Node [] next = new Node[0];
+		Node segment; //what comes after a "*" segment that starts here
+		Handler exact; //the route that ends here
+		Handler rest; //the route that ends here with a "*", taking whatever is left of the path
+
+		Node child(char c){
+			int i = Arrays.binarySearch(keys, c);
+			return i < 0 ? null : next[i];
+		}
+
+		Node addChild(char c){
+			int i = Arrays.binarySearch(keys, c);
+			if(i >= 0) return next[i];
+			i = -i - 1;
+			Node n = new Node();
+			char [] k = new char[keys.length + 1];
+			Node [] nx = new Node[next.length + 1];
+			System.arraycopy(keys, 0, k, 0, i);
+			System.arraycopy(next, 0, nx, 0, i);
+			k[i] = c;
+			nx[i] = n;
+			System.arraycopy(keys, i, k, i + 1, keys.length - i);
+			System.arraycopy(next, i, nx, i + 1, next.length - i);
+			keys = k;
+			next = nx;
+			return n;
+		}
+	}
+
+	//registers handler for method and pattern, replacing what was there for the same pattern.
+	public Router add(String method, String pattern, Handler handler){
+		int m = methodIndex(method);
+		if(m == -1) throw new IllegalArgumentException("the server doesnt speak " + method);
+		if(pattern.isEmpty() || pattern.charAt(0) != '/') throw new IllegalArgumentException("a route has to start with /: " + pattern);
+		if(roots[m] == null) roots[m] = new Node();
+
+		Node n = roots[m];
+		int i = 0;
+		while(i < pattern.length()){
+			char c = pattern.charAt(i);
+			boolean wholeSegment = c == '*' && pattern.charAt(i - 1) == '/' && (i + 1 == pattern.length() || pattern.charAt(i + 1) == '/');
+			if(wholeSegment && i + 1 == pattern.length()){
+				n.rest = handler;
+				return this;
+			}
+			if(wholeSegment){
+				if(n.segment == null) n.segment = new Node();
+				n = n.segment;
+			}
+			else if(c == '*'){
+				throw new IllegalArgumentException("a * has to be a whole segment: " + pattern);
+			}
+			else{
+				n = n.addChild(c);
+			}
+			i++;
+		}
+		n.exact = handler;
+		return this;
+	}
+
+	//the handler for a request, or null if nothing is routed for its path.
+	public Handler find(String method, String path){
+		int m = methodIndex(method);
+		if(m == -1 || roots[m] == null) return null;
+		return match(roots[m], path, 0);
+	}
+
+	//true if anything at all is routed for the method. what is left gets a 501, not a 404.
+	public boolean handles(String method){
+		int m = methodIndex(method);
+		return m != -1 && roots[m] != null;
+	}
+
+	//walks down from n, matching path from i on. the walk is a plain loop, except at nodes with a "*" segment hanging off them,
+	//where the literal way is tried first (one call deeper) and the "*" if that finds nothing.
+	static Handler match(Node n, String path, int i){
+		Handler longest = null; //the deepest "rest of the path" route passed on the way down
+		while(true){
+			if(n.rest != null) longest = n.rest;
+			if(i == path.length()) return n.exact != null ? n.exact : longest;
+
+			Node next = n.child(path.charAt(i));
+			if(n.segment != null){
+				Handler h = next == null ? null : match(next, path, i + 1);
+				if(h != null) return h;
+				int end = path.indexOf('/', i);
+				if(end == -1) end = path.length();
+				if(end > i && (h = match(n.segment, path, end)) != null) return h;
+				return longest;
+			}
+			if(next == null) return longest;
+			n = next;
+			i++;
+		}
+	}
+
+	//method is one of HttpRequest.METHODS when it comes from a request, so == finds it. equals() is for routes being added.
+	static int methodIndex(String method){
+		for(int i = 0; i < HttpRequest.METHODS.length; i++){
+			if(HttpRequest.METHODS[i] == method) return i;
+		}
+		for(int i = 0; i < HttpRequest.METHODS.length; i++){
+			if(HttpRequest.METHODS[i].equals(method)) return i;
+		}
+		return -1;
+	}
+
+	//adds the routes in server.routes, "METHOD pattern=ClassName" separated by commas, e.g. "GET /time=TimeHandler".
+	//each class is a Handler with a no argument constructor, on the server's class path. one instance of it serves every request.
+	//throws if one cant be made, so a typo stops the server instead of turning into 404s.
+	public void load(String routes) throws ReflectiveOperationException{
+		for(String route : routes.split(",")){
+			route = route.trim();
+			if(route.isEmpty()) continue;
+			int space = route.indexOf(' ');
+			int equals = route.lastIndexOf('=');
+			if(space == -1 || equals < space) throw new IllegalArgumentException("server.routes: dont know \"" + route + "\"");
+			String method = route.substring(0, space).trim();
+			String pattern = route.substring(space + 1, equals).trim();
+			String className = route.substring(equals + 1).trim();
+			Object handler;
+			try{
+				handler = Class.forName(className).getDeclaredConstructor().newInstance();
+			}
+			catch(InvocationTargetException ite){
+				throw new InstantiationException(className + ": " + ite.getCause());
+			}
+			if(!(handler instanceof Handler)) throw new ClassCastException(className + " isnt a Handler");
+			add(method, pattern, (Handler) handler);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+
+
+//one selector and the thread that spins it.
+//anything that needs to touch a selection key from another thread gets queued up with execute(),
+//so only this thread ever changes interest ops or closes channels.
+class SelectorLoop implements Runnable{
+
+	Selector selector;
+	ThreadPoolExecutor executor;
+	ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public SelectorLoop(ThreadPoolExecutor ex) throws IOException{
+		selector = Selector.open();
+		executor = ex;
+	}
+
+	//hands a freshly accepted channel to this loop. tls is true if it came in on the HTTPS port.
+	public void add(SocketChannel sc, boolean tls){
+		execute(() -> {
+			try{
+				sc.configureBlocking(false);
+				sc.socket().setTcpNoDelay(true);
+				SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(this, sc, key, tls ? Tls.newEngine() : null));
+			}
+			catch(IOException ioe){
+				try{
+					sc.close();
+				}
+				catch(IOException ioe2){
+					return;
+				}
+			}
+		});
+	}
+
+	//runs the given task on the selector thread, as soon as possible.
+	public void execute(Runnable r){
+		tasks.add(r);
+		selector.wakeup();
+	}
+
+	public void run(){
+		while(true){
+			try{
+				//wakes up every so often even when idle, so that timeouts get noticed.
+				selector.select(250);
+			}
+			catch(IOException ioe){
+				System.out.println("Selector failed: " + ioe);
+				return;
+			}
+
+			Runnable task;
+			while((task = tasks.poll()) != null) task.run();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()){
+				SelectionKey key = it.next();
+				it.remove();
+				NioConnection conn = (NioConnection) key.attachment();
+				if(conn == null) continue;
+				try{
+					if(key.isValid() && key.isReadable()) conn.onReadable();
+					if(key.isValid() && key.isWritable()) conn.onWritable();
+				}
+				catch(IOException | CancelledKeyException e){
+					conn.close();
+				}
+			}
+
+			checkTimeouts();
+		}
+	}
+
+	//goes over every connection still waiting on its request and times out the ones that took too long.
+	void checkTimeouts(){
+		long now = System.currentTimeMillis();
+		for(SelectionKey key : selector.keys()){
+			NioConnection conn = (NioConnection) key.attachment();
+			if(conn != null && key.isValid() && !conn.dispatched && now - conn.start > conn.timeout()){
+				conn.onTimeout();
+			}
+		}
+	}
+}
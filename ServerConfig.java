@@ -0,0 +1,203 @@
+//the server's tunable settings, all in one place.
+//each one can be changed on the command line with a system property, i.e. "java -Dserver.workers=100 HTTP1Server 8080".
+//the mode can also be given as the second command line argument, i.e. "java HTTP1Server 8080 nio".
+class ServerConfig{
+
+	//"classic" is the original accept-then-thread loop in HTTP1Server.main.
+	//"nio" is the selector based front end in NioServer.
+	//"virtual" runs each connection on its own virtual thread, see VirtualThreadServer.
+	static String mode = System.getProperty("server.mode", "classic");
+
+	//how many worker threads the classic and nio modes have.
+	static int workerThreads = Integer.getInteger("server.workers", 50);
+
+	//how many connections can wait for a worker before new ones get a 503. 0 means none wait, like the old cutoff.
+	static int queueDepth = Integer.getInteger("server.queueDepth", 100);
+
+	//the most static file (GET, HEAD) and cgi (POST) requests that are served at once. AdmissionControl lowers these under load.
+	static int staticLimit = Integer.getInteger("server.admission.staticLimit", workerThreads);
+	static int cgiLimit = Integer.getInteger("server.admission.cgiLimit", workerThreads);
+
+	//how long a static file or cgi request should take, in millis. when they take longer, their limit comes down.
+	static long staticTarget = Long.getLong("server.admission.staticTarget", 250);
+	static long cgiTarget = Long.getLong("server.admission.cgiTarget", 5000);
+
+	//a request that waited longer than this for a worker is turned away, in millis.
+	static long maxQueueWait = Long.getLong("server.admission.maxQueueWait", 2000);
+
+	//what turned away clients are told in Retry-After, in seconds.
+	static int retryAfter = Integer.getInteger("server.retryAfter", 1);
+
+	//how many independent acceptors (each with its own socket on the port, and its own share of the workers) the classic and nio modes run.
+	//see Shard.
+	static int shards = Integer.getInteger("server.shards", 1);
+
+	//bind the port with SO_REUSEPORT even with one shard, so the next server can start on it before this one stops. see Lifecycle.
+	//a second server started by mistake doesnt get "port in use" then, it just shares the port.
+	static boolean reusePort = Boolean.getBoolean("server.reusePort");
+
+	//take the listening socket from stdin (inetd, systemd socket activation) instead of opening one. the port argument is ignored then.
+	static boolean inheritSocket = Boolean.getBoolean("server.inheritSocket");
+
+	//how many selector threads NioServer splits its connections across.
+	static int selectorThreads = Integer.getInteger("server.selectors", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	//in virtual mode, the most connections that can be handled at once before new clients get a 503.
+	static int maxConnections = Integer.getInteger("server.maxConnections", 10000);
+
+	//in virtual mode, how often (in seconds) to print the BlockingMonitor report. 0 turns it off.
+	static int blockingReport = Integer.getInteger("server.blockingReport", 60);
+
+	//Handlers that answer requests in the server's process, as "METHOD pattern=ClassName", comma separated.
+	//e.g. "GET /time=TimeHandler, POST /api/*=ApiHandler". they go before the static files and cgi scripts, see Router.
+	static String routes = System.getProperty("server.routes", "");
+
+	//the path Metrics are served on. "" turns them off, recording and all.
+	static String metricsPath = System.getProperty("server.metrics", "/_metrics");
+
+	//where the AccessLog goes, a line (or record) per request. "" turns it off, which is the default since the server's
+	//directory is the one it serves, and a log in it would be served too.
+	static String accessLog = System.getProperty("server.accessLog", "");
+
+	//"text" for the common log format plus latency, "binary" for fixed fields that are quicker to write and to load somewhere else.
+	static String accessLogFormat = System.getProperty("server.accessLog.format", "text");
+
+	//how many records can wait for the writer thread (rounded up to a power of two), and what a worker does when they are all taken:
+	//"drop" the record, or "block" until there is room.
+	static int accessLogBuffer = Integer.getInteger("server.accessLog.buffer", 8192);
+	static String accessLogWhenFull = System.getProperty("server.accessLog.whenFull", "drop");
+
+	//when the log is moved aside for a new one: at this many bytes, or after this many seconds. 0 turns either off.
+	//keep is how many old ones are kept around, 0 keeps them all.
+	static long accessLogMaxBytes = Long.getLong("server.accessLog.maxBytes", 64L << 20);
+	static long accessLogRotateEvery = Long.getLong("server.accessLog.rotateEvery", 24 * 60 * 60);
+	static int accessLogKeep = Integer.getInteger("server.accessLog.keep", 10);
+
+	//keep a DocIndex of everything under the server's directory, so serving a file doesnt stat it.
+	//it walks the whole tree at startup, which is why it is off unless asked for: started from the wrong directory, that could be the whole disk.
+	static boolean index = Boolean.getBoolean("server.index");
+
+	//where the index is saved when the server stops, and loaded from when it starts, so a big tree doesnt have to be walked
+	//before the first request. "" doesnt save it. somewhere outside the served directory, or it gets served too.
+	static String indexFile = System.getProperty("server.index.file", "");
+
+	//the most bytes of file contents FileCache will hold on to. 0 turns the cache off.
+	static long cacheMaxBytes = Long.getLong("server.cache.maxBytes", 64L << 20);
+
+	//files bigger than this are never cached, they get streamed from disk every time.
+	static long cacheMaxEntry = Long.getLong("server.cache.maxEntry", 1L << 20);
+
+	//how cached files are kept fresh. "watch" listens for changes to their directories, "mtime" checks the file on every hit.
+	static String cacheRevalidate = System.getProperty("server.cache.revalidate", "watch");
+
+	//the direct memory BufferPool sets aside for responses on their way out, split evenly between its sizes.
+	static long bufferPoolBytes = Long.getLong("server.bufferPool.bytes", 16L << 20);
+
+	//a pool buffer that has been out longer than this, in seconds, gets reported as a likely leak.
+	//with trackLeaks on, the report says where it was taken. that costs a stack trace per buffer, so it is for hunting one down.
+	static int bufferLeakSeconds = Integer.getInteger("server.bufferPool.leakSeconds", 60);
+	static boolean bufferTrackLeaks = Boolean.getBoolean("server.bufferPool.trackLeaks");
+
+	//how big a request can get. each is checked while the request is still coming in, and breaking one ends the connection.
+	//the request line (414 if longer), the header lines after it (431 if more bytes or more headers than this), and the body (413).
+	static int maxRequestLine = Integer.getInteger("server.limits.requestLine", 8192);
+	static int maxHeaderBytes = Integer.getInteger("server.limits.headerBytes", 16384);
+	static int maxHeaders = Integer.getInteger("server.limits.headers", 100);
+	static long maxBody = Long.getLong("server.limits.body", 16L << 20);
+
+	//bodies up to this size are read in along with the headers. bigger ones are left on the socket for the handler
+	//to read as a stream (see RequestBody), so they never have to fit in memory. so are chunked bodies that havent ended by then.
+	static int bufferedBody = Integer.getInteger("server.limits.bufferedBody", 64 * 1024);
+
+	//how long a client gets to send its request before it gets a 408, in millis. that is all of it, however it trickles in.
+	static int requestTimeout = Integer.getInteger("server.requestTimeout", 3000);
+
+	//how long a kept-alive connection can sit idle between requests before it is closed, in millis.
+	static int keepAliveTimeout = Integer.getInteger("server.keepAliveTimeout", 5000);
+
+	//the most requests one connection gets to make. the last one is answered with "Connection: close". 1 turns keep-alive off.
+	static int maxKeepAliveRequests = Integer.getInteger("server.maxKeepAliveRequests", 100);
+
+	//what goes in the Keep-Alive header, so clients know when to stop reusing a connection.
+	static String keepAliveHeader = "timeout=" + (keepAliveTimeout / 1000) + ", max=" + maxKeepAliveRequests;
+
+	//how long a stopping server waits for the requests it already has to be answered, in millis. see Lifecycle.
+	static long drainTimeout = Long.getLong("server.drainTimeout", 30000);
+
+	//a path that a POST from the server's own machine can stop the server on, the same way a SIGTERM does. "" (the default) is none.
+	static String drainPath = System.getProperty("server.admin.drain", "");
+
+	//how long a socket is left half open after the last response, so the client can read it all before the close, in millis.
+	//nobody waits for this, see Linger.
+	static int linger = Integer.getInteger("server.linger", 250);
+
+	//how long a cgi script gets to run before it is killed, in millis.
+	static long cgiTimeout = Long.getLong("server.cgi.timeout", 30000);
+
+	//which cgi scripts (by SCRIPT_NAME, comma separated, or "*" for all) are kept running in a CgiPool instead of started for every POST.
+	//empty means none, every POST starts its script fresh.
+	static String cgiPool = System.getProperty("server.cgi.pool", "");
+
+	//how many processes each pooled script keeps running at least, and at most.
+	static int cgiPoolMin = Integer.getInteger("server.cgi.pool.min", 1);
+	static int cgiPoolMax = Integer.getInteger("server.cgi.pool.max", 8);
+
+	//how long a pooled process can sit unused before it is stopped (if there are more than the minimum), in millis.
+	static long cgiPoolIdle = Long.getLong("server.cgi.pool.idle", 60000);
+
+	//how long a request waits for a pooled process to free up before the script is just run once instead, in millis.
+	static long cgiPoolWait = Long.getLong("server.cgi.pool.wait", 1000);
+
+	//whether text responses are gzipped (or deflated) for clients that ask for it, see Compression.
+	static boolean compression = !System.getProperty("server.compression", "true").equals("false");
+
+	//zlib's compression level, 1 (fastest) to 9 (smallest).
+	static int compressionLevel = Integer.getInteger("server.compression.level", 6);
+
+	//files smaller than this arent worth compressing, the headers would be most of it anyway.
+	static long compressionMinSize = Long.getLong("server.compression.minSize", 256);
+
+	//files bigger than this are sent as they are, unless there is a precompressed .gz next to them.
+	static long compressionMaxFile = Long.getLong("server.compression.maxFile", 4L << 20);
+
+	//the most compressed bytes Compression keeps, so each file is only compressed once.
+	static long compressionCacheBytes = Long.getLong("server.compression.cacheBytes", 16L << 20);
+
+	//whether plain HTTP connections can switch to HTTP/2 (h2c), by starting with its preface or asking with "Upgrade: h2c".
+	//see Http2Connection.
+	static boolean http2 = !System.getProperty("server.http2", "true").equals("false");
+
+	//how many streams a client can have going at once on an HTTP/2 connection.
+	static int http2MaxStreams = Integer.getInteger("server.http2.maxStreams", 100);
+
+	//how many of those are answered at once, the rest wait their turn on the connection.
+	//a connection doesnt get more of the workers than the handful of HTTP/1 connections a browser would open instead.
+	static int http2Concurrency = Integer.getInteger("server.http2.concurrency", 8);
+
+	//how much request body a client can send ahead on an HTTP/2 connection, on each stream and on all of them together, in bytes.
+	static int http2Window = Integer.getInteger("server.http2.window", 1 << 20);
+
+	//the most bytes of headers HPACK keeps for each direction of an HTTP/2 connection.
+	static int http2HeaderTable = Integer.getInteger("server.http2.headerTable", 4096);
+
+	//the port HTTPS is served on, next to the plain one. 0 means no HTTPS. see Tls.
+	static int tlsPort = Integer.getInteger("server.tls.port", 0);
+
+	//the keystore with the server's key and certificate in it (PKCS12, or JKS if the name ends in .jks), and its password.
+	static String tlsKeystore = System.getProperty("server.tls.keystore", "keystore.p12");
+	static String tlsPassword = System.getProperty("server.tls.password", "changeit");
+
+	//which versions of TLS are spoken, comma separated.
+	static String tlsProtocols = System.getProperty("server.tls.protocols", "TLSv1.3,TLSv1.2");
+
+	//the protocols offered over ALPN, best first.
+	static String tlsAlpn = System.getProperty("server.tls.alpn", "http/1.1");
+
+	//how many TLS sessions are kept so returning clients can resume them, and for how long, in seconds.
+	static int tlsSessionCache = Integer.getInteger("server.tls.sessionCache", 20000);
+	static int tlsSessionTimeout = Integer.getInteger("server.tls.sessionTimeout", 86400);
+
+	//whether session tickets are handed out, so resuming doesnt need the cache at all.
+	static boolean tlsTickets = !System.getProperty("server.tls.tickets", "true").equals("false");
+
+}
@@ -0,0 +1,158 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//one independent copy of the server's front end: a listening socket, the thread that accepts on it, and workers of its own.
+//with server.shards above 1, the classic and nio modes run that many of them, each on its own socket bound to the same port
+//with SO_REUSEPORT, so the kernel spreads new connections across them and no one acceptor has to keep up with all of them.
+//nothing a shard uses to accept or queue a connection is shared with the others: not the socket, not the worker pool,
+//not its counters. the workers, queue and selector threads configured are split evenly between the shards.
+//without SO_REUSEPORT (not Linux, mostly), the shards all accept on one socket, which still spreads the work after accept().
+//each one reports how many connections it took, how fast, and how long its queue is, on /_metrics.
+class Shard{
+
+	static final List<Shard> all = new CopyOnWriteArrayList<Shard>();
+
+	String name;
+	ServerSocketChannel listener;
+	ThreadPoolExecutor executor;
+	int selectors;
+
+	final AtomicLong accepted = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+
+	//the accept rate over the last whole second. only the acceptor thread writes these, except rate.
+	long windowStart = System.nanoTime();
+	long windowCount = 0;
+	volatile double rate = 0;
+	volatile long rateAt = 0;
+
+	//a shard with 1/of of the configured workers, queue and selector threads.
+	public Shard(String n, ServerSocketChannel ssc, int of){
+		name = n;
+		listener = ssc;
+		executor = AdmissionControl.newExecutor(share(ServerConfig.workerThreads, of), share(ServerConfig.queueDepth, of));
+		executor.setRejectedExecutionHandler((r, ex) -> {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException();
+		});
+		selectors = share(ServerConfig.selectorThreads, of);
+		all.add(this);
+	}
+
+	//n split of ways, rounded up so nothing ends up with none.
+	static int share(int n, int of){
+		return (n + of - 1) / of;
+	}
+
+	//opens the listening sockets for count shards on the port. they are all the same socket if SO_REUSEPORT isnt there,
+	//or if the socket was inherited (server.inheritSocket), since there is only the one.
+	static ServerSocketChannel [] listen(int port, int count) throws IOException{
+		ServerSocketChannel [] listeners = new ServerSocketChannel[count];
+		if(ServerConfig.inheritSocket){
+			Channel inherited = System.inheritedChannel();
+			if(!(inherited instanceof ServerSocketChannel)) throw new IOException("server.inheritSocket is on, but stdin isnt a listening socket");
+			java.util.Arrays.fill(listeners, (ServerSocketChannel) inherited);
+			return listeners;
+		}
+		listeners[0] = ServerSocketChannel.open();
+		boolean supported = listeners[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		boolean reusePort = (count > 1 || ServerConfig.reusePort) && supported;
+		if(count > 1 && !supported) System.out.println("SO_REUSEPORT isnt supported here, so the " + count + " shards share one listening socket.");
+		if(ServerConfig.reusePort && !supported) System.out.println("SO_REUSEPORT isnt supported here, so the next server cant start until this one has stopped.");
+
+		for(int i = 0; i < count; i++){
+			if(i > 0) listeners[i] = reusePort ? ServerSocketChannel.open() : listeners[0];
+			if(i > 0 && !reusePort) continue;
+			if(reusePort) listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			listeners[i].bind(new InetSocketAddress(port));
+		}
+		return listeners;
+	}
+
+	//starts a shard on each listener, the first one on this thread, which it never returns from.
+	//in nio mode the first shard takes the HTTPS port too, if there is one.
+	static void runAll(ServerSocketChannel [] listeners, ServerSocketChannel tls, boolean nio) throws IOException{
+		Shard [] shards = new Shard[listeners.length];
+		for(int i = 0; i < shards.length; i++) shards[i] = new Shard("" + i, listeners[i], shards.length);
+
+		for(int i = 1; i < shards.length; i++){
+			Shard shard = shards[i];
+			Thread t = new Thread(() -> {
+				try{
+					if(nio) new NioServer(shard.listener, null, shard).run();
+					else shard.run();
+				}
+				catch(IOException ioe){
+					System.out.println("Shard " + shard.name + " stopped: " + ioe);
+				}
+			}, "shard-" + i);
+			t.start();
+		}
+
+		if(nio) new NioServer(shards[0].listener, tls, shards[0]).run();
+		else shards[0].run();
+	}
+
+	//the classic mode's accept loop. get a client, send it to a handler and keep listening.
+	//if the queue is full, the client gets a 503 right away. returns once Lifecycle closes the socket.
+	public void run() throws IOException{
+		ServerSocket ss = listener.socket();
+		Socket client = null;
+		while((client = accept(ss)) != null){
+			counted();
+
+			HandlerThread handler;
+			try{
+				handler = new HandlerThread(client);
+			}
+			catch(IOException ioe){
+				client.close(); //gone before it could be set up
+				continue;
+			}
+			handler.queuedAt = System.nanoTime();
+			try{
+				executor.execute(handler);
+			}
+			catch(RejectedExecutionException ree){
+				AdmissionControl.shed(client);
+			}
+		}
+	}
+
+	//the next connection, or null once the server is draining and the socket has been closed under accept().
+	static Socket accept(ServerSocket ss) throws IOException{
+		try{
+			return ss.accept();
+		}
+		catch(IOException ioe){
+			if(Lifecycle.draining) return null;
+			throw ioe;
+		}
+	}
+
+	//counts a connection this shard accepted. called on its acceptor thread only.
+	void counted(){
+		accepted.incrementAndGet();
+		windowCount++;
+		long now = System.nanoTime();
+		if(now - windowStart >= 1000000000L){
+			rate = windowCount * 1e9 / (now - windowStart);
+			rateAt = now;
+			windowStart = now;
+			windowCount = 0;
+		}
+	}
+
+	//connections per second over the last second that had any. 0 once nothing has come in for a couple of seconds.
+	double acceptRate(){
+		if(System.nanoTime() - rateAt > 2000000000L) return 0;
+		return rate;
+	}
+}
@@ -0,0 +1,122 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+
+
+//HTTPS. a second port (server.tls.port) that speaks TLS, next to the plain one, whatever mode that one is in.
+//it is always served by an NioServer, with an SSLEngine per connection (see TlsChannel), so a handshake never holds a thread.
+//the key and certificate come from a local keystore (server.tls.keystore, PKCS12 or JKS).
+//reconnecting clients skip most of the handshake: the server keeps a session cache for TLS 1.2 session ids,
+//and hands out session tickets (stateless on this side) for TLS 1.2 and 1.3.
+//ALPN is answered from server.tls.alpn, in the server's order of preference.
+class Tls{
+
+	static SSLContext context;
+	static String [] protocols;
+	static List<String> alpn = List.of(ServerConfig.tlsAlpn.split(","));
+
+	//handshakes that finished, split by whether they picked up an earlier session, and ones that failed.
+	static final AtomicLong full = new AtomicLong();
+	static final AtomicLong resumed = new AtomicLong();
+	static final AtomicLong failed = new AtomicLong();
+
+	//opens the TLS port, or returns null if there isnt one. throws if the keystore cant be loaded or the port cant be bound.
+	static ServerSocketChannel open() throws IOException, GeneralSecurityException{
+		if(ServerConfig.tlsPort <= 0) return null;
+		init();
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		if(ServerConfig.reusePort && ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true); //see Lifecycle
+		ssc.bind(new InetSocketAddress(ServerConfig.tlsPort));
+		return ssc;
+	}
+
+	//loads the keystore and sets up the context every connection's engine comes from.
+	static void init() throws IOException, GeneralSecurityException{
+		//the JDK decides about tickets when it first loads, so this has to be set before anything touches it
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", "" + ServerConfig.tlsTickets);
+
+		char [] password = ServerConfig.tlsPassword.toCharArray();
+		KeyStore ks = KeyStore.getInstance(ServerConfig.tlsKeystore.endsWith(".jks") ? "JKS" : "PKCS12");
+		try(InputStream in = new FileInputStream(ServerConfig.tlsKeystore)){
+			ks.load(in, password);
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, password);
+
+		context = SSLContext.getInstance("TLS");
+		context.init(new KeyManager[]{new CountingKeyManager((X509ExtendedKeyManager) kmf.getKeyManagers()[0])}, null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(ServerConfig.tlsSessionCache);
+		sessions.setSessionTimeout(ServerConfig.tlsSessionTimeout);
+		protocols = ServerConfig.tlsProtocols.split(",");
+	}
+
+	static SSLEngine newEngine(){
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setEnabledProtocols(protocols);
+		engine.setHandshakeApplicationProtocolSelector((e, offered) -> selectProtocol(offered));
+		return engine;
+	}
+
+	//engines whose handshake asked for the certificate, which a resumed handshake never does. TlsChannel.finished counts them.
+	static final Set<SSLEngine> needsCertificate = ConcurrentHashMap.newKeySet();
+
+	static class CountingKeyManager extends X509ExtendedKeyManager{
+
+		X509ExtendedKeyManager keys;
+
+		CountingKeyManager(X509ExtendedKeyManager km){
+			keys = km;
+		}
+
+		public String chooseEngineServerAlias(String keyType, Principal [] issuers, SSLEngine engine){
+			needsCertificate.add(engine);
+			return keys.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+
+		public String [] getServerAliases(String keyType, Principal [] issuers){
+			return keys.getServerAliases(keyType, issuers);
+		}
+
+		public String chooseServerAlias(String keyType, Principal [] issuers, java.net.Socket socket){
+			return keys.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		public String [] getClientAliases(String keyType, Principal [] issuers){
+			return keys.getClientAliases(keyType, issuers);
+		}
+
+		public String chooseClientAlias(String [] keyType, Principal [] issuers, java.net.Socket socket){
+			return keys.chooseClientAlias(keyType, issuers, socket);
+		}
+
+		public X509Certificate [] getCertificateChain(String alias){
+			return keys.getCertificateChain(alias);
+		}
+
+		public PrivateKey getPrivateKey(String alias){
+			return keys.getPrivateKey(alias);
+		}
+	}
+
+	//the first of ours the client also speaks. null leaves ALPN out of the handshake, and the client gets HTTP/1.1 like always.
+	static String selectProtocol(List<String> offered){
+		for(String p : alpn){
+			if(offered.contains(p)) return p;
+		}
+		return null;
+	}
+}
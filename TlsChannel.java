@@ -0,0 +1,192 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.*;
+
+
+
+//one TLS connection over a non-blocking SocketChannel, as a ByteChannel that reads and writes the plain bytes.
+//read() and write() never block. like a socket, they return 0 when they cant make progress right now,
+//which during the handshake can be a read waiting on a write or the other way around. wantsWrite() says when the socket has to be writable.
+//anything the engine decrypted that didnt fit in the caller's buffer is held on to, see buffered().
+//the engine's delegated tasks (the expensive key exchange parts) are run right here, on the selector thread.
+class TlsChannel implements ByteChannel{
+
+	static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	SocketChannel channel;
+	SSLEngine engine;
+	ByteBuffer netIn; //bytes off the socket that havent been decrypted yet (write mode)
+	ByteBuffer appIn; //decrypted bytes nobody read yet (write mode)
+	ByteBuffer netOut; //encrypted bytes that havent gone out yet (read mode)
+	boolean underflow = true; //netIn doesnt have a whole record in it
+	boolean eof = false;
+	long handshakeStart = 0;
+	boolean established = false;
+
+	public TlsChannel(SocketChannel sc, SSLEngine e){
+		channel = sc;
+		engine = e;
+		SSLSession session = e.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut.flip();
+	}
+
+	public int read(ByteBuffer dst) throws IOException{
+		if(appIn.position() == 0){
+			unwrap();
+			if(appIn.position() == 0 && underflow && !eof){
+				int n = channel.read(netIn);
+				if(n == -1) eof = true;
+				else if(n > 0){
+					if(handshakeStart == 0) handshakeStart = System.nanoTime();
+					underflow = false;
+					unwrap();
+				}
+			}
+		}
+		if(appIn.position() == 0) return eof ? -1 : 0;
+
+		appIn.flip();
+		int n = Math.min(dst.remaining(), appIn.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		return n;
+	}
+
+	//decrypts whatever whole records netIn has, into appIn, doing any handshaking that comes up along the way.
+	void unwrap() throws IOException{
+		while(!underflow && !eof){
+			netIn.flip();
+			SSLEngineResult r = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			switch(r.getStatus()){
+				case BUFFER_UNDERFLOW:
+					underflow = true;
+					if(!netIn.hasRemaining()) netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+					break;
+				case BUFFER_OVERFLOW:
+					//appIn is full. whatever is left waits for the caller to read some of it
+					if(appIn.position() > 0) return;
+					appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+					continue;
+				case CLOSED:
+					eof = true; //close_notify. the engine wants to send its own back, handshake() does that
+					break;
+				default:
+					break;
+			}
+			if(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) finished();
+			handshake();
+			if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) return; //stuck until the socket takes what is in netOut
+			if(r.bytesConsumed() == 0 && r.bytesProduced() == 0 && r.getStatus() == SSLEngineResult.Status.OK) return;
+		}
+	}
+
+	//runs delegated tasks and sends handshake messages, as far as it can go without reading.
+	void handshake() throws IOException{
+		while(true){
+			SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+			if(hs == SSLEngineResult.HandshakeStatus.NEED_TASK){
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null) task.run();
+			}
+			else if(hs == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+				if(!flush()) return;
+				netOut.clear();
+				SSLEngineResult r = engine.wrap(EMPTY, netOut);
+				netOut.flip();
+				if(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) finished();
+				if(r.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) return;
+			}
+			else return;
+		}
+	}
+
+	//the handshake is done. it was a full one if it needed the certificate, otherwise it resumed an earlier session.
+	void finished(){
+		if(handshakeStart == 0) return; //a later one, like a TLS 1.3 key update. only the first counts
+		established = true;
+		Metrics.lap(Metrics.HANDSHAKE, handshakeStart);
+		if(Tls.needsCertificate.remove(engine)) Tls.full.incrementAndGet();
+		else Tls.resumed.incrementAndGet();
+		handshakeStart = 0;
+	}
+
+	public int write(ByteBuffer src) throws IOException{
+		int consumed = 0;
+		while(src.hasRemaining() && flush()){
+			netOut.clear();
+			SSLEngineResult r = engine.wrap(src, netOut);
+			netOut.flip();
+			if(r.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("the connection is closed");
+			if(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) finished();
+			consumed += r.bytesConsumed();
+			handshake();
+			if(r.bytesConsumed() == 0 && r.bytesProduced() == 0) break;
+		}
+		flush();
+		return consumed;
+	}
+
+	//writes out what is in netOut. true if it all went.
+	boolean flush() throws IOException{
+		while(netOut.hasRemaining()){
+			if(channel.write(netOut) == 0) return false;
+		}
+		return true;
+	}
+
+	//flushes, and carries on with the handshake if it was waiting on that. true if nothing is left to send.
+	boolean flushOut() throws IOException{
+		if(!flush()) return false;
+		handshake();
+		return !netOut.hasRemaining();
+	}
+
+	//true if the socket has to be writable before this can go on.
+	boolean wantsWrite(){
+		return netOut.hasRemaining() || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+	}
+
+	//true if read() has something without the socket being readable again. the selector wont say so.
+	boolean buffered(){
+		return appIn.position() > 0 || (!underflow && !eof && netIn.position() > 0);
+	}
+
+	public boolean isOpen(){
+		return channel.isOpen();
+	}
+
+	//sends close_notify if the socket takes it right away, and closes the socket either way.
+	public void close() throws IOException{
+		if(!established){
+			Tls.failed.incrementAndGet();
+			Tls.needsCertificate.remove(engine);
+		}
+		try{
+			engine.closeOutbound();
+			handshake();
+			flush();
+		}
+		catch(IOException ioe){
+			//its going away regardless
+		}
+		finally{
+			channel.close();
+		}
+	}
+
+	static ByteBuffer grow(ByteBuffer b, int atLeast){
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(atLeast, b.capacity() * 2));
+		b.flip();
+		bigger.put(b);
+		return bigger;
+	}
+}
@@ -0,0 +1,91 @@
+import java.net.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+
+
+//the "virtual" mode. every connection gets its own virtual thread instead of a spot in the 50 thread pool,
+//so thousands of clients that are mostly just sitting there dont each need a real thread.
+//how many can be handled at once is capped by server.maxConnections instead of the pool size.
+//virtual threads only exist on java 21 and up. on anything older this falls back to a plain thread per connection,
+//which still works, it just doesnt scale the same way.
+class VirtualThreadServer{
+
+	ServerSocket ss;
+	ExecutorService executor;
+	Semaphore permits;
+
+	public VirtualThreadServer(ServerSocket s){
+		ss = s;
+		executor = newExecutor();
+		permits = new Semaphore(ServerConfig.maxConnections);
+	}
+
+	//Executors.newVirtualThreadPerTaskExecutor if this jvm has it, otherwise a cached pool.
+	//looked up by reflection so the server still compiles and runs on older jdks.
+	static ExecutorService newExecutor(){
+		try{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}
+		catch(ReflectiveOperationException roe){
+			System.out.println("This JVM has no virtual threads (needs Java 21+). Using a platform thread per connection instead.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	//same loop as the classic mode, the only difference is what decides on a 503.
+	public void run() throws IOException{
+
+		BlockingMonitor.watchPinning();
+		startReporter();
+
+		Socket client = null;
+		while((client = Shard.accept(ss)) != null){
+
+			if(!permits.tryAcquire()){
+				AdmissionControl.shed(client);
+				continue;
+			}
+
+			HandlerThread handler;
+			try{
+				handler = new HandlerThread(client);
+			}
+			catch(IOException ioe){
+				permits.release();
+				client.close();
+				continue;
+			}
+
+			executor.execute(() -> {
+				try{
+					handler.run();
+				}
+				finally{
+					permits.release();
+				}
+			});
+		}
+	}
+
+	//prints what BlockingMonitor has seen every so often, so blocking and pinning show up while the server runs.
+	void startReporter(){
+		if(ServerConfig.blockingReport <= 0) return;
+		Thread t = new Thread(() -> {
+			while(true){
+				try{
+					Thread.sleep(ServerConfig.blockingReport * 1000L);
+				}
+				catch(InterruptedException ie){
+					return;
+				}
+				int busy = ServerConfig.maxConnections - permits.availablePermits();
+				System.out.print("connections: " + busy + "/" + ServerConfig.maxConnections + '\n' + BlockingMonitor.report() + AdmissionControl.stats());
+			}
+		}, "blocking-report");
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -0,0 +1,118 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+
+
+//how much the AccessLog costs a request: GETs of a small file with no log, a text log and a binary log,
+//and the latency percentiles of each, next to the ones with no log.
+//the file is written to bench-log/index.html under the current directory, since that is where the server looks for it,
+//and the logs go to a temp directory. both are removed afterwards.
+//usage: java -cp bench/target/benchmarks.jar AccessLogBench [clients] [seconds]
+public class AccessLogBench{
+
+	public static void main(String[] args) throws Exception{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Path dir = Paths.get("bench-log");
+		Path page = dir.resolve("index.html");
+		Files.createDirectories(dir);
+		Files.write(page, "<html><body>hello, access log</body></html>\n".getBytes(StandardCharsets.ISO_8859_1));
+		Path logs = Files.createTempDirectory("access-log-bench");
+
+		try{
+			ServerConfig.maxKeepAliveRequests = Integer.MAX_VALUE; //the clients never reconnect
+			double baseline = 0;
+			for(String format : new String[]{"off", "text", "binary"}){
+				AccessLog log = null;
+				if(!format.equals("off")){
+					log = new AccessLog(logs.resolve(format + ".log"), format, ServerConfig.accessLogBuffer, "drop", 0, 0, 0);
+				}
+				AccessLog.shared = log;
+				Histogram latency = measure(clients, seconds);
+				AccessLog.shared = null;
+
+				long [] counts = latency.snapshot();
+				double p50 = Histogram.quantile(counts, 0.5) / 1000.0;
+				double p99 = Histogram.quantile(counts, 0.99) / 1000.0;
+				double p999 = Histogram.quantile(counts, 0.999) / 1000.0;
+				if(format.equals("off")) baseline = p99;
+				System.out.printf("%-6s clients=%d p50_us=%.1f p99_us=%.1f p999_us=%.1f p99_change=%+.1f%%", format, clients, p50, p99, p999, (p99 - baseline) / baseline * 100);
+				if(log != null){
+					log.close();
+					System.out.printf(" logged=%d dropped=%d", log.written.get(), log.dropped.get());
+				}
+				System.out.println();
+			}
+		}
+		finally{
+			Files.deleteIfExists(page);
+			Files.deleteIfExists(dir);
+			try(DirectoryStream<Path> files = Files.newDirectoryStream(logs)){
+				for(Path p : files) Files.delete(p);
+			}
+			Files.delete(logs);
+		}
+		System.exit(0);
+	}
+
+	static Histogram measure(int clients, int seconds) throws Exception{
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ServerSocket ss = ssc.socket();
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		Thread acceptor = new Thread(() -> {
+			try{
+				while(true) executor.execute(new HandlerThread(ss.accept()));
+			}
+			catch(IOException ioe){
+				return;
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		byte [] request = "GET /bench-log/index.html HTTP/1.1\r\nHost: bench\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+		//a second for the jit, then the real run
+		run(ss.getLocalPort(), request, clients, 1, new Histogram());
+		Histogram latency = new Histogram();
+		run(ss.getLocalPort(), request, clients, seconds, latency);
+
+		ss.close();
+		executor.shutdownNow();
+		return latency;
+	}
+
+	//each client sends requests back to back over one kept-alive connection for the given time, timing each one.
+	static void run(int port, byte [] request, int clients, int seconds, Histogram latency) throws Exception{
+		long end = System.nanoTime() + seconds * 1000000000L;
+		Thread [] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++){
+			threads[i] = new Thread(() -> {
+				try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+					s.setTcpNoDelay(true);
+					OutputStream os = s.getOutputStream();
+					InputStream is = new BufferedInputStream(s.getInputStream());
+					while(true){
+						long start = System.nanoTime();
+						if(start >= end) break;
+						os.write(request);
+						CgiPoolBench.readResponse(is);
+						latency.record(System.nanoTime() - start);
+					}
+				}
+				catch(IOException ioe){
+					System.out.println("client failed: " + ioe);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+	}
+}
@@ -0,0 +1,139 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+//compares POST .cgi throughput with the script started for every request ("oneshot") and kept running in a CgiPool ("pooled").
+//the script is a small python3 program that speaks both ways, so the only difference is the fork and exec (and interpreter startup).
+//it is written to bench-cgi/echo.cgi under the current directory, since that is where the server looks for it, and removed afterwards.
+//usage: java -cp bench/target/benchmarks.jar CgiPoolBench [clients] [seconds]
+//prints requests per second for each mode.
+public class CgiPoolBench{
+
+	static final String SCRIPT =
+		"#!/usr/bin/env python3\n" +
+		"import os, sys\n" +
+		"def answer(body):\n" +
+		"    return b'got: ' + body\n" +
+		"if os.environ.get('CGI_POOLED') != '1':\n" +
+		"    sys.stdout.buffer.write(answer(sys.stdin.buffer.read(int(os.environ['CONTENT_LENGTH']))))\n" +
+		"    sys.exit(0)\n" +
+		"inp, out = sys.stdin.buffer, sys.stdout.buffer\n" +
+		"while True:\n" +
+		"    line = inp.readline()\n" +
+		"    if not line: break\n" +
+		"    _, count, length = line.split()\n" +
+		"    for i in range(int(count)): inp.readline()\n" +
+		"    result = answer(inp.read(int(length)))\n" +
+		"    out.write(b'%d\\n' % len(result) + result)\n" +
+		"    out.flush()\n";
+
+	public static void main(String[] args) throws Exception{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Path dir = Paths.get("bench-cgi");
+		Path script = dir.resolve("echo.cgi");
+		Files.createDirectories(dir);
+		Files.write(script, SCRIPT.getBytes(StandardCharsets.ISO_8859_1));
+		script.toFile().setExecutable(true);
+
+		try{
+			ServerConfig.maxKeepAliveRequests = Integer.MAX_VALUE; //the clients never reconnect
+			ServerConfig.cgiPoolMin = clients;
+			ServerConfig.cgiPoolMax = clients;
+			for(String mode : new String[]{"oneshot", "pooled"}){
+				ServerConfig.cgiPool = mode.equals("pooled") ? "/bench-cgi/echo.cgi" : "";
+				double rate = measure(clients, seconds);
+				System.out.printf("%-8s clients=%d requests_per_sec=%.1f%n", mode, clients, rate);
+			}
+		}
+		finally{
+			Files.deleteIfExists(script);
+			Files.deleteIfExists(dir);
+		}
+		System.exit(0);
+	}
+
+	static double measure(int clients, int seconds) throws Exception{
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ServerSocket ss = ssc.socket();
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		Thread acceptor = new Thread(() -> {
+			try{
+				while(true) executor.execute(new HandlerThread(ss.accept()));
+			}
+			catch(IOException ioe){
+				return;
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		byte [] request = ("POST /bench-cgi/echo.cgi HTTP/1.1\r\nHost: bench\r\nContent-Type: application/x-www-form-urlencoded\r\n" +
+			"Content-Length: 11\r\n\r\nhello%20cgi").getBytes(StandardCharsets.ISO_8859_1);
+
+		//one round first so the pool is up and the jit has seen the code, then the real run
+		run(ss.getLocalPort(), request, clients, 1);
+		double rate = run(ss.getLocalPort(), request, clients, seconds);
+
+		ss.close();
+		executor.shutdownNow();
+		return rate;
+	}
+
+	//each client sends requests back to back over one kept-alive connection for the given time.
+	static double run(int port, byte [] request, int clients, int seconds) throws Exception{
+		AtomicLong done = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1000000000L;
+		Thread [] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++){
+			threads[i] = new Thread(() -> {
+				try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+					s.setTcpNoDelay(true);
+					OutputStream os = s.getOutputStream();
+					InputStream is = new BufferedInputStream(s.getInputStream());
+					while(System.nanoTime() < end){
+						os.write(request);
+						readResponse(is);
+						done.incrementAndGet();
+					}
+				}
+				catch(IOException ioe){
+					System.out.println("client failed: " + ioe);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		return done.get() / (double) seconds;
+	}
+
+	//reads the headers, then Content-Length bytes of body.
+	static void readResponse(InputStream is) throws IOException{
+		int length = 0;
+		StringBuilder line = new StringBuilder();
+		while(true){
+			int c = is.read();
+			if(c == -1) throw new EOFException();
+			if(c != '\n'){
+				if(c != '\r') line.append((char) c);
+				continue;
+			}
+			if(line.length() == 0) break;
+			String l = line.toString();
+			if(l.regionMatches(true, 0, "Content-Length:", 0, 15)) length = Integer.parseInt(l.substring(15).trim());
+			line.setLength(0);
+		}
+		for(int i = 0; i < length; i++){
+			if(is.read() == -1) throw new EOFException();
+		}
+	}
+}
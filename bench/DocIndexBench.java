@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+
+//how long a DocIndex takes to be ready for a big tree, walked from scratch and loaded from a saved index,
+//and what a lookup costs next to the stats serveFile made before there was an index.
+//the tree is made in a temp directory, [files] empty files in directories of 1000, and removed afterwards.
+//the first run makes the tree, so it is slow. pass a directory as [tree] to keep it and reuse it.
+//usage: java -cp bench/target/benchmarks.jar DocIndexBench [files] [tree]
+//for lookups on their own, without a tree on disk, see micro.DocIndexBench.
+public class DocIndexBench{
+
+	public static void main(String[] args) throws Exception{
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		boolean keep = args.length > 1;
+		Path tree = keep ? Paths.get(args[1]) : Files.createTempDirectory("doc-index-tree");
+		Path saved = Files.createTempFile("doc-index", ".bin");
+
+		try{
+			long start = System.nanoTime();
+			int made = makeTree(tree, files);
+			if(made > 0) System.out.printf("made %d files in %.1f s%n", made, (System.nanoTime() - start) / 1e9);
+
+			//from scratch: walking and stat'ing everything, and watching every directory
+			start = System.nanoTime();
+			DocIndex walked = new DocIndex(tree);
+			walked.open(null);
+			double walk = (System.nanoTime() - start) / 1e6;
+			System.out.printf("walk   entries=%d ready_ms=%.0f%n", walked.size(), walk);
+			lookups(walked, tree, files);
+			walked.watcher.close();
+
+			walked.save(saved);
+			System.out.printf("saved  bytes=%d%n", Files.size(saved));
+
+			//from the saved index: ready once it is mapped in, the walk that checks it happens after, in the background
+			start = System.nanoTime();
+			DocIndex loaded = new DocIndex(tree);
+			loaded.open(saved);
+			double load = (System.nanoTime() - start) / 1e6;
+			System.out.printf("load   entries=%d ready_ms=%.0f speedup=%.1fx%n", loaded.size(), load, walk / load);
+			loaded.watcher.close();
+		}
+		finally{
+			Files.deleteIfExists(saved);
+			if(!keep) delete(tree);
+		}
+		System.exit(0);
+	}
+
+	//ns per lookup of a random file, from the index and from the disk the way serveFile used to (exists, isDirectory, lastModified, length).
+	static void lookups(DocIndex index, Path tree, int files){
+		int n = 1 << 16;
+		String [] paths = new String[n];
+		for(int i = 0; i < n; i++) paths[i] = path(ThreadLocalRandom.current().nextInt(files));
+
+		long found = 0;
+		for(int round = 0; round < 5; round++){ //the first rounds are for the jit
+			long start = System.nanoTime();
+			for(int i = 0; i < 20 * n; i++) if(index.get(paths[i & (n - 1)]) != null) found++;
+			double indexed = (System.nanoTime() - start) / (20.0 * n);
+
+			start = System.nanoTime();
+			for(int i = 0; i < n; i++){
+				File f = new File(tree.toFile(), paths[i].substring(1));
+				if(f.exists() && !f.isDirectory() && f.lastModified() + f.length() != 0) found++;
+			}
+			double stats = (System.nanoTime() - start) / (double) n;
+			if(round == 4) System.out.printf("lookup index_ns=%.0f stat_ns=%.0f%n", indexed, stats);
+		}
+		if(found == 0) System.out.println("nothing found, the tree is wrong");
+	}
+
+	static String path(int i){
+		return "/d" + (i / 1000) + "/f" + i + ".html";
+	}
+
+	//makes whatever files arent there yet. returns how many it made.
+	static int makeTree(Path tree, int files) throws IOException{
+		int made = 0;
+		for(int i = 0; i < files; i++){
+			Path f = tree.resolve(path(i).substring(1));
+			if(i % 1000 == 0) Files.createDirectories(f.getParent());
+			if(Files.exists(f)) continue;
+			Files.createFile(f);
+			made++;
+		}
+		return made;
+	}
+
+	static void delete(Path tree) throws IOException{
+		Files.walkFileTree(tree, new SimpleFileVisitor<Path>(){
+			public FileVisitResult visitFile(Path f, BasicFileAttributes a) throws IOException{
+				Files.delete(f);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult postVisitDirectory(Path d, IOException ioe) throws IOException{
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
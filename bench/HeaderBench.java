@@ -0,0 +1,86 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+
+
+//compares rendering a static file's status line and headers the old way and the new way.
+//"old" is the addHeaders + getFormattedTime HandlerThread used to have: a new SimpleDateFormat and Calendar per date, and String concatenation.
+//"new" is ResponseHeaders with HttpDate, into a buffer that is reused.
+//usage: java -cp bench/target/benchmarks.jar HeaderBench [iterations]
+//prints ns/op and bytes allocated per op (from the thread's allocation counter) for each.
+public class HeaderBench{
+
+	static volatile int sink;
+
+	public static void main(String[] args) throws Exception{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		File file = File.createTempFile("headerbench", ".html");
+		file.deleteOnExit();
+		try(FileWriter fw = new FileWriter(file)){
+			fw.write("<html>hello</html>");
+		}
+
+		ResponseHeaders headers = new ResponseHeaders();
+
+		//warm up both, then measure
+		for(int round = 0; round < 2; round++){
+			boolean print = round == 1;
+			run("old", iterations, print, () -> {
+				String s = "HTTP/1.0 200 OK" + '\r' + '\n' + oldAddHeaders(file) + "\r\n";
+				sink += s.length();
+			});
+			run("new", iterations, print, () -> {
+				headers.reset().status("HTTP/1.0 200 OK");
+				HandlerThread.fileHeaders(headers, file).dates().end();
+				sink += headers.len;
+			});
+		}
+	}
+
+	static void run(String name, int iterations, boolean print, Runnable op){
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+
+		long allocBefore = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) op.run();
+		long took = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(id) - allocBefore;
+
+		if(print) System.out.printf("%-4s ns_per_op=%.1f bytes_per_op=%.1f%n", name, (double) took / iterations, (double) allocated / iterations);
+	}
+
+	//HandlerThread.getFormattedTime as it was.
+	static String oldFormattedTime(long millis){
+		DateFormat formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		return formatter.format(calendar.getTime());
+	}
+
+	//HandlerThread.addHeaders(File) as it was.
+	static String oldAddHeaders(File fileToRead){
+		String name = fileToRead.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1);
+		String typeLine = "Content-Type: ";
+		String mime;
+		if(extension.equals("txt") || extension.equals("html")) mime = "text";
+		else if(extension.equals("png") || extension.equals("jpeg") || extension.equals("gif")) mime = "image";
+		else if(extension.equals("pdf") || extension.equals("x-gzip") || extension.equals("zip") || extension.equals("octet-stream")) mime = "application";
+		else{
+			mime = "application";
+			extension = "octet-stream";
+		}
+		typeLine += mime + "/" + extension  + '\r' + '\n';
+		String lengthLine = "Content-Length: "+fileToRead.length() + '\r' + '\n';
+		String modifiedLine = "Last-Modified: " + oldFormattedTime(fileToRead.lastModified())  + '\r' + '\n';
+		String encodingLine = "Content-Encoding: identity"  + '\r' + '\n';
+		String allowLine = "Allow: GET, POST, HEAD"  + '\r' + '\n';
+		String expireLine = "Expires: " + oldFormattedTime(System.currentTimeMillis() + 525600) + '\r' + '\n';
+		return typeLine + lengthLine + modifiedLine + encodingLine + allowLine + expireLine;
+	}
+}
@@ -0,0 +1,171 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+//how long a page of many small files takes to load: over HTTP/1.0 a connection per file, one at a time ("http1.0")
+//and [parallel] at a time like a browser would ("http1.0-par"), and over one h2c connection with every file on a stream of its own ("h2c").
+//the client speaks just enough HTTP/2 for this: the preface, a big window, a HEADERS per file, and counting END_STREAMs.
+//the files are written to bench-h2/ under the current directory, since that is where the server looks for them, and removed afterwards.
+//usage: java -cp bench/target/benchmarks.jar Http2Bench [files] [fileBytes] [pages] [parallel]
+//prints the page load percentiles for each, and how much faster h2c is at the median.
+public class Http2Bench{
+
+	public static void main(String[] args) throws Exception{
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		int pages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int parallel = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+
+		Path dir = Paths.get("bench-h2");
+		Files.createDirectories(dir);
+		String [] paths = new String[files];
+		byte [] content = new byte[fileBytes];
+		Arrays.fill(content, (byte) 'x');
+		for(int i = 0; i < files; i++){
+			paths[i] = "/bench-h2/f" + i + ".css";
+			Files.write(dir.resolve("f" + i + ".css"), content);
+		}
+
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		ServerSocket ss = ssc.socket();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		Thread acceptor = new Thread(() -> {
+			try{
+				while(true) executor.execute(new HandlerThread(ss.accept()));
+			}
+			catch(IOException ioe){
+				return;
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		int port = ss.getLocalPort();
+		ExecutorService clients = Executors.newFixedThreadPool(parallel);
+
+		try{
+			double h1 = 0;
+			for(String how : new String[]{"http1.0", "http1.0-par", "h2c"}){
+				Histogram loads = new Histogram();
+				for(int round = 0; round < 2; round++){ //the first round, a quarter as long, is for the jit
+					Histogram h = round == 0 ? new Histogram() : loads;
+					for(int page = 0; page < (round == 0 ? pages / 4 : pages); page++){
+						long start = System.nanoTime();
+						long bytes;
+						if(how.equals("h2c")) bytes = h2c(port, paths);
+						else if(how.equals("http1.0")) bytes = http10(port, paths, 0, 1);
+						else bytes = http10Parallel(port, paths, parallel, clients);
+						h.record(System.nanoTime() - start);
+						if(bytes != (long) files * fileBytes) throw new IllegalStateException(how + " got " + bytes + " bytes of body");
+					}
+				}
+				long [] counts = loads.snapshot();
+				double p50 = Histogram.quantile(counts, 0.5) / 1e6;
+				double p99 = Histogram.quantile(counts, 0.99) / 1e6;
+				if(how.equals("http1.0")) h1 = p50;
+				System.out.printf("%-12s files=%d bytes=%d p50_ms=%.2f p99_ms=%.2f speedup=%.1fx%n", how, files, fileBytes, p50, p99, h1 / p50);
+			}
+		}
+		finally{
+			ss.close();
+			executor.shutdownNow();
+			clients.shutdownNow();
+			for(int i = 0; i < files; i++) Files.deleteIfExists(dir.resolve("f" + i + ".css"));
+			Files.deleteIfExists(dir);
+		}
+		System.exit(0);
+	}
+
+	//paths from, from + step, ... each on a connection of its own, one after the other. returns the body bytes read.
+	static long http10(int port, String [] paths, int from, int step) throws IOException{
+		long bytes = 0;
+		for(int i = from; i < paths.length; i += step){
+			try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+				s.setTcpNoDelay(true);
+				s.getOutputStream().write(("GET " + paths[i] + " HTTP/1.0\r\n\r\n").getBytes("ISO-8859-1"));
+				InputStream is = new BufferedInputStream(s.getInputStream());
+				bytes += bodyTillClose(is);
+			}
+		}
+		return bytes;
+	}
+
+	static long http10Parallel(int port, String [] paths, int parallel, ExecutorService clients) throws Exception{
+		List<Future<Long>> parts = new ArrayList<>();
+		for(int p = 0; p < parallel; p++){
+			int from = p;
+			parts.add(clients.submit(() -> http10(port, paths, from, parallel)));
+		}
+		long bytes = 0;
+		for(Future<Long> f : parts) bytes += f.get();
+		return bytes;
+	}
+
+	//what comes after the headers, up to the close.
+	static long bodyTillClose(InputStream is) throws IOException{
+		int matched = 0;
+		int c;
+		while(matched < 4 && (c = is.read()) != -1) matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : (c == '\r' ? 1 : 0);
+		long n = 0;
+		while(is.read() != -1) n++;
+		return n;
+	}
+
+	//all the paths at once, on one connection. returns the body bytes read.
+	static long h2c(int port, String [] paths) throws IOException{
+		try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+			s.setTcpNoDelay(true);
+			OutputStream os = new BufferedOutputStream(s.getOutputStream(), 1 << 16);
+			DataInputStream is = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+
+			os.write(Http2Connection.PREFACE);
+			byte [] settings = {0, Http2Connection.INITIAL_WINDOW_SIZE, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+			frame(os, Http2Connection.SETTINGS, 0, 0, settings);
+			frame(os, Http2Connection.WINDOW_UPDATE, 0, 0, new byte[]{0x7f, (byte) 0xff, 0, 0});
+
+			Hpack.Encoder encoder = new Hpack.Encoder(4096);
+			for(int i = 0; i < paths.length; i++){
+				ByteArrayOutputStream block = new ByteArrayOutputStream();
+				encoder.start(block);
+				encoder.header(block, ":method", "GET");
+				encoder.header(block, ":scheme", "http");
+				encoder.header(block, ":authority", "localhost");
+				encoder.header(block, ":path", paths[i]);
+				frame(os, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, 2 * i + 1, block.toByteArray());
+			}
+			os.flush();
+
+			long bytes = 0;
+			int ended = 0;
+			byte [] payload = new byte[Http2Connection.MAX_FRAME];
+			while(ended < paths.length){
+				int length = is.readUnsignedShort() << 8 | is.readUnsignedByte();
+				int type = is.readUnsignedByte();
+				int flags = is.readUnsignedByte();
+				is.readInt();
+				is.readFully(payload, 0, length);
+				if(type == Http2Connection.DATA) bytes += length;
+				if(type == Http2Connection.GOAWAY || type == Http2Connection.RST_STREAM) throw new IOException("the server gave up on the page");
+				if((type == Http2Connection.DATA || type == Http2Connection.HEADERS) && (flags & Http2Connection.END_STREAM) != 0) ended++;
+			}
+			return bytes;
+		}
+	}
+
+	static void frame(OutputStream os, int type, int flags, int stream, byte [] payload) throws IOException{
+		byte [] header = new byte[9];
+		header[0] = (byte) (payload.length >>> 16);
+		header[1] = (byte) (payload.length >>> 8);
+		header[2] = (byte) payload.length;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		Http2Connection.putInt32(header, 5, stream);
+		os.write(header);
+		os.write(payload);
+	}
+}
@@ -0,0 +1,87 @@
+import java.net.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+
+
+//measures how much cpu the server burns on clients that connect and then send nothing.
+//"spin" is the old HandlerThread.run loop, which polled br.ready() until the 3 second timeout.
+//"blocking" is the real HandlerThread, which waits in RequestReader with the socket timeout.
+//usage: java -cp bench/target/benchmarks.jar IdleConnectionBench [connections] [seconds]
+//prints one line per reader, cpu milliseconds used per idle connection per second.
+public class IdleConnectionBench{
+
+	public static void main(String[] args) throws Exception{
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+		//long enough that nobody times out while we are measuring.
+		ServerConfig.requestTimeout = (seconds + 5) * 1000;
+
+		for(String reader : new String[]{"spin", "blocking"}){
+			double perConnection = measure(reader, connections, seconds);
+			System.out.printf("%-8s connections=%d cpu_ms_per_conn_per_sec=%.3f%n", reader, connections, perConnection);
+		}
+		System.exit(0);
+	}
+
+	static double measure(String reader, int connections, int seconds) throws Exception{
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ServerSocket ss = ssc.socket();
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		Thread acceptor = new Thread(() -> {
+			try{
+				while(true){
+					Socket s = ss.accept();
+					if(reader.equals("spin")) executor.execute(() -> spin(s));
+					else executor.execute(new HandlerThread(s));
+				}
+			}
+			catch(IOException ioe){
+				return;
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ArrayList<Socket> clients = new ArrayList<Socket>();
+		for(int i = 0; i < connections; i++){
+			clients.add(new Socket(InetAddress.getLoopbackAddress(), ss.getLocalPort()));
+		}
+		Thread.sleep(200); //let every connection get to its handler
+
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long cpuBefore = os.getProcessCpuTime();
+		Thread.sleep(seconds * 1000L);
+		long cpuAfter = os.getProcessCpuTime();
+
+		for(Socket c : clients) c.close();
+		ss.close();
+		executor.shutdownNow();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+
+		double cpuMillis = (cpuAfter - cpuBefore) / 1e6;
+		return cpuMillis / connections / seconds;
+	}
+
+	//the request reading loop HandlerThread.run used to have, kept here to compare against.
+	static void spin(Socket s){
+		try{
+			BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			long start = System.currentTimeMillis();
+			while(br.ready() == false){
+				if(System.currentTimeMillis() - start > ServerConfig.requestTimeout) break;
+				if(Thread.currentThread().isInterrupted()) break;
+			}
+			s.close();
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+//drives a running server over the network with a mix of GET, HEAD, conditional GET and POST (cgi) requests,
+//each client on its own kept-alive connection, and reports throughput, latency percentiles and the server's allocation rate.
+//usage: java -cp bench/target/benchmarks.jar [-Dload.x=y ...] LoadGenerator [host:port]
+//the settings, as system properties:
+//	load.connections  clients, one connection each (16)
+//	load.seconds      how long to measure (10), after load.warmup seconds that arent counted (3)
+//	load.rate         0 for closed loop: every client sends its next request as soon as it has the last answer.
+//	                  anything else is open loop, that many requests per second in total, sent on schedule whether or not
+//	                  the answers are keeping up. latency is then counted from when a request was supposed to go out,
+//	                  not from when it did, so a stall shows up in every request it held back (no coordinated omission).
+//	load.mix          how often each kind of request comes up, as weights (get=80,head=10,cond=10,post=0)
+//	load.path         the file for GET, HEAD and conditional GET (/index.html)
+//	load.cgi          the script for POST (/cgi-bin/echo.cgi), and load.body, the form data sent to it
+//	load.metrics      the server's Metrics page, to read its allocation counter from ("" to skip)
+//	load.reconnect    true to send every request on a new connection (Connection: close), which measures how fast
+//	                  the server accepts rather than how fast it answers (false)
+//the summary goes to stderr. stdout gets one line of json with the settings and the results, meant to be kept and diffed between commits.
+public class LoadGenerator{
+
+	static final int GET = 0;
+	static final int HEAD = 1;
+	static final int COND = 2;
+	static final int POST = 3;
+	static final String [] KINDS = {"get", "head", "cond", "post"};
+
+	static int connections = Integer.getInteger("load.connections", 16);
+	static int seconds = Integer.getInteger("load.seconds", 10);
+	static int warmup = Integer.getInteger("load.warmup", 3);
+	static double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+	static String mix = System.getProperty("load.mix", "get=80,head=10,cond=10,post=0");
+	static String path = System.getProperty("load.path", "/index.html");
+	static String cgi = System.getProperty("load.cgi", "/cgi-bin/echo.cgi");
+	static String body = System.getProperty("load.body", "name=load&value=test%21");
+	static String metrics = System.getProperty("load.metrics", "/_metrics");
+	static boolean reconnect = Boolean.getBoolean("load.reconnect");
+
+	static String host = "localhost";
+	static int port = 8080;
+
+	static byte [][] requests = new byte[KINDS.length][];
+	static int [] picks = new int[0]; //one kind per unit of weight, for picking at random
+
+	static final Histogram latency = new Histogram();
+	static final AtomicLongArray statuses = new AtomicLongArray(600);
+	static final AtomicLong completed = new AtomicLong();
+	static final AtomicLong errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception{
+		if(args.length > 0){
+			int colon = args[0].lastIndexOf(':');
+			host = colon == -1 ? args[0] : args[0].substring(0, colon);
+			if(colon != -1) port = Integer.parseInt(args[0].substring(colon + 1));
+		}
+		parseMix();
+
+		//the conditional GET asks with the file's own Last-Modified, so it is the request a browser revalidating its copy would send.
+		String lastModified = header(fetch("HEAD " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n"), "Last-Modified");
+		if(lastModified == null) lastModified = "Thu, 01 Jan 1970 00:00:00 GMT";
+
+		String hostLine = "Host: " + host + (reconnect ? "\r\nConnection: close" : "");
+		requests[GET] = ascii("GET " + path + " HTTP/1.1\r\n" + hostLine + "\r\n\r\n");
+		requests[HEAD] = ascii("HEAD " + path + " HTTP/1.1\r\n" + hostLine + "\r\n\r\n");
+		requests[COND] = ascii("GET " + path + " HTTP/1.1\r\n" + hostLine + "\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n");
+		requests[POST] = ascii("POST " + cgi + " HTTP/1.1\r\n" + hostLine + "\r\nContent-Type: application/x-www-form-urlencoded\r\n" +
+			"Content-Length: " + body.length() + "\r\n\r\n" + body);
+
+		long start = System.nanoTime();
+		long measureStart = start + warmup * 1000000000L;
+		long end = measureStart + seconds * 1000000000L;
+
+		Thread [] clients = new Thread[connections];
+		for(int i = 0; i < connections; i++){
+			int id = i;
+			clients[i] = new Thread(() -> client(id, start, measureStart, end), "load-" + i);
+			clients[i].start();
+		}
+
+		sleepUntil(measureStart);
+		long allocBefore = allocatedBytes();
+		sleepUntil(end);
+		long allocAfter = allocatedBytes();
+		for(Thread t : clients) t.join();
+
+		report(allocBefore, allocAfter);
+	}
+
+	//one client. sends requests over its own connection (opening a new one whenever the server closes it) until the end.
+	static void client(int id, long start, long measureStart, long end){
+		Random random = new Random(id);
+		long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+		long next = start + (interval * id) / connections; //open loop clients are staggered so the requests dont all go at once
+
+		Socket socket = null;
+		OutputStream os = null;
+		InputStream is = null;
+		boolean [] close = new boolean[1];
+
+		while(true){
+			long intended;
+			if(interval > 0){
+				intended = next;
+				next += interval;
+				if(intended >= end) break;
+				sleepUntil(intended);
+			}
+			else{
+				intended = System.nanoTime();
+				if(intended >= end) break;
+			}
+			boolean counted = intended >= measureStart;
+
+			int kind = picks[random.nextInt(picks.length)];
+			int status;
+			try{
+				if(socket == null){
+					socket = new Socket(host, port);
+					socket.setTcpNoDelay(true);
+					os = socket.getOutputStream();
+					is = new BufferedInputStream(socket.getInputStream());
+				}
+				os.write(requests[kind]);
+				status = readResponse(is, kind == HEAD, close);
+			}
+			catch(IOException ioe){
+				if(counted) errors.incrementAndGet();
+				closeQuietly(socket);
+				socket = null;
+				continue;
+			}
+			long done = System.nanoTime();
+
+			if(counted){
+				latency.record(done - intended);
+				if(status >= 0 && status < 600) statuses.incrementAndGet(status);
+				completed.incrementAndGet();
+			}
+			if(close[0] || reconnect){
+				closeQuietly(socket);
+				socket = null;
+			}
+		}
+		closeQuietly(socket);
+	}
+
+	//reads one response and returns its status code. the body is read and thrown away: Content-Length bytes, chunks,
+	//or everything up to the close. close[0] is set if the server is closing the connection after this response.
+	static int readResponse(InputStream is, boolean head, boolean [] close) throws IOException{
+		String statusLine = readLine(is);
+		if(statusLine == null || statusLine.length() < 12) throw new EOFException("no status line");
+		int status = Integer.parseInt(statusLine.substring(9, 12));
+		boolean http10 = statusLine.startsWith("HTTP/1.0");
+
+		long length = -1;
+		boolean chunked = false;
+		close[0] = http10;
+		String line;
+		while((line = readLine(is)) != null && !line.isEmpty()){
+			int colon = line.indexOf(':');
+			if(colon == -1) continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if(name.equalsIgnoreCase("Content-Length")) length = Long.parseLong(value);
+			else if(name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+			else if(name.equalsIgnoreCase("Connection")) close[0] = value.equalsIgnoreCase("close") || (http10 && !value.equalsIgnoreCase("keep-alive"));
+		}
+		if(line == null) throw new EOFException("headers cut off");
+
+		if(head || status == 204 || status == 304 || status / 100 == 1) return status;
+		if(chunked){
+			while(true){
+				String size = readLine(is);
+				if(size == null) throw new EOFException("chunks cut off");
+				int semicolon = size.indexOf(';');
+				long n = Long.parseLong((semicolon == -1 ? size : size.substring(0, semicolon)).trim(), 16);
+				if(n == 0) break;
+				skip(is, n + 2);
+			}
+			while((line = readLine(is)) != null && !line.isEmpty()); //trailers
+		}
+		else if(length >= 0) skip(is, length);
+		else{
+			while(is.read() != -1); //the body runs to the close
+			close[0] = true;
+		}
+		return status;
+	}
+
+	static String readLine(InputStream is) throws IOException{
+		StringBuilder sb = new StringBuilder();
+		while(true){
+			int c = is.read();
+			if(c == -1) return sb.length() == 0 ? null : sb.toString();
+			if(c == '\n') return sb.toString();
+			if(c != '\r') sb.append((char) c);
+		}
+	}
+
+	static void skip(InputStream is, long n) throws IOException{
+		while(n > 0){
+			long skipped = is.skip(n);
+			if(skipped <= 0){
+				if(is.read() == -1) throw new EOFException("body cut off");
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	//turns "get=80,head=10,..." into the picks table.
+	static void parseMix(){
+		int [] weights = new int[KINDS.length];
+		int total = 0;
+		for(String part : mix.split(",")){
+			String [] kv = part.trim().split("=");
+			int kind = -1;
+			for(int k = 0; k < KINDS.length; k++){
+				if(KINDS[k].equals(kv[0].trim())) kind = k;
+			}
+			if(kind == -1 || kv.length != 2) throw new IllegalArgumentException("load.mix: dont know \"" + part + "\"");
+			weights[kind] = Integer.parseInt(kv[1].trim());
+			total += weights[kind];
+		}
+		if(total <= 0) throw new IllegalArgumentException("load.mix: all the weights are 0");
+		picks = new int[total];
+		int i = 0;
+		for(int k = 0; k < KINDS.length; k++){
+			for(int w = 0; w < weights[k]; w++) picks[i++] = k;
+		}
+	}
+
+	//the server's process_allocated_bytes off its Metrics page, or -1 if there isnt one.
+	static long allocatedBytes(){
+		if(metrics.isEmpty()) return -1;
+		try{
+			String page = fetch("GET " + metrics + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n");
+			for(String line : page.split("\n")){
+				if(line.startsWith("process_allocated_bytes ")) return (long) Double.parseDouble(line.substring(24).trim());
+			}
+		}
+		catch(IOException ioe){
+			return -1;
+		}
+		return -1;
+	}
+
+	//one request on a connection of its own, and everything that came back.
+	static String fetch(String request) throws IOException{
+		try(Socket s = new Socket(host, port)){
+			s.getOutputStream().write(ascii(request));
+			return new String(s.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	static String header(String response, String name){
+		for(String line : response.split("\r\n")){
+			if(line.isEmpty()) break;
+			if(line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) return line.substring(name.length() + 1).trim();
+		}
+		return null;
+	}
+
+	static void report(long allocBefore, long allocAfter){
+		long n = completed.get();
+		double throughput = n / (double) seconds;
+		long [] counts = latency.snapshot();
+		double p50 = Histogram.quantile(counts, 0.5) / 1000.0;
+		double p90 = Histogram.quantile(counts, 0.9) / 1000.0;
+		double p99 = Histogram.quantile(counts, 0.99) / 1000.0;
+		double p999 = Histogram.quantile(counts, 0.999) / 1000.0;
+		double max = latency.max.get() / 1000.0;
+		long allocated = allocBefore >= 0 && allocAfter >= 0 ? allocAfter - allocBefore : -1;
+
+		System.err.printf("%s loop, %d %s, %d s, mix %s%n", rate > 0 ? "open" : "closed", connections, reconnect ? "clients reconnecting every request" : "connections", seconds, mix);
+		System.err.printf("requests=%d errors=%d requests_per_sec=%.1f%n", n, errors.get(), throughput);
+		System.err.printf("latency_us p50=%.0f p90=%.0f p99=%.0f p999=%.0f max=%.0f%n", p50, p90, p99, p999, max);
+		if(allocated >= 0) System.err.printf("server allocated %.1f MB/s, %.0f bytes/request%n", allocated / 1e6 / seconds, n == 0 ? 0.0 : allocated / (double) n);
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"target\":\"").append(host).append(':').append(port).append('"');
+		json.append(",\"mode\":\"").append(rate > 0 ? "open" : "closed").append('"');
+		json.append(",\"rate\":").append(rate);
+		json.append(",\"connections\":").append(connections);
+		json.append(",\"seconds\":").append(seconds);
+		json.append(",\"mix\":\"").append(mix).append('"');
+		json.append(",\"reconnect\":").append(reconnect);
+		json.append(",\"requests\":").append(n);
+		json.append(",\"errors\":").append(errors.get());
+		json.append(",\"requests_per_sec\":").append(String.format("%.1f", throughput));
+		json.append(",\"latency_us\":{\"p50\":").append(String.format("%.1f", p50));
+		json.append(",\"p90\":").append(String.format("%.1f", p90));
+		json.append(",\"p99\":").append(String.format("%.1f", p99));
+		json.append(",\"p999\":").append(String.format("%.1f", p999));
+		json.append(",\"max\":").append(String.format("%.1f", max)).append('}');
+		json.append(",\"statuses\":{");
+		boolean first = true;
+		for(int code = 100; code < 600; code++){
+			long c = statuses.get(code);
+			if(c == 0) continue;
+			if(!first) json.append(',');
+			json.append('"').append(code).append("\":").append(c);
+			first = false;
+		}
+		json.append('}');
+		if(allocated >= 0){
+			json.append(",\"server_alloc_bytes_per_sec\":").append(allocated / seconds);
+			json.append(",\"server_alloc_bytes_per_request\":").append(n == 0 ? 0 : allocated / n);
+		}
+		json.append('}');
+		System.out.println(json);
+	}
+
+	static void sleepUntil(long deadline){
+		long left;
+		while((left = deadline - System.nanoTime()) > 0) LockSupport.parkNanos(left);
+	}
+
+	static void closeQuietly(Socket s){
+		if(s == null) return;
+		try{
+			s.close();
+		}
+		catch(IOException ioe){
+			return;
+		}
+	}
+
+	static byte [] ascii(String s){
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,147 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.*;
+
+
+
+//handshakes per second against the HTTPS listener (see Tls) over loopback, full and resumed, for TLS 1.3 and 1.2.
+//each client connects, handshakes, makes one small HTTP/1.0 request and reads until the server closes, over and over.
+//for "full" it starts from a new SSLContext every time, so it has nothing to resume with (invalidating the session isnt enough,
+//the JDK files TLS 1.3 tickets away separately). for "resumed" it keeps its context, so every connection after its first resumes
+//(with a ticket, or a session id on TLS 1.2).
+//the server runs in this process on an NioServer. its key is a fresh EC one made with keytool in a temporary keystore.
+//usage: java -cp bench/target/benchmarks.jar TlsHandshakeBench [clients] [seconds]
+//prints handshakes per second and latency for each run, and how many handshakes the server itself counted as resumed.
+public class TlsHandshakeBench{
+
+	static final byte [] REQUEST = "HEAD /missing HTTP/1.0\r\n\r\n".getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+
+	public static void main(String[] args) throws Exception{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Path dir = Files.createTempDirectory("tls-bench");
+		Path keystore = dir.resolve("keystore.p12");
+		try{
+			Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+				"-validity", "2", "-keystore", keystore.toString(), "-storepass", "changeit", "-storetype", "PKCS12")
+				.inheritIO().start();
+			if(keytool.waitFor() != 0) throw new IOException("keytool failed");
+
+			ServerConfig.tlsKeystore = keystore.toString();
+			ServerConfig.tlsPassword = "changeit";
+			Tls.init();
+			ServerSocketChannel ssc = ServerSocketChannel.open();
+			ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			int port = ssc.socket().getLocalPort();
+			NioServer server = new NioServer(null, ssc);
+			Thread acceptor = new Thread(() -> {
+				try{
+					server.run();
+				}
+				catch(IOException ioe){
+					return;
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			for(String protocol : new String[]{"TLSv1.3", "TLSv1.2"}){
+				for(boolean resume : new boolean[]{false, true}){
+					run(port, protocol, resume, clients, 1); //warm up
+					long resumedBefore = Tls.resumed.get();
+					long fullBefore = Tls.full.get();
+					long [] latencies = run(port, protocol, resume, clients, seconds);
+					Arrays.sort(latencies);
+					System.out.printf("%-7s %-7s clients=%d handshakes_per_sec=%.1f p50_us=%d p99_us=%d server_full=%d server_resumed=%d%n",
+						protocol, resume ? "resumed" : "full", clients, latencies.length / (double) seconds,
+						percentile(latencies, 0.5) / 1000, percentile(latencies, 0.99) / 1000,
+						Tls.full.get() - fullBefore, Tls.resumed.get() - resumedBefore);
+				}
+			}
+		}
+		finally{
+			Files.deleteIfExists(keystore);
+			Files.deleteIfExists(dir);
+		}
+		System.exit(0);
+	}
+
+	//every client gets its own SSLContext, and so its own session cache, like separate browsers would. making one isnt timed.
+	static long [] run(int port, String protocol, boolean resume, int clients, int seconds) throws Exception{
+		long end = System.nanoTime() + seconds * 1000000000L;
+		long [][] latencies = new long[clients][];
+		AtomicInteger [] counts = new AtomicInteger[clients];
+		Thread [] threads = new Thread[clients];
+		for(int i = 0; i < clients; i++){
+			int id = i;
+			counts[i] = new AtomicInteger();
+			latencies[i] = new long[1 << 16];
+			threads[i] = new Thread(() -> {
+				try{
+					SSLSocketFactory factory = clientContext().getSocketFactory();
+					byte [] buf = new byte[4096];
+					while(System.nanoTime() < end){
+						if(!resume) factory = clientContext().getSocketFactory();
+						long start = System.nanoTime();
+						Socket plain = new Socket(InetAddress.getLoopbackAddress(), port);
+						plain.setTcpNoDelay(true);
+						try(SSLSocket s = (SSLSocket) factory.createSocket(plain, "localhost", port, true)){
+							s.setEnabledProtocols(new String[]{protocol});
+							s.startHandshake();
+							//TLS 1.3 tickets come after the handshake, so the client only has one once it reads something
+							s.getOutputStream().write(REQUEST);
+							InputStream is = s.getInputStream();
+							while(is.read(buf) != -1);
+							long took = System.nanoTime() - start;
+							int n = counts[id].getAndIncrement();
+							if(n == latencies[id].length) latencies[id] = Arrays.copyOf(latencies[id], n * 2);
+							latencies[id][n] = took;
+						}
+					}
+				}
+				catch(Exception e){
+					System.out.println("client failed: " + e);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+
+		int total = 0;
+		for(AtomicInteger c : counts) total += c.get();
+		long [] all = new long[total];
+		int at = 0;
+		for(int i = 0; i < clients; i++){
+			System.arraycopy(latencies[i], 0, all, at, counts[i].get());
+			at += counts[i].get();
+		}
+		return all;
+	}
+
+	//trusts whatever certificate the server has, since it was just made up.
+	static SSLContext clientContext() throws Exception{
+		TrustManager trustAll = new X509TrustManager(){
+			public void checkClientTrusted(X509Certificate [] chain, String authType){}
+			public void checkServerTrusted(X509Certificate [] chain, String authType){}
+			public X509Certificate [] getAcceptedIssuers(){
+				return new X509Certificate[0];
+			}
+		};
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(null, new TrustManager[]{trustAll}, new SecureRandom());
+		return ctx;
+	}
+
+	static long percentile(long [] sorted, double q){
+		if(sorted.length == 0) return 0;
+		return sorted[(int) Math.min(sorted.length - 1, q * sorted.length)];
+	}
+}
@@ -0,0 +1,97 @@
+package micro;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+
+//looking a request path up in a DocIndex of a thousand files and of a million, plus normalize(), which every request goes through first.
+//there is no tree on disk: the index is loaded from a saved one written here, for a made up root, the way a restart loads it.
+//hits cycle through 1024 random files so they dont all sit in the cache. "-prof gc" should show nothing allocated.
+//for startup times with a real tree, see DocIndexBench (the plain one in bench).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class DocIndexBench{
+
+	static final MethodHandle NEW_INDEX = Server.constructor("DocIndex", Path.class);
+	static final MethodHandle LOAD = Server.method("DocIndex", "load", boolean.class, Path.class);
+	static final MethodHandle GET = Server.method("DocIndex", "get", Server.type("DocIndex$Entry"), String.class);
+	static final MethodHandle NORMALIZE = Server.staticMethod("DocIndex", "normalize", String.class, String.class);
+
+	static final byte [] MAGIC = "DOCIDX1\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	@Param({"1000", "1000000"})
+	int files;
+
+	Object index;
+	String [] hits = new String[1024];
+	int next;
+
+	@Setup
+	public void setup() throws Throwable{
+		Path root = Paths.get("/doc-index-bench");
+		Path saved = Files.createTempFile("doc-index", ".bin");
+		try{
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(saved), 1 << 16))){
+				out.write(MAGIC);
+				writeString(out, root.toString());
+				out.writeInt(files);
+				for(int i = 0; i < files; i++){
+					writeString(out, path(i));
+					out.writeLong(1000 + i);
+					out.writeLong(1700000000000L + i);
+					out.writeByte(2); //readable
+				}
+			}
+			index = (Object) NEW_INDEX.invokeExact(root);
+			if(!(boolean) LOAD.invokeExact(index, saved)) throw new IllegalStateException("the index didnt load");
+		}
+		finally{
+			Files.delete(saved);
+		}
+		java.util.Random random = new java.util.Random(42);
+		for(int i = 0; i < hits.length; i++) hits[i] = path(random.nextInt(files));
+	}
+
+	static String path(int i){
+		return "/d" + (i / 1000) + "/f" + i + ".html";
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException{
+		byte [] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(b.length);
+		out.write(b);
+	}
+
+	@Benchmark
+	public Object hit() throws Throwable{
+		return (Object) GET.invokeExact(index, hits[next++ & (hits.length - 1)]);
+	}
+
+	@Benchmark
+	public Object miss() throws Throwable{
+		return (Object) GET.invokeExact(index, "/d0/not-there.html");
+	}
+
+	//the usual case, nothing to work out.
+	@Benchmark
+	public String normalizeClean() throws Throwable{
+		return (String) NORMALIZE.invokeExact("/d12/f12345.html");
+	}
+
+	@Benchmark
+	public String normalizeDots() throws Throwable{
+		return (String) NORMALIZE.invokeExact("/d12/./x/../f12345.html");
+	}
+}
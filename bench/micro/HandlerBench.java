@@ -0,0 +1,170 @@
+package micro;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+
+//the small things HandlerThread does for every request: checking the request line, decoding the path and payload,
+//rendering dates and headers, and pulling header values out of the request.
+//run with "-prof gc" to see what each one allocates.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBench{
+
+	static final String REQUEST =
+		"POST /cgi-bin/echo.cgi HTTP/1.1\r\n" +
+		"Host: localhost:8080\r\n" +
+		"From: someone@example.com\r\n" +
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/118.0\r\n" +
+		"Accept: text/html,application/xhtml+xml\r\n" +
+		"If-Modified-Since: Tue, 17 Oct 2000 19:41:14 GMT\r\n" +
+		"Content-Type: application/x-www-form-urlencoded\r\n" +
+		"Content-Length: 48\r\n" +
+		"\r\n" +
+		"name=Jo%20Smith%21&note=50%25%20off%3B%20%28ok%29";
+
+	static final String PAYLOAD = "name=Jo%20Smith%21&note=50%25%20off%3B%20%28ok%29";
+
+	static final MethodHandle NEW_HANDLER = Server.constructor("HandlerThread", Socket.class);
+	static final MethodHandle NEW_REQUEST = Server.constructor("HttpRequest");
+	static final MethodHandle NEW_HEADERS = Server.constructor("ResponseHeaders");
+
+	static final MethodHandle CORRECT_FORMAT = Server.method("HandlerThread", "correctFormat", boolean.class, String.class);
+	static final MethodHandle PARSE = Server.method("HttpRequest", "parse", boolean.class, byte[].class, int.class, int.class);
+	static final MethodHandle URL_ENCODE = Server.staticMethod("HandlerThread", "urlEncode", String.class, String.class);
+	static final MethodHandle DECODE = Server.staticMethod("PercentDecoder", "decode", int.class, byte[].class, int.class, int.class, byte[].class, int.class, boolean.class);
+	static final MethodHandle PATH = Server.method("HttpRequest", "path", String.class);
+	static final MethodHandle FORMATTED_TIME = Server.method("HandlerThread", "getFormattedTime", String.class, long.class);
+	static final MethodHandle ADD_HEADERS = Server.method("HandlerThread", "addHeaders", String.class, File.class);
+	static final MethodHandle RESET = Server.method("ResponseHeaders", "reset", Server.type("ResponseHeaders"));
+	static final MethodHandle FILE_HEADERS = Server.staticMethod("HandlerThread", "fileHeaders", Server.type("ResponseHeaders"), Server.type("ResponseHeaders"), File.class);
+	static final MethodHandle GET_IF_MODIFIED = Server.method("HandlerThread", "getIfModifiedTime", long.class, Server.type("HttpRequest"));
+	static final MethodHandle GET_CONTENT_TYPE = Server.method("HandlerThread", "getContentType", String.class, Server.type("HttpRequest"));
+	static final MethodHandle GET_CONTENT_LENGTH = Server.method("HandlerThread", "getContentLength", int.class, Server.type("HttpRequest"));
+	static final MethodHandle GET_FROM = Server.method("HandlerThread", "getFrom", String.class, Server.type("HttpRequest"));
+	static final MethodHandle GET_USER_AGENT = Server.method("HandlerThread", "getUserAgent", String.class, Server.type("HttpRequest"));
+
+	ServerSocket listener;
+	Socket clientSide;
+	Socket serverSide;
+	Object handler;
+	Object request;
+	Object headers;
+	byte [] requestBytes = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+	File file;
+	long millis = 971811674000L;
+	byte [] payload = PAYLOAD.getBytes(StandardCharsets.ISO_8859_1);
+	byte [] decoded = new byte[payload.length];
+
+	//a HandlerThread needs a real socket, so it gets one end of a loopback connection. nothing is ever sent over it.
+	@Setup
+	public void setup() throws Throwable{
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		clientSide = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		serverSide = listener.accept();
+		handler = (Object) NEW_HANDLER.invokeExact(serverSide);
+
+		request = (Object) NEW_REQUEST.invokeExact();
+		boolean ok = (boolean) PARSE.invokeExact(request, requestBytes, 0, requestBytes.length);
+		if(!ok) throw new IllegalStateException("the sample request did not parse");
+		headers = (Object) NEW_HEADERS.invokeExact();
+
+		file = File.createTempFile("handlerbench", ".html");
+		try(FileWriter fw = new FileWriter(file)){
+			fw.write("<html>hello</html>");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException{
+		clientSide.close();
+		serverSide.close();
+		listener.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public boolean correctFormat() throws Throwable{
+		return (boolean) CORRECT_FORMAT.invokeExact(handler, REQUEST);
+	}
+
+	//what correctFormat does, minus turning the String back into bytes. this is what the server does on every request.
+	@Benchmark
+	public boolean parse() throws Throwable{
+		return (boolean) PARSE.invokeExact(request, requestBytes, 0, requestBytes.length);
+	}
+
+	@Benchmark
+	public String urlEncode() throws Throwable{
+		return (String) URL_ENCODE.invokeExact(PAYLOAD);
+	}
+
+	//what the server does with a form payload now, straight from the request's bytes.
+	@Benchmark
+	public int percentDecode() throws Throwable{
+		return (int) DECODE.invokeExact(payload, 0, payload.length, decoded, 0, true);
+	}
+
+	@Benchmark
+	public String path() throws Throwable{
+		return (String) PATH.invokeExact(request);
+	}
+
+	//a new second every call, so HttpDate's cache doesnt just hand back the same String.
+	@Benchmark
+	public String getFormattedTime() throws Throwable{
+		millis += 1000;
+		return (String) FORMATTED_TIME.invokeExact(handler, millis);
+	}
+
+	@Benchmark
+	public String addHeaders() throws Throwable{
+		return (String) ADD_HEADERS.invokeExact(handler, file);
+	}
+
+	//the same headers, rendered into the reused buffer the way responses actually are.
+	@Benchmark
+	public Object fileHeaders() throws Throwable{
+		Object h = (Object) RESET.invokeExact(headers);
+		return (Object) FILE_HEADERS.invokeExact(h, file);
+	}
+
+	@Benchmark
+	public long getIfModifiedTime() throws Throwable{
+		return (long) GET_IF_MODIFIED.invokeExact(handler, request);
+	}
+
+	@Benchmark
+	public String getContentType() throws Throwable{
+		return (String) GET_CONTENT_TYPE.invokeExact(handler, request);
+	}
+
+	@Benchmark
+	public int getContentLength() throws Throwable{
+		return (int) GET_CONTENT_LENGTH.invokeExact(handler, request);
+	}
+
+	@Benchmark
+	public String getFrom() throws Throwable{
+		return (String) GET_FROM.invokeExact(handler, request);
+	}
+
+	@Benchmark
+	public String getUserAgent() throws Throwable{
+		return (String) GET_USER_AGENT.invokeExact(handler, request);
+	}
+}
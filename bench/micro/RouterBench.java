@@ -0,0 +1,75 @@
+package micro;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+
+//finding the Handler for a request in a Router with a few routes and with 10000 of them.
+//the time should depend on how long the path is, not on how many routes there are, and "-prof gc" should show nothing allocated.
+//the routes are a made up API: "/api/v1/resource<i>" exact, "/api/v1/resource<i>/items/*" for everything under it,
+//and "/api/v1/resource<i>/*/owner" with one segment matched by "*", plus "/*" for everything else like the server has.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBench{
+
+	static final MethodHandle NEW_ROUTER = Server.constructor("Router");
+	static final MethodHandle ADD = Server.method("Router", "add", Server.type("Router"), String.class, String.class, Server.type("Handler"));
+	static final MethodHandle FIND = Server.method("Router", "find", Server.type("Handler"), String.class, String.class);
+
+	@Param({"10", "10000"})
+	int routes;
+
+	Object router;
+	String exact;
+	String prefix;
+	String segment;
+	String fallback;
+
+	@Setup
+	public void setup() throws Throwable{
+		Object files = Server.staticField("Router", "FILES");
+		Object cgi = Server.staticField("Router", "CGI");
+		router = (Object) NEW_ROUTER.invokeExact();
+		Object r = (Object) ADD.invokeExact(router, "GET", "/*", files);
+		for(int i = 0; i < routes / 3; i++){
+			r = (Object) ADD.invokeExact(router, "GET", "/api/v1/resource" + i, cgi);
+			r = (Object) ADD.invokeExact(router, "GET", "/api/v1/resource" + i + "/items/*", cgi);
+			r = (Object) ADD.invokeExact(router, "GET", "/api/v1/resource" + i + "/*/owner", cgi);
+		}
+		int last = routes / 3 - 1;
+		exact = "/api/v1/resource" + last;
+		prefix = "/api/v1/resource" + last + "/items/2024/03/report.html";
+		segment = "/api/v1/resource" + last + "/42/owner";
+		fallback = "/static/css/site.css";
+		if((Object) FIND.invokeExact(router, "GET", segment) != cgi) throw new IllegalStateException("the segment route didnt match");
+		if((Object) FIND.invokeExact(router, "GET", fallback) != files) throw new IllegalStateException("the fallback didnt match");
+	}
+
+	@Benchmark
+	public Object exact() throws Throwable{
+		return (Object) FIND.invokeExact(router, "GET", exact);
+	}
+
+	@Benchmark
+	public Object prefix() throws Throwable{
+		return (Object) FIND.invokeExact(router, "GET", prefix);
+	}
+
+	@Benchmark
+	public Object segment() throws Throwable{
+		return (Object) FIND.invokeExact(router, "GET", segment);
+	}
+
+	//nothing under /api matches, so this falls back to "/*".
+	@Benchmark
+	public Object fallback() throws Throwable{
+		return (Object) FIND.invokeExact(router, "GET", fallback);
+	}
+}
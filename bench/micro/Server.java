@@ -0,0 +1,80 @@
+package micro;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+
+//the server's classes are all in the unnamed package, which nothing in a named package can refer to, and JMH wont take
+//benchmarks that are in the unnamed package themselves. so the benchmarks get at the server through method handles from here.
+//the server's own types are swapped for Object in every handle (see erase), and the benchmarks keep the handles in
+//static finals, where the jit treats them as constants and inlines right through them, same as a direct call.
+class Server{
+
+	static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	//an instance method. the instance is the first argument.
+	static MethodHandle method(String owner, String name, Class<?> returns, Class<?>... params){
+		try{
+			Class<?> c = type(owner);
+			return erase(MethodHandles.privateLookupIn(c, LOOKUP).findVirtual(c, name, MethodType.methodType(returns, params)));
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException(owner + "." + name + " is not there", roe);
+		}
+	}
+
+	static MethodHandle staticMethod(String owner, String name, Class<?> returns, Class<?>... params){
+		try{
+			Class<?> c = type(owner);
+			return erase(MethodHandles.privateLookupIn(c, LOOKUP).findStatic(c, name, MethodType.methodType(returns, params)));
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException(owner + "." + name + " is not there", roe);
+		}
+	}
+
+	static MethodHandle constructor(String owner, Class<?>... params){
+		try{
+			Class<?> c = type(owner);
+			return erase(MethodHandles.privateLookupIn(c, LOOKUP).findConstructor(c, MethodType.methodType(void.class, params)));
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException("new " + owner + " is not there", roe);
+		}
+	}
+
+	//the value of a static field, e.g. one of the server's built-in objects.
+	static Object staticField(String owner, String name){
+		try{
+			Class<?> c = type(owner);
+			java.lang.reflect.Field f = c.getDeclaredField(name);
+			f.setAccessible(true);
+			return f.get(null);
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException(owner + "." + name + " is not there", roe);
+		}
+	}
+
+	static Class<?> type(String name){
+		try{
+			return Class.forName(name);
+		}
+		catch(ClassNotFoundException cnfe){
+			throw new IllegalStateException("the server classes are not on the class path", cnfe);
+		}
+	}
+
+	//turns every server class in the handle's type into Object, so invokeExact can be called with Objects.
+	//(primitives and arrays count as java.lang, so they stay as they are.)
+	static MethodHandle erase(MethodHandle mh){
+		MethodType t = mh.type();
+		for(int i = 0; i < t.parameterCount(); i++){
+			if(t.parameterType(i).getPackageName().isEmpty()) t = t.changeParameterType(i, Object.class);
+		}
+		if(t.returnType().getPackageName().isEmpty()) t = t.changeReturnType(Object.class);
+		return mh.asType(t);
+	}
+}